@@ -0,0 +1,154 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.os.Build;
+import android.util.DisplayMetrics;
+
+/**
+ * Default {@link ImBudgetPolicy}.
+ * <p>
+ * The initial budgets depend on the device: the memory budget is a fraction of the memory class of the app (an eighth,
+ * a sixteenth on low RAM devices), and both budgets are bigger on dense screens, where the same images take more pixels.
+ * <p>
+ * The memory budget grows, up to twice the initial one, while the managers are trimmed often and the evicted elements
+ * are shown again; it goes back to the initial one while they are not trimmed. When the system is low on memory it's
+ * reduced right away, and it's recovered later the same way.
+ */
+public class ImAdaptiveBudgetPolicy implements ImBudgetPolicy
+{
+    private final static int MEMORY_FRACTION = 8;
+    private final static int LOW_RAM_MEMORY_FRACTION = 16;
+
+    private final static long DISK_BUDGET = 1024 * 1024 * 10; 	// 10 	MB
+
+    /**
+     * Trims per adjustment, and fraction of the loads that were evicted elements, from which the budget grows
+     */
+    private final static int GROW_TRIM_COUNT = 2;
+    private final static double GROW_RELOAD_RATE = 0.2;
+
+    private final static double GROW_FACTOR = 1.25;
+    private final static double SHRINK_FACTOR = 0.9;
+
+    private long initialBudget;
+    private long maxBudget;
+
+    @Override
+    public synchronized long getMemoryBudget(Context context)
+    {
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        long memoryClass = maxMemory;
+        boolean lowRam = false;
+
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+
+        if(activityManager != null)
+        {
+            memoryClass = Math.min(maxMemory, activityManager.getMemoryClass() * 1024L * 1024L);
+
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            {
+                lowRam = activityManager.isLowRamDevice();
+            }
+        }
+
+        long budget = memoryClass / (lowRam ? LOW_RAM_MEMORY_FRACTION : MEMORY_FRACTION);
+
+        initialBudget = (long) (budget * getDensityFactor(context));
+        maxBudget = Math.min(initialBudget * 2, maxMemory / 4);
+
+        return initialBudget;
+    }
+
+    @Override
+    public long getDiskBudget(Context context)
+    {
+        return (long) (DISK_BUDGET * getDensityFactor(context));
+    }
+
+    @Override
+    public synchronized long adjustMemoryBudget(long currentBudget, ImBudgetStats stats)
+    {
+        if(initialBudget <= 0)
+        {
+            return currentBudget;
+        }
+
+        if(stats.trimCount >= GROW_TRIM_COUNT && stats.getReloadRate() >= GROW_RELOAD_RATE)
+        {
+            return Math.max(currentBudget, Math.min(maxBudget, (long) (currentBudget * GROW_FACTOR)));
+        }
+
+        // Back to the initial budget, grown or reduced by onTrimMemory
+        if(stats.trimCount == 0)
+        {
+            if(currentBudget > initialBudget)
+            {
+                return Math.max(initialBudget, (long) (currentBudget * SHRINK_FACTOR));
+            }
+
+            if(currentBudget < initialBudget)
+            {
+                return Math.min(initialBudget, (long) (currentBudget * GROW_FACTOR));
+            }
+        }
+
+        return currentBudget;
+    }
+
+    @Override
+    public long onTrimMemory(long currentBudget, int level)
+    {
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+        {
+            return currentBudget / 4;
+        }
+
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+        {
+            return currentBudget / 2;
+        }
+
+        // The app is not visible, the images can be loaded again when it is
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+        {
+            return currentBudget * 3 / 4;
+        }
+
+        return currentBudget;
+    }
+
+    /**
+     * @return 1 for xhdpi screens or less, up to 1.5 for denser ones
+     */
+    private static double getDensityFactor(Context context)
+    {
+        DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+
+        if(displayMetrics == null)
+        {
+            return 1;
+        }
+
+        return Math.max(1, Math.min(1.5, displayMetrics.densityDpi / (double) DisplayMetrics.DENSITY_XHIGH));
+    }
+}
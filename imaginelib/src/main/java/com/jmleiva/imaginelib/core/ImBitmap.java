@@ -19,13 +19,25 @@ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
 package com.jmleiva.imaginelib.core;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
 import android.os.AsyncTask;
 import android.util.Log;
 
+import com.jmleiva.imaginelib.core.cache.CacheImBitmapManager;
 import com.jmleiva.imaginelib.view.ImBitmapView;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * This class represents a single image reference, with the ability to load the actual  {@link Bitmap} data when needed,
@@ -36,250 +48,1299 @@ import java.util.List;
  */
 public abstract class ImBitmap
 {
+    final static String TAG = "ImBitmap";
+
     final static int SIZE_TOLERANCE = 48;
 
-    protected String cacheBitmapId;
-    ObtainBitmapTask obtainBitmapTask;
+    /**
+     * How much smaller (in each dimension) than the requested size a preview is decoded
+     */
+    final static int PREVIEW_FACTOR = 8;
+
+    /**
+     * Separates the identifier of the {@link ImBitmap} and the key of a {@link ImBitmapTransformationChain} in the disk cache
+     */
+    final static String TRANSFORMATION_ID_SEPARATOR = "#";
+
+    /**
+     * Built on first use from the registry key (see {@link ImBitmap#getCacheBitmapId()}), when registered by the manager
+     */
+    protected volatile String cacheBitmapId;
+    private final ImBitmapKey registryKey;
+    private final String idPrefix;
+    ObtainBitmapTask obtainBitmapTask;
+
+    int originalWidth;
+    int originalHeight;
+    protected boolean malformed;
+
+    /**
+     * Mime type of the source, if known (see {@link ImBitmap#setMimeType(String)}), and whether it's opaque, from its header
+     * (see {@link ImBitmap#readOpacity(InputStream)}) or once decoded. Used to choose the config of {@link ImBitmapConfig#AUTO} requests.
+     */
+    private volatile String mimeType;
+    private volatile boolean opaque;
+    private volatile boolean opacityRead;
+
+    /**
+     * Config preferred by the decode in progress, see {@link ImBitmap#getDecodeConfig()}
+     */
+    private volatile ImBitmapConfig decodePreference;
+
+    /**
+     * {@link ImBitmapElement} of this instance: {@code null} until the first one is loaded, the element itself while
+     * there's only one (the common case), or an array, copied on each change. So the thousands of instances of a catalog
+     * cost no storage until they are shown.
+     * <p>
+     * Elements are added from background loads and read from the UI thread and the ImBitmapManager trim, so they are read
+     * without locking and changed with {@link ImBitmap#ELEMENTS_UPDATER}.
+     */
+    private volatile Object imBitmapElements;
+
+    private final static AtomicReferenceFieldUpdater<ImBitmap, Object> ELEMENTS_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(ImBitmap.class, Object.class, "imBitmapElements");
+
+    /**
+     * 1 while a check of the source queued by {@link ImBitmap#validateSourceAsync()} hasn't finished, so the binds done
+     * meanwhile don't queue more. Set with {@link ImBitmap#VALIDATION_UPDATER}.
+     */
+    private volatile int sourceValidationInFlight;
+
+    private final static AtomicIntegerFieldUpdater<ImBitmap> VALIDATION_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(ImBitmap.class, "sourceValidationInFlight");
+
+    ImBitmapManager imBitmapManager;
+
+    /**
+     * Content shared with other instances, set by the {@link ImBitmapManager} when content deduplication is enabled
+     * (see {@link ImBitmapContent}). {@code null} if this instance is not linked to any.
+     */
+    volatile ImBitmapContent content;
+
+    /**
+     * Listener used when a version (specific size) of the image is requested
+     * <p>
+     * As many subclasses of {@link ImBitmap} (like {@link ImRemoteBitmap} ) must be loaded synchronously, this onItemClickListener
+     * is used to notify once the {@link ImBitmapElement} has been loaded, or if an error has occurred.
+     */
+    public interface OnGetBitmapListener
+    {
+        void onComplete(ImBitmapElement bitmapElement);
+        void onError(String message);
+    }
+
+    /**
+     * AsyncTask responsible of loading a single {@link ImBitmapElement} on background, and dispatch the corresponding event
+     * of the onItemClickListener
+     */
+    class ObtainBitmapTask extends AsyncTask<Void, Void, ImBitmapElement>
+    {
+        OnGetBitmapListener callback;
+        int width;
+        int height;
+        boolean preview;
+        ImBitmapTransformationChain transformations;
+        ImBitmapConfig config = ImBitmapConfig.AUTO;
+
+        public ObtainBitmapTask(int width, int height, OnGetBitmapListener callback)
+        {
+            this(width, height, false, callback);
+        }
+
+        ObtainBitmapTask(int width, int height, boolean preview, OnGetBitmapListener callback)
+        {
+            this.width = width;
+            this.height = height;
+            this.preview = preview;
+            this.callback = callback;
+        }
+
+        ObtainBitmapTask(int width, int height, ImBitmapTransformationChain transformations, ImBitmapConfig config,
+                         OnGetBitmapListener callback)
+        {
+            this(width, height, false, callback);
+            this.transformations = transformations;
+            this.config = config;
+        }
+
+        @Override
+        protected ImBitmapElement doInBackground(Void... arg0)
+        {
+            ImBitmapElement bitmapElement = preview ? getPreviewElement(width, height) : getBitmapElement(width, height, transformations, config);
+
+            // Warms the Bitmap upload here, instead of in the first draw
+            Bitmap bitmap = bitmapElement != null ? bitmapElement.getBitmap() : null;
+
+            if(bitmap != null)
+            {
+                bitmap.prepareToDraw();
+            }
+
+            return bitmapElement;
+        }
+
+        @Override
+        protected void onPostExecute(ImBitmapElement bitmapElement)
+        {
+            if(bitmapElement == null)
+            {
+                callback.onError("Error Retrieving bitmap");
+                return;
+            }
+
+            callback.onComplete(bitmapElement);
+        }
+    }
+
+    /**
+     * {@link ImBitmap}Constructor
+     * @param cacheBitmapId {@link String} identifier. Unique for each CacheBitmap, and used to find them if they are cached.
+     */
+    public ImBitmap(String cacheBitmapId)
+    {
+        this(cacheBitmapId, null);
+    }
+
+    ImBitmap(String cacheBitmapId, ImBitmapManager imBitmapManager)
+    {
+        this(cacheBitmapId, null, null, imBitmapManager);
+    }
+
+    /**
+     * Used by the {@link ImBitmapManager} registration: the identifier is not built until it's used, as most of the
+     * instances of a big catalog are never shown
+     * @param registryKey key of this instance in the registry of the manager
+     * @param idPrefix prefix of the identifier built from the key (see {@link ImBitmapKey#toId(String)})
+     */
+    ImBitmap(ImBitmapKey registryKey, String idPrefix, ImBitmapManager imBitmapManager)
+    {
+        this(null, registryKey, idPrefix, imBitmapManager);
+    }
+
+    private ImBitmap(String cacheBitmapId, ImBitmapKey registryKey, String idPrefix, ImBitmapManager imBitmapManager)
+    {
+        this.cacheBitmapId = cacheBitmapId;
+        this.registryKey = registryKey;
+        this.idPrefix = idPrefix;
+
+
+        originalWidth = 0;
+        originalHeight = 0;
+
+        malformed = false;
+
+        this.imBitmapManager = imBitmapManager;
+    }
+
+    /**
+     * @return the CacheBitmap identifier of this instance
+     */
+    public String getCacheBitmapId()
+    {
+        String id = cacheBitmapId;
+
+        // Built at most a few times if several threads race, always the same
+        if(id == null && registryKey != null)
+        {
+            id = registryKey.toId(idPrefix);
+            cacheBitmapId = id;
+        }
+
+        return id;
+    }
+
+    protected void setOriginalSize(int width, int height)
+    {
+        originalWidth = width;
+        originalHeight = height;
+    }
+
+    /**
+     * Called by the subclasses when they read the mime type of the source (i.e. {@link BitmapFactory.Options#outMimeType}),
+     * so {@link ImBitmapConfig#AUTO} requests of opaque formats are decoded with {@link Bitmap.Config#RGB_565} right away
+     */
+    protected void setMimeType(String mimeType)
+    {
+        if(mimeType != null)
+        {
+            this.mimeType = mimeType;
+        }
+    }
+
+    /**
+     * @return true if the subclass should read the header of the source with {@link ImBitmap#readOpacity(InputStream)}:
+     * its mime type may have transparency, it can be told from its header, and it was not read yet
+     */
+    protected boolean isOpacityUnread()
+    {
+        return !opacityRead && ImImageHeader.isReadable(mimeType);
+    }
+
+    /**
+     * Called by the subclasses in the bounds pass, after {@link ImBitmap#setMimeType(String)}, so {@link ImBitmapConfig#AUTO}
+     * requests of opaque PNG and WebP images are decoded with {@link Bitmap.Config#RGB_565} right away
+     * @param source stream at the start of the source. It's not closed.
+     */
+    protected void readOpacity(InputStream source)
+    {
+        try
+        {
+            opaque = ImImageHeader.isOpaque(mimeType, source);
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Could not read the header of " + getCacheBitmapId(), e);
+        }
+        finally
+        {
+            opacityRead = true;
+        }
+    }
+
+    /**
+     * @return the {@link Bitmap.Config} the subclasses must decode with in {@link ImBitmap#retrieveBitmap(int, int)},
+     * as requested by the caller (see {@link ImBitmapConfig}). Must be called after {@link ImBitmap#setMimeType(String)}.
+     */
+    protected Bitmap.Config getDecodeConfig()
+    {
+        ImBitmapConfig config = decodePreference;
+
+        return resolveConfig(config != null ? config : ImBitmapConfig.AUTO);
+    }
+
+    /**
+     * @return the {@link Bitmap.Config} a request with that preference is decoded with, from what's known of the image
+     */
+    Bitmap.Config resolveConfig(ImBitmapConfig config)
+    {
+        switch (config)
+        {
+            case ECONOMY:
+                return ImBitmapManager.COLOR_CONFIG;
+            case QUALITY:
+                return Bitmap.Config.ARGB_8888;
+            case MASK:
+                return Bitmap.Config.ALPHA_8;
+            default:
+                return opaque || ImImageHeader.isAlwaysOpaque(mimeType) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        }
+    }
+
+    /**
+     * Decodes with {@link ImBitmap#retrieveBitmap(int, int)} and the config of the request
+     */
+    private Bitmap retrieveBitmap(int width, int height, ImBitmapConfig config)
+    {
+        return retrieveBitmap(width, height, config, false);
+    }
+
+    /**
+     * @param preview true to decode with {@link ImBitmap#retrievePreviewBitmap(int, int)} instead
+     */
+    private Bitmap retrieveBitmap(int width, int height, ImBitmapConfig config, boolean preview)
+    {
+        decodePreference = config;
+
+        try
+        {
+            return adaptConfig(preview ? retrievePreviewBitmap(width, height) : retrieveBitmap(width, height), config);
+        }
+        finally
+        {
+            decodePreference = null;
+        }
+    }
+
+    /**
+     * Fixes what the decoder could not do: masks decoded with a config other than {@link Bitmap.Config#ALPHA_8}.
+     * {@link ImBitmapConfig#AUTO} images decoded with {@link Bitmap.Config#ARGB_8888} that turn out to be opaque (formats
+     * whose header is not read, see {@link ImImageHeader}) are kept as they are, as converting them would take a second
+     * copy of the frame, and they are decoded with {@link Bitmap.Config#RGB_565} from then on.
+     */
+    Bitmap adaptConfig(Bitmap bitmap, ImBitmapConfig config)
+    {
+        if(bitmap == null)
+        {
+            return null;
+        }
+
+        Bitmap adaptedBitmap = bitmap;
+
+        if(config == ImBitmapConfig.MASK && bitmap.getConfig() != Bitmap.Config.ALPHA_8)
+        {
+            adaptedBitmap = bitmap.extractAlpha();
+        }
+        else if(config == ImBitmapConfig.AUTO && bitmap.getConfig() == Bitmap.Config.ARGB_8888 && !bitmap.hasAlpha())
+        {
+            opaque = true;
+        }
+
+        if(adaptedBitmap == null)
+        {
+            return bitmap;
+        }
+
+        if(adaptedBitmap != bitmap)
+        {
+            bitmap.recycle();
+        }
+
+        return adaptedBitmap;
+    }
+
+    protected ImBitmapElement getImBitmapElementBySize(int width, int height)
+    {
+        return getImBitmapElementBySize(width, height, null);
+    }
+
+    /**
+     * @param transformationKey key of the {@link ImBitmapTransformationChain} applied, or {@code null} for the element as decoded
+     */
+    ImBitmapElement getImBitmapElementBySize(int width, int height, String transformationKey)
+    {
+        return getImBitmapElementBySize(width, height, transformationKey, null);
+    }
+
+    /**
+     * @param config {@link Bitmap.Config} the element was requested with (see {@link ImBitmap#resolveConfig(ImBitmapConfig)}),
+     * or {@code null} for any
+     */
+    ImBitmapElement getImBitmapElementBySize(int width, int height, String transformationKey, Bitmap.Config config)
+    {
+        ImBitmap contentOwner = getContentOwner();
+
+        if(contentOwner != this)
+        {
+            return contentOwner.getImBitmapElementBySize(width, height, transformationKey, config);
+        }
+
+        int factor = getResizeFactor(originalWidth, originalHeight, width, height);
+        Object elements = imBitmapElements;
+
+        // Searched without building a list, as it's done on every request
+        if(elements instanceof ImBitmapElement)
+        {
+            return isMatch((ImBitmapElement) elements, factor, transformationKey, config) ? (ImBitmapElement) elements : null;
+        }
+
+        if(elements instanceof ImBitmapElement[])
+        {
+            for(ImBitmapElement cacheBitmapElement : (ImBitmapElement[]) elements)
+            {
+                if(isMatch(cacheBitmapElement, factor, transformationKey, config))
+                {
+                    return cacheBitmapElement;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isMatch(ImBitmapElement cacheBitmapElement, int factor, String transformationKey, Bitmap.Config config)
+    {
+        return cacheBitmapElement.sizeFactor == factor && isSameKey(cacheBitmapElement.transformationKey, transformationKey) &&
+                (config == null || cacheBitmapElement.config == config);
+    }
+
+    /**
+     * @return the {@link ImBitmapElement} of this instance. Later additions or removals don't change it.
+     */
+    List<ImBitmapElement> getElementList()
+    {
+        return asList(imBitmapElements);
+    }
+
+    private static List<ImBitmapElement> asList(Object elements)
+    {
+        if(elements == null)
+        {
+            return Collections.emptyList();
+        }
+
+        if(elements instanceof ImBitmapElement)
+        {
+            return Collections.singletonList((ImBitmapElement) elements);
+        }
+
+        return Arrays.asList((ImBitmapElement[]) elements);
+    }
+
+    void addElement(ImBitmapElement element)
+    {
+        while (true)
+        {
+            Object elements = imBitmapElements;
+            Object updatedElements;
+
+            if(elements == null)
+            {
+                updatedElements = element;
+            }
+            else if(elements instanceof ImBitmapElement)
+            {
+                updatedElements = new ImBitmapElement[] {(ImBitmapElement) elements, element};
+            }
+            else
+            {
+                ImBitmapElement[] array = (ImBitmapElement[]) elements;
+                ImBitmapElement[] grownArray = Arrays.copyOf(array, array.length + 1);
+                grownArray[array.length] = element;
+                updatedElements = grownArray;
+            }
+
+            if(ELEMENTS_UPDATER.compareAndSet(this, elements, updatedElements))
+            {
+                return;
+            }
+        }
+    }
+
+    void removeElement(ImBitmapElement element)
+    {
+        while (true)
+        {
+            Object elements = imBitmapElements;
+            Object updatedElements;
+
+            if(elements == element)
+            {
+                updatedElements = null;
+            }
+            else if(elements instanceof ImBitmapElement[])
+            {
+                ImBitmapElement[] array = (ImBitmapElement[]) elements;
+                int index = Arrays.asList(array).indexOf(element);
+
+                if(index < 0)
+                {
+                    return;
+                }
+
+                if(array.length == 2)
+                {
+                    updatedElements = array[1 - index];
+                }
+                else
+                {
+                    ImBitmapElement[] shrunkArray = new ImBitmapElement[array.length - 1];
+                    System.arraycopy(array, 0, shrunkArray, 0, index);
+                    System.arraycopy(array, index + 1, shrunkArray, index, array.length - index - 1);
+                    updatedElements = shrunkArray;
+                }
+            }
+            else
+            {
+                return;
+            }
+
+            if(ELEMENTS_UPDATER.compareAndSet(this, elements, updatedElements))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes every {@link ImBitmapElement} of this instance
+     * @return the removed elements
+     */
+    List<ImBitmapElement> removeElements()
+    {
+        return asList(ELEMENTS_UPDATER.getAndSet(this, null));
+    }
+
+    /**
+     * @return the instance that loads the {@link ImBitmapElement} of this one: the owner of its shared content
+     * (see {@link ImBitmapContent}), or this instance if its content is not shared
+     */
+    ImBitmap getContentOwner()
+    {
+        ImBitmapContent sharedContent = content;
+
+        return sharedContent != null ? sharedContent.owner : this;
+    }
+
+    /**
+     * Called before decoding. Subclasses that can find their content shared with other instances
+     * (see {@link ImBitmapManager#setContentDeduplication(boolean)}) link it here.
+     * @return the instance that must load the element, this one if its content is not shared
+     */
+    protected ImBitmap linkContent()
+    {
+        return getContentOwner();
+    }
+
+    /**
+     * Moves the {@link ImBitmapElement} of this instance to the new owner of its shared content, as this one leaves it
+     */
+    void handOffElements(ImBitmap newOwner)
+    {
+        for(ImBitmapElement element : removeElements())
+        {
+            element.setParent(newOwner);
+            newOwner.addElement(element);
+        }
+    }
+
+    /**
+     * @return true if the {@link ImBitmapElement} shows this image: it belongs to this instance, or to the owner of its
+     * shared content
+     */
+    public boolean hasElement(ImBitmapElement element)
+    {
+        ImBitmap parent = element.getParent();
+
+        return parent == this || (parent != null && parent == getContentOwner());
+    }
+
+    /**
+     * @param width size the image is going to be shown at
+     * @param height size the image is going to be shown at
+     * @return size factor of the {@link ImBitmapElement} loaded for that size (see {@link ImBitmapElement#sizeFactor}),
+     * or 0 if the original size of the image is not known yet
+     */
+    public int getSizeFactor(int width, int height)
+    {
+        if(originalWidth == 0 || originalHeight == 0)
+        {
+            return 0;
+        }
+
+        return getResizeFactor(originalWidth, originalHeight, width, height);
+    }
+
+    private static boolean isSameKey(String key, String other)
+    {
+        return key == null ? other == null : key.equals(other);
+    }
+
+    private static String getTransformationKey(ImBitmapTransformationChain transformations)
+    {
+        return transformations == null || transformations.isEmpty() ? null : transformations.getKey();
+    }
+
+    /**
+     * "Links" a {@link ImBitmapElement} instance with a {@link ImBitmapView} widget.
+     * This is called each time a {@link ImBitmapElement} is assigned to be shown in a {@link ImBitmapView} to
+     * ensure that it's delete from it in the case the {@link ImBitmapManager} decides the {@link ImBitmapElement}
+     * must be destroyed, avoiding a "trying to use a recycled bitmap" RuntimeException
+     *  <p>
+     * Note that a single {@link ImBitmapElement} can be Retained with multiple {@link ImBitmapView}
+     *
+     * @param width used to identify the correct {@link ImBitmapElement}
+     * @param height used to identify the correct {@link ImBitmapElement}
+     * @param cacheBitmapView {@link ImBitmapView} that will show the {@link ImBitmapElement}
+     */
+    public void retain(int width, int height, ImBitmapView cacheBitmapView)
+    {
+        ImBitmapElement imBitmapElement = getImBitmapElementBySize(width, height);
+
+        if(imBitmapElement != null)
+        {
+            imBitmapElement.retain(cacheBitmapView);
+            Log.i("CacheBitmapManager", String.format("%s zoom: %d retainCount: %d", getCacheBitmapId(), imBitmapElement.sizeFactor, imBitmapElement.getRetainCount()));
+        }
+    }
+
+    /**
+     * "Unlinks" a {@link ImBitmapElement} instance with a {@link ImBitmapView} widget.
+     * This is called each time a {@link ImBitmapElement} previously being shown in a {@link ImBitmapView} is not being shown by it anymore.
+     *
+     * @param width used to identify the correct {@link ImBitmapElement}
+     * @param height used to identify the correct {@link ImBitmapElement}
+     * @param cacheBitmapView {@link ImBitmapView} that will no longer show the {@link ImBitmapElement}
+     */
+    public void release(int width, int height, ImBitmapView cacheBitmapView)
+    {
+        ImBitmapElement imBitmapElement = getImBitmapElementBySize(width, height);
+
+        if(imBitmapElement != null)
+        {
+            imBitmapElement.release(cacheBitmapView);
+            Log.i("CacheBitmapManager", String.format("%s zoom: %d retainCount: %d", getCacheBitmapId(), imBitmapElement.sizeFactor, imBitmapElement.getRetainCount()));
+
+            if(imBitmapElement.isSafeToDispose() && !imBitmapElement.isInGracePeriod())
+            {
+                invalidateGetBitmapOnUI();
+                Log.i("CacheBitmapManager", "SafeToDispose");
+            }
+
+        }
+    }
+
+    /**
+     * Checks if the {@link ImBitmapElement} with the width height requested, is ready to be used in the UI (already loaded)
+     *
+     * @param width used to identify the correct {@link ImBitmapElement}
+     * @param height used to identify the correct {@link ImBitmapElement}
+     * @return true the {@link ImBitmapElement} with the width height requested, is ready to be used in the UI (already loaded), false otherwise
+     */
+    public boolean isReady(int width, int height)
+    {
+        return isReady(width, height, null);
+    }
+
+    /**
+     * Like {@link ImBitmap#isReady(int, int)}, for the {@link ImBitmapElement} with the transformations applied
+     */
+    public boolean isReady(int width, int height, ImBitmapTransformationChain transformations)
+    {
+        return isReady(width, height, transformations, ImBitmapConfig.AUTO);
+    }
+
+    /**
+     * Like {@link ImBitmap#isReady(int, int, ImBitmapTransformationChain)}, for the {@link ImBitmapElement} requested with a config
+     */
+    public boolean isReady(int width, int height, ImBitmapTransformationChain transformations, ImBitmapConfig config)
+    {
+        ImBitmapElement cacheBitmapElement = getImBitmapElementBySize(width, height, getTransformationKey(transformations),
+                resolveConfig(config));
+
+        return (cacheBitmapElement != null && !cacheBitmapElement.isDisposed());
+    }
+
+    /**
+     * @return ture if this {@link ImBitmap} is malformed, flase otherwise.
+     *
+     */
+    public boolean isMalformed()
+    {
+        return malformed;
+    }
+
+    /**
+     * Abstract method to getAll the actual {@link Bitmap} for a corresponding size.
+     * Implemented by each concrete subclass.
+     */
+    public abstract Bitmap retrieveBitmap(int width, int height);
+
+    /**
+     * Decodes the low resolution version of the image used by {@link ImBitmap#getPreviewElement(int, int)}. It can be
+     * bigger than the size requested (i.e. an embedded thumbnail), as the preview is tagged with the size factor of
+     * its real size. This base implementation decodes it with {@link ImBitmap#retrieveBitmap(int, int)}
+     */
+    protected Bitmap retrievePreviewBitmap(int width, int height)
+    {
+        return retrieveBitmap(width, height);
+    }
+
+    /**
+     * @return the smallest size factor whose size the {@link Bitmap} fills. The orientation is ignored, as the
+     * {@link Bitmap} may not be rotated yet.
+     */
+    int getSizeFactorOf(Bitmap bitmap)
+    {
+        int originalLong = Math.max(originalWidth, originalHeight);
+        int originalShort = Math.min(originalWidth, originalHeight);
+        int bitmapLong = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        int bitmapShort = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        int factor = 1;
+
+        while (originalLong / factor > bitmapLong || originalShort / factor > bitmapShort)
+        {
+            factor *= 2;
+        }
+
+        return factor;
+    }
+
+    /**
+     * Orientation of the last {@link Bitmap} returned by {@link ImBitmap#retrieveBitmap(int, int)}.
+     * Subclasses that don't rotate the decoded {@link Bitmap} themselves override this, so the orientation is
+     * applied when drawing.
+     * @return one of the {@link ExifInterface} ORIENTATION_ constants. This base implementation returns always {@link ExifInterface#ORIENTATION_NORMAL}
+     */
+    protected int getOrientation()
+    {
+        return ExifInterface.ORIENTATION_NORMAL;
+    }
+
+    /**
+     * Used to check if the source of the image (i.e. a file) changed since it was loaded.
+     * Checked each time a {@link ImBitmapElement} is loaded, in background (see {@link ImBitmap#isSourceCheckDue()}
+     * for the UI thread), so implementations must be cheap.
+     * @return true if the loaded {@link ImBitmapElement} are stale. This base implementation returns always {@code false}
+     */
+    protected boolean isSourceChanged()
+    {
+        return false;
+    }
+
+    /**
+     * Called in the UI thread, so it must not touch the source (i.e. read the file).
+     * @return true if {@link ImBitmap#isSourceChanged()} would check the source now, or if a change was already found.
+     * This base implementation returns always {@code false}
+     */
+    protected boolean isSourceCheckDue()
+    {
+        return false;
+    }
+
+    /**
+     * @return key of the original encoded source of this instance, if it's kept by the encoded tier
+     * (see {@link ImEncodedBitmapCache#putSource(String, byte[])}), so its evicted elements are decoded again from it.
+     * This base implementation returns always {@code null}
+     */
+    String getEncodedSourceKey()
+    {
+        return null;
+    }
+
+    /**
+     * Checks the source in background, and invalidates this instance if it changed (the views showing it load it again).
+     * Does nothing if a check is already queued or running.
+     */
+    private void validateSourceAsync()
+    {
+        if(!VALIDATION_UPDATER.compareAndSet(this, 0, 1))
+        {
+            return;
+        }
+
+        try
+        {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        if(isSourceChanged())
+                        {
+                            invalidate();
+                        }
+                    }
+                    finally
+                    {
+                        sourceValidationInFlight = 0;
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException e)
+        {
+            sourceValidationInFlight = 0;
+        }
+    }
+
+    /**
+     * Disposes every {@link ImBitmapElement} of this instance, and forgets the original size, so the image is read again
+     * the next time it's requested. The {@link ImBitmapView} showing it load it again.
+     * <p>
+     * Used when the source of the image changed (see {@link ImBitmap#isSourceChanged()}).
+     */
+    public synchronized void invalidate()
+    {
+        for(ImBitmapElement imBitmapElement : removeElements())
+        {
+            imBitmapElement.dispose(true);
+        }
+
+        if(imBitmapManager != null)
+        {
+            imBitmapManager.removeEvicted(getCacheBitmapId());
+        }
+
+        originalWidth = 0;
+        originalHeight = 0;
+        malformed = false;
+        forgetSourceFormat();
+    }
+
+    /**
+     * Forgets the mime type and opacity of the source, i.e. because the source changed, so they are read again
+     */
+    void forgetSourceFormat()
+    {
+        mimeType = null;
+        opaque = false;
+        opacityRead = false;
+    }
+
+    /**
+     * @return the {@link Bitmap} in its original size.
+     */
+    public Bitmap retrieveBitmapFull()
+    {
+        return retrieveBitmap(originalWidth, originalHeight);
+    }
+
+    /**
+     * Retrieves the {@link ImBitmapElement} in a specific size
+     * @param width desired width of the {@link ImBitmapElement}
+     * @param height desired height of the {@link ImBitmapElement}
+     * @return the {@link ImBitmapElement} that is most near to the desired size
+     */
+    public ImBitmapElement getBitmapElement(int width, int height)
+    {
+        return getBitmapElement(width, height, null, ImBitmapConfig.AUTO);
+    }
+
+    private ImBitmapElement getDecodedBitmapElement(int width, int height, ImBitmapConfig config)
+    {
+        if(isSourceChanged())
+        {
+            invalidate();
+        }
+
+        if(isMalformed())
+        {
+            return null;
+        }
+
+        ImBitmapElement cacheBitmapElement = getImBitmapElementBySize(width, height, null, resolveConfig(config));
+
+        if(cacheBitmapElement != null)
+        {
+            if(cacheBitmapElement.isDisposed())
+            {
+                removeElement(cacheBitmapElement);
+                cacheBitmapElement = null;
+            }
+            else
+            {
+                // Requested as a regular size from now on
+                cacheBitmapElement.preview = false;
+                return cacheBitmapElement;
+            }
+        }
+
+        cacheBitmapElement = retrieveEvictedElement(width, height, null, config);
+
+        if(cacheBitmapElement != null)
+        {
+            return cacheBitmapElement;
+        }
+
+        ImBitmap contentOwner = linkContent();
+
+        if(contentOwner != this)
+        {
+            return contentOwner.getBitmapElement(width, height, null, config);
+        }
+
+        long startTime = System.nanoTime();
+        Bitmap bitmap = retrieveBitmap(width, height, config);
+
+        if(bitmap != null)
+        {
+            if(imBitmapManager != null)
+            {
+                imBitmapManager.onMemoryIncreased(bitmap.getRowBytes() * bitmap.getHeight());
+            }
+
+
+            int factor = getResizeFactor(originalWidth, originalHeight, width, height);
+
+            cacheBitmapElement = new ImBitmapElement(this, bitmap, factor, imBitmapManager);
+            cacheBitmapElement.orientation = getOrientation();
+            // Resolved after decoding, as the decode may tell the image is opaque
+            cacheBitmapElement.config = resolveConfig(config);
+            cacheBitmapElement.reloadCostNanos = System.nanoTime() - startTime;
+            addElement(cacheBitmapElement);
+        }
+
+        return cacheBitmapElement;
+    }
+
+    /**
+     * Like {@link ImBitmap#getBitmapElement(int, int)}, but with a {@link ImBitmapTransformationChain} applied.
+     * <p>
+     * The result is cached as its own {@link ImBitmapElement}, so the image is transformed only once for each size.
+     * If the chain is persistent (see {@link ImBitmapTransformationChain#persistent()}), the result is stored in the disk cache too.
+     * The transformations receive the image with its orientation already applied.
+     *
+     * @param transformations {@link ImBitmapTransformationChain} to apply. If {@code null} or empty, the image is returned as decoded.
+     */
+    public ImBitmapElement getBitmapElement(int width, int height, ImBitmapTransformationChain transformations)
+    {
+        return getBitmapElement(width, height, transformations, ImBitmapConfig.AUTO);
+    }
+
+    /**
+     * Like {@link ImBitmap#getBitmapElement(int, int, ImBitmapTransformationChain)}, decoding the image with the config
+     * preferred by the caller. The transformations receive the image decoded with that config.
+     *
+     * @param config {@link ImBitmapConfig} preferred. {@link ImBitmapConfig#AUTO} for the element requested without config.
+     */
+    public synchronized ImBitmapElement getBitmapElement(int width, int height, ImBitmapTransformationChain transformations,
+                                                         ImBitmapConfig config)
+    {
+        ImBitmap contentOwner = getContentOwner();
+
+        if(contentOwner != this)
+        {
+            return contentOwner.getBitmapElement(width, height, transformations, config);
+        }
+
+        String transformationKey = getTransformationKey(transformations);
+
+        if(transformationKey == null)
+        {
+            return getDecodedBitmapElement(width, height, config);
+        }
+
+        if(isSourceChanged())
+        {
+            invalidate();
+        }
+
+        if(isMalformed())
+        {
+            return null;
+        }
+
+        ImBitmapElement cacheBitmapElement = getImBitmapElementBySize(width, height, transformationKey, resolveConfig(config));
+
+        if(cacheBitmapElement != null)
+        {
+            if(!cacheBitmapElement.isDisposed())
+            {
+                return cacheBitmapElement;
+            }
+
+            removeElement(cacheBitmapElement);
+        }
+
+        cacheBitmapElement = retrieveEvictedElement(width, height, transformationKey, config);
+
+        if(cacheBitmapElement != null)
+        {
+            return cacheBitmapElement;
+        }
+
+        contentOwner = linkContent();
+
+        if(contentOwner != this)
+        {
+            return contentOwner.getBitmapElement(width, height, transformations, config);
+        }
+
+        long startTime = System.nanoTime();
+        Bitmap bitmap = null;
+
+        if(transformations.isPersistent())
+        {
+            bitmap = retrieveCachedTransformation(width, height, transformationKey, config);
+        }
+
+        if(bitmap == null)
+        {
+            bitmap = retrieveTransformedBitmap(width, height, transformations, config);
+
+            if(bitmap != null && transformations.isPersistent())
+            {
+                storeCachedTransformation(bitmap, width, height, transformationKey);
+            }
+        }
+
+        if(bitmap == null)
+        {
+            return null;
+        }
 
-    int originalWidth;
-    int originalHeight;
-    protected boolean malformed;
+        if(imBitmapManager != null)
+        {
+            imBitmapManager.onMemoryIncreased(bitmap.getRowBytes() * bitmap.getHeight());
+        }
 
-    List<ImBitmapElement> imBitmapElements;
-    ImBitmapManager imBitmapManager;
+        int factor = getResizeFactor(originalWidth, originalHeight, width, height);
 
-    /**
-     * Listener used when a version (specific size) of the image is requested
-     * <p>
-     * As many subclasses of {@link ImBitmap} (like {@link ImRemoteBitmap} ) must be loaded synchronously, this onItemClickListener
-     * is used to notify once the {@link ImBitmapElement} has been loaded, or if an error has occurred.
-     */
-    public interface OnGetBitmapListener
-    {
-        void onComplete(ImBitmapElement bitmapElement);
-        void onError(String message);
+        cacheBitmapElement = new ImBitmapElement(this, bitmap, factor, imBitmapManager);
+        cacheBitmapElement.transformationKey = transformationKey;
+        cacheBitmapElement.config = resolveConfig(config);
+        cacheBitmapElement.reloadCostNanos = System.nanoTime() - startTime;
+        addElement(cacheBitmapElement);
+
+        return cacheBitmapElement;
     }
 
     /**
-     * AsyncTask responsible of loading a single {@link ImBitmapElement} on background, and dispatch the corresponding event
-     * of the onItemClickListener
+     * Restores the {@link ImBitmapElement} from the parking tier (see {@link ImBitmapParking}), or decodes it from the
+     * encoded tier (see {@link ImEncodedBitmapCache}) of the {@link ImBitmapManager}, if it was evicted recently
+     * @return the new {@link ImBitmapElement}, already added to this instance, or {@code null} if it's in none of the tiers
      */
-    class ObtainBitmapTask extends AsyncTask<Void, Void, ImBitmapElement>
+    private ImBitmapElement retrieveEvictedElement(int width, int height, String transformationKey, ImBitmapConfig config)
     {
-        OnGetBitmapListener callback;
-        int width;
-        int height;
-
-        public ObtainBitmapTask(int width, int height, OnGetBitmapListener callback)
+        // The size factor can't be known before the source is read for the first time
+        if(imBitmapManager == null || originalWidth == 0 || originalHeight == 0)
         {
-            this.width = width;
-            this.height = height;
-            this.callback = callback;
+            return null;
         }
 
-        @Override
-        protected ImBitmapElement doInBackground(Void... arg0)
+        long startTime = System.nanoTime();
+        int factor = getResizeFactor(originalWidth, originalHeight, width, height);
+        Bitmap.Config resolvedConfig = resolveConfig(config);
+        String key = ImEncodedBitmapCache.keyFor(getCacheBitmapId(), factor, transformationKey, resolvedConfig);
+
+        Bitmap bitmap = null;
+        int orientation = ExifInterface.ORIENTATION_NORMAL;
+
+        ImBitmapParking.ParkedBitmap parkedBitmap = imBitmapManager.getParking().take(key);
+
+        if(parkedBitmap != null)
         {
-            return getBitmapElement(width, height);
+            bitmap = imBitmapManager.getParking().restore(parkedBitmap);
+            orientation = parkedBitmap.orientation;
         }
 
-        @Override
-        protected void onPostExecute(ImBitmapElement bitmapElement)
+        if(bitmap == null)
         {
-            if(bitmapElement == null)
+            ImEncodedBitmapCache.Entry entry = imBitmapManager.getEncodedCache().get(key);
+
+            if(entry != null)
             {
-                callback.onError("Error Retrieving bitmap");
-                return;
+                bitmap = entry.decode();
+                orientation = entry.orientation;
             }
-
-            callback.onComplete(bitmapElement);
         }
-    }
-
-    /**
-     * {@link ImBitmap}Constructor
-     * @param cacheBitmapId {@link String} identifier. Unique for each CacheBitmap, and used to find them if they are cached.
-     */
-    public ImBitmap(String cacheBitmapId)
-    {
-        this(cacheBitmapId, null);
-    }
 
-    ImBitmap(String cacheBitmapId, ImBitmapManager imBitmapManager)
-    {
-        this.cacheBitmapId = cacheBitmapId;
+        if(bitmap == null)
+        {
+            return null;
+        }
 
+        // The encoded tier may not decode masks as such
+        if(config == ImBitmapConfig.MASK)
+        {
+            bitmap = adaptConfig(bitmap, config);
+        }
 
-        originalWidth = 0;
-        originalHeight = 0;
+        imBitmapManager.onMemoryIncreased(bitmap.getRowBytes() * bitmap.getHeight());
 
-        malformed = false;
+        ImBitmapElement cacheBitmapElement = new ImBitmapElement(this, bitmap, factor, imBitmapManager);
+        cacheBitmapElement.orientation = orientation;
+        cacheBitmapElement.transformationKey = transformationKey;
+        cacheBitmapElement.config = resolvedConfig;
+        cacheBitmapElement.reloadCostNanos = System.nanoTime() - startTime;
+        addElement(cacheBitmapElement);
 
-        imBitmapElements = new ArrayList<>();
-        this.imBitmapManager = imBitmapManager;
+        return cacheBitmapElement;
     }
 
     /**
-     * @return the CacheBitmap identifier of this instance
+     * Decodes the image, applies its orientation (as the transformations expect the image as shown) and the transformations
      */
-    public String getCacheBitmapId()
+    private Bitmap retrieveTransformedBitmap(int width, int height, ImBitmapTransformationChain transformations, ImBitmapConfig config)
     {
-        return cacheBitmapId;
-    }
+        Bitmap bitmap = retrieveBitmap(width, height, config);
 
-    protected void setOriginalSize(int width, int height)
-    {
-        originalWidth = width;
-        originalHeight = height;
-    }
+        if(bitmap == null)
+        {
+            return null;
+        }
 
-    protected ImBitmapElement getImBitmapElementBySize(int width, int height)
-    {
-        int factor = getResizeFactor(originalWidth, originalHeight, width, height);
+        int orientation = getOrientation();
 
-        for(ImBitmapElement cacheBitmapElement : imBitmapElements)
+        if(orientation != ExifInterface.ORIENTATION_NORMAL)
         {
-            if(cacheBitmapElement.sizeFactor == factor)
+            Matrix matrix = new Matrix();
+            ImBitmapElement.getOrientationMatrix(orientation, bitmap.getWidth(), bitmap.getHeight(), matrix);
+
+            Bitmap orientedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+
+            if(orientedBitmap != bitmap)
             {
-                return cacheBitmapElement;
+                bitmap.recycle();
             }
+
+            bitmap = orientedBitmap;
         }
 
-        return null;
+        return transformations.apply(bitmap);
     }
 
     /**
-     * "Links" a {@link ImBitmapElement} instance with a {@link ImBitmapView} widget.
-     * This is called each time a {@link ImBitmapElement} is assigned to be shown in a {@link ImBitmapView} to
-     * ensure that it's delete from it in the case the {@link ImBitmapManager} decides the {@link ImBitmapElement}
-     * must be destroyed, avoiding a "trying to use a recycled bitmap" RuntimeException
-     *  <p>
-     * Note that a single {@link ImBitmapElement} can be Retained with multiple {@link ImBitmapView}
-     *
-     * @param width used to identify the correct {@link ImBitmapElement}
-     * @param height used to identify the correct {@link ImBitmapElement}
-     * @param cacheBitmapView {@link ImBitmapView} that will show the {@link ImBitmapElement}
+     * @return the transformed {@link Bitmap} stored in the disk cache, if it's big enough for the desired size and still valid
      */
-    public void retain(int width, int height, ImBitmapView cacheBitmapView)
+    private Bitmap retrieveCachedTransformation(int width, int height, String transformationKey, ImBitmapConfig config)
     {
-        ImBitmapElement imBitmapElement = getImBitmapElementBySize(width, height);
+        CacheImBitmapManager cacheImBitmapManager = CacheImBitmapManager.sharedManager();
 
-        if(imBitmapElement != null)
+        if(!cacheImBitmapManager.hasSource())
         {
-            imBitmapElement.retain(cacheBitmapView);
-            Log.i("CacheBitmapManager", String.format("%s zoom: %d retainCount: %d", getCacheBitmapId(), imBitmapElement.sizeFactor, imBitmapElement.boundedImBitmapViews.size()));
+            return null;
         }
-    }
 
-    /**
-     * "Unlinks" a {@link ImBitmapElement} instance with a {@link ImBitmapView} widget.
-     * This is called each time a {@link ImBitmapElement} previously being shown in a {@link ImBitmapView} is not being shown by it anymore.
-     *
-     * @param width used to identify the correct {@link ImBitmapElement}
-     * @param height used to identify the correct {@link ImBitmapElement}
-     * @param cacheBitmapView {@link ImBitmapView} that will no longer show the {@link ImBitmapElement}
-     */
-    public void release(int width, int height, ImBitmapView cacheBitmapView)
-    {
-        ImBitmapElement imBitmapElement = getImBitmapElementBySize(width, height);
+        String cacheId = getCacheBitmapId() + TRANSFORMATION_ID_SEPARATOR + transformationKey;
+        CacheImBitmapManager.CacheImBitmap cacheImBitmap = cacheImBitmapManager.getCachedImBitmap(cacheId);
 
-        if(imBitmapElement != null)
+        if(cacheImBitmap == null || cacheImBitmap.originalWidth == 0 || cacheImBitmap.originalHeight == 0)
         {
-            imBitmapElement.release(cacheBitmapView);
-            Log.i("CacheBitmapManager", String.format("%s zoom: %d retainCount: %d", getCacheBitmapId(), imBitmapElement.sizeFactor, imBitmapElement.boundedImBitmapViews.size()));
+            return null;
+        }
 
-            if(imBitmapElement.isSafeToDispose())
-            {
-                invalidateGetBitmapOnUI();
-                Log.i("CacheBitmapManager", "SafeToDispose");
-            }
+        if(!isCacheImBitmapValid(cacheImBitmap))
+        {
+            cacheImBitmapManager.deleteCachedImBitmap(cacheId);
+            return null;
+        }
+
+        int factor = getResizeFactor(cacheImBitmap.originalWidth, cacheImBitmap.originalHeight, width, height);
+
+        if(cacheImBitmap.sizeFactor > factor)
+        {
+            return null;
+        }
 
+        byte[] data = cacheImBitmapManager.getCachedImBitmapData(cacheImBitmap.dataId);
+
+        if(data == null)
+        {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = resolveConfig(config);
+        options.inSampleSize = factor / cacheImBitmap.sizeFactor;
+
+        Bitmap bitmap = adaptConfig(BitmapFactory.decodeByteArray(data, 0, data.length, options), config);
+
+        if(bitmap != null && originalWidth == 0)
+        {
+            setOriginalSize(cacheImBitmap.originalWidth, cacheImBitmap.originalHeight);
         }
+
+        return bitmap;
     }
 
-    /**
-     * Checks if the {@link ImBitmapElement} with the width height requested, is ready to be used in the UI (already loaded)
-     *
-     * @param width used to identify the correct {@link ImBitmapElement}
-     * @param height used to identify the correct {@link ImBitmapElement}
-     * @return true the {@link ImBitmapElement} with the width height requested, is ready to be used in the UI (already loaded), false otherwise
-     */
-    public boolean isReady(int width, int height)
+    private void storeCachedTransformation(Bitmap bitmap, int width, int height, String transformationKey)
     {
-        ImBitmapElement cacheBitmapElement = getImBitmapElementBySize(width, height);
+        CacheImBitmapManager cacheImBitmapManager = CacheImBitmapManager.sharedManager();
 
-        return (cacheBitmapElement != null && !cacheBitmapElement.isDisposed());
+        if(!cacheImBitmapManager.hasSource() || originalWidth == 0 || originalHeight == 0)
+        {
+            return;
+        }
+
+        CacheImBitmapManager.CacheImBitmap cacheImBitmap = new CacheImBitmapManager.CacheImBitmap();
+        cacheImBitmap.id = getCacheBitmapId() + TRANSFORMATION_ID_SEPARATOR + transformationKey;
+        cacheImBitmap.sizeFactor = getResizeFactor(originalWidth, originalHeight, width, height);
+        cacheImBitmap.originalWidth = originalWidth;
+        cacheImBitmap.originalHeight = originalHeight;
+        setCacheImBitmapVersion(cacheImBitmap);
+
+        cacheImBitmapManager.insertCacheImBitmap(bitmap, cacheImBitmap);
     }
 
     /**
-     * @return ture if this {@link ImBitmap} is malformed, flase otherwise.
-     *
+     * Used to discard stale entries of the disk cache.
+     * @return true if the {@link CacheImBitmapManager.CacheImBitmap} was created from the current version of the source.
+     * This base implementation returns always {@code true}
      */
-    public boolean isMalformed()
+    protected boolean isCacheImBitmapValid(CacheImBitmapManager.CacheImBitmap cacheImBitmap)
     {
-        return malformed;
+        return true;
     }
 
     /**
-     * Abstract method to getAll the actual {@link Bitmap} for a corresponding size.
-     * Implemented by each concrete subclass.
-     */
-    public abstract Bitmap retrieveBitmap(int width, int height);
-
-    /**
-     * @return the {@link Bitmap} in its original size.
+     * Stores the current version of the source in a {@link CacheImBitmapManager.CacheImBitmap} about to be inserted in the disk cache,
+     * to be checked by {@link ImBitmap#isCacheImBitmapValid(CacheImBitmapManager.CacheImBitmap)}. This base implementation does nothing.
      */
-    public Bitmap retrieveBitmapFull()
+    protected void setCacheImBitmapVersion(CacheImBitmapManager.CacheImBitmap cacheImBitmap)
     {
-        return retrieveBitmap(originalWidth, originalHeight);
     }
 
     /**
-     * Retrieves the {@link ImBitmapElement} in a specific size
-     * @param width desired width of the {@link ImBitmapElement}
-     * @param height desired height of the {@link ImBitmapElement}
-     * @return the {@link ImBitmapElement} that is most near to the desired size
+     * Retrieves a low resolution version of the image, to be shown while the {@link ImBitmapElement} of the desired size is loaded.
+     * <p>
+     * If there's already a loaded {@link ImBitmapElement} of any size, the biggest one is used. Otherwise, the image is decoded
+     * {@link ImBitmap#PREVIEW_FACTOR} times smaller than the desired size, which is much faster than a full decode.
+     * The resulting {@link ImBitmapElement} is marked as a preview (see {@link ImBitmapElement#isPreview()}).
+     *
+     * @param width desired width of the final {@link ImBitmapElement}
+     * @param height desired height of the final {@link ImBitmapElement}
+     * @return a {@link ImBitmapElement} to be used as preview, or {@code null} if the image couldn't be loaded
      */
-    public ImBitmapElement getBitmapElement(int width, int height)
+    public synchronized ImBitmapElement getPreviewElement(int width, int height)
     {
+        ImBitmap contentOwner = getContentOwner();
+
+        if(contentOwner != this)
+        {
+            return contentOwner.getPreviewElement(width, height);
+        }
+
         if(isMalformed())
         {
             return null;
         }
 
-        ImBitmapElement cacheBitmapElement = getImBitmapElementBySize(width, height);
+        ImBitmapElement residentElement = null;
 
-        if(cacheBitmapElement != null)
+        for(ImBitmapElement imBitmapElement : getElementList())
         {
-            if(cacheBitmapElement.isDisposed())
-            {
-                imBitmapElements.remove(cacheBitmapElement);
-                cacheBitmapElement = null;
-            }
-            else
+            if(!imBitmapElement.isDisposed() && (residentElement == null || imBitmapElement.sizeFactor < residentElement.sizeFactor))
             {
-                return cacheBitmapElement;
+                residentElement = imBitmapElement;
             }
         }
 
+        if(residentElement != null)
+        {
+            return residentElement;
+        }
+
+        contentOwner = linkContent();
+
+        if(contentOwner != this)
+        {
+            return contentOwner.getPreviewElement(width, height);
+        }
+
+        int previewWidth = Math.max(1, width / PREVIEW_FACTOR);
+        int previewHeight = Math.max(1, height / PREVIEW_FACTOR);
 
-        Bitmap bitmap = retrieveBitmap(width, height);
+        long startTime = System.nanoTime();
+        Bitmap bitmap = retrieveBitmap(previewWidth, previewHeight, ImBitmapConfig.AUTO, true);
 
-        if(bitmap != null)
+        if(bitmap == null)
         {
-            if(imBitmapManager != null)
-            {
-                imBitmapManager.onMemoryIncreased(bitmap.getRowBytes() * bitmap.getHeight());
-            }
+            return null;
+        }
 
+        if(imBitmapManager != null)
+        {
+            imBitmapManager.onMemoryIncreased(bitmap.getRowBytes() * bitmap.getHeight());
+        }
 
-            int factor = getResizeFactor(originalWidth, originalHeight, width, height);
+        // From its real size, as it can be bigger than the size requested
+        int factor = getSizeFactorOf(bitmap);
 
-            cacheBitmapElement = new ImBitmapElement(this, bitmap, factor, imBitmapManager);
-            imBitmapElements.add(cacheBitmapElement);
+        ImBitmapElement previewElement = new ImBitmapElement(this, bitmap, factor, imBitmapManager);
+        previewElement.preview = true;
+        previewElement.config = resolveConfig(ImBitmapConfig.AUTO);
+        previewElement.orientation = getOrientation();
+        previewElement.reloadCostNanos = System.nanoTime() - startTime;
+        addElement(previewElement);
+
+        return previewElement;
+    }
+
+    /**
+     * Like {@link ImBitmap#getBitmapAsync(int, int, OnGetBitmapListener)} but for {@link ImBitmap#getPreviewElement(int, int)}
+     * <p>
+     * Used to implement a progressive load: once the preview is shown, the desired size is requested with
+     * {@link ImBitmap#getBitmapAsync(int, int, OnGetBitmapListener)}
+     */
+    public AsyncTask getPreviewAsync(int width, int height, OnGetBitmapListener callback)
+    {
+        if(obtainBitmapTask != null)
+        {
+            if(obtainBitmapTask.getStatus() != AsyncTask.Status.FINISHED && !obtainBitmapTask.isCancelled())
+            {
+                obtainBitmapTask.cancel(true);
+            }
+
+            obtainBitmapTask = null;
         }
 
-        return cacheBitmapElement;
+        obtainBitmapTask = new ObtainBitmapTask(width, height, true, callback);
+        obtainBitmapTask.execute();
+
+        return obtainBitmapTask;
     }
 
     /**
@@ -298,6 +1359,28 @@ public abstract class ImBitmap
      * @param callback {@link OnGetBitmapListener} to be called once the operation has finished
      */
     public AsyncTask getBitmapAsync(int width, int height, OnGetBitmapListener callback)
+    {
+        return getBitmapAsync(width, height, null, callback);
+    }
+
+    /**
+     * Like {@link ImBitmap#getBitmapAsync(int, int, OnGetBitmapListener)}, but using
+     * {@link ImBitmap#getBitmapElement(int, int, ImBitmapTransformationChain)}. The transformations run in the same background
+     * task as the decode.
+     * @param transformations {@link ImBitmapTransformationChain} to apply. Can be {@code null}
+     */
+    public AsyncTask getBitmapAsync(int width, int height, ImBitmapTransformationChain transformations, OnGetBitmapListener callback)
+    {
+        return getBitmapAsync(width, height, transformations, ImBitmapConfig.AUTO, callback);
+    }
+
+    /**
+     * Like {@link ImBitmap#getBitmapAsync(int, int, ImBitmapTransformationChain, OnGetBitmapListener)}, but using
+     * {@link ImBitmap#getBitmapElement(int, int, ImBitmapTransformationChain, ImBitmapConfig)}
+     * @param config {@link ImBitmapConfig} preferred
+     */
+    public AsyncTask getBitmapAsync(int width, int height, ImBitmapTransformationChain transformations, ImBitmapConfig config,
+                                    OnGetBitmapListener callback)
     {
         if(obtainBitmapTask != null)
         {
@@ -309,14 +1392,22 @@ public abstract class ImBitmap
             obtainBitmapTask = null;
         }
 
-        ImBitmapElement cacheBitmapElement = getImBitmapElementBySize(width, height);
+        ImBitmapElement cacheBitmapElement = getImBitmapElementBySize(width, height, getTransformationKey(transformations),
+                resolveConfig(config));
 
+        // The source is checked in background, as checking it reads the disk. If it changed, the element is shown until
+        // it's invalidated, and the views load it again then.
         if(cacheBitmapElement != null && !cacheBitmapElement.isDisposed())
         {
+            if(isSourceCheckDue())
+            {
+                validateSourceAsync();
+            }
+
             if(cacheBitmapElement.isDisposed())
             {
-                imBitmapElements.remove(cacheBitmapElement);
-                obtainBitmapTask = new ObtainBitmapTask(width, height, callback);
+                removeElement(cacheBitmapElement);
+                obtainBitmapTask = new ObtainBitmapTask(width, height, transformations, config, callback);
                 obtainBitmapTask.execute();
             }
             else
@@ -326,7 +1417,7 @@ public abstract class ImBitmap
         }
         else
         {
-            obtainBitmapTask = new ObtainBitmapTask(width, height, callback);
+            obtainBitmapTask = new ObtainBitmapTask(width, height, transformations, config, callback);
             obtainBitmapTask.execute();
         }
 
@@ -334,12 +1425,21 @@ public abstract class ImBitmap
     }
 
     /**
-     * Calls {@link ImBitmap#preload(int, int)} in a separated thread
+     * Calls {@link ImBitmap#preload(int, int)} in background.
+     * <p>
+     * If this {@link ImBitmap} belongs to a {@link ImBitmapManager}, it's scheduled with the rest of the prefetch loads,
+     * otherwise a new thread is used.
      * @param width desired width of the {@link ImBitmapElement} to be preloaded
      * @param height desired height of the {@link ImBitmapElement} to be preloaded
      */
     public void preloadAsync(final int width, final int height)
     {
+        if(imBitmapManager != null)
+        {
+            imBitmapManager.preloadAsync(this, width, height);
+            return;
+        }
+
         Thread thread = new Thread(new Runnable()
         {
             @Override
@@ -394,6 +1494,24 @@ public abstract class ImBitmap
         return cacheBitmapElement.bitmap;
     }
 
+    /**
+     * Used by {@link ImTiledBitmap} to decode regions of the image, instead of the whole image at once.
+     * @return a new {@link BitmapRegionDecoder} for this image, or {@code null} if this implementation doesn't support region decoding (default)
+     * @throws IOException if the image data could not be read
+     */
+    public BitmapRegionDecoder createRegionDecoder() throws IOException
+    {
+        return null;
+    }
+
+    /**
+     * @return every {@link ImBitmapElement} owned by this instance. Used by the {@link ImBitmapManager} to trim memory.
+     */
+    Collection<ImBitmapElement> getElements()
+    {
+        return getElementList();
+    }
+
     /**
      * Used by some implementations to getAll a Path related to the CacheBitmap
      * @return this base implementation returns always {@code null}
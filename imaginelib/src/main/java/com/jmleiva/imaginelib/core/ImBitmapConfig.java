@@ -0,0 +1,53 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.graphics.Bitmap;
+
+/**
+ * Preference of the caller for the {@link Bitmap.Config} an {@link ImBitmap} is decoded with. The config is chosen for
+ * each request (see {@link ImBitmap#getBitmapElement(int, int, ImBitmapTransformationChain, ImBitmapConfig)}), and it's part
+ * of the key of the {@link ImBitmapElement}: the same image requested with different configs gets different elements.
+ */
+public enum ImBitmapConfig
+{
+    /**
+     * Chosen from the image: opaque images (i.e. JPEG photos) are decoded with {@link Bitmap.Config#RGB_565}, 2 bytes
+     * per pixel, and images with transparency with {@link Bitmap.Config#ARGB_8888}, 4 bytes per pixel.
+     * <p>
+     * PNG and WebP images are told from their header. The rest of images that may have transparency (GIF, or unknown)
+     * are decoded with {@link Bitmap.Config#ARGB_8888} the first time; if they turn out to be opaque, they are decoded
+     * with {@link Bitmap.Config#RGB_565} from then on.
+     */
+    AUTO,
+
+    /**
+     * Always {@link ImBitmapManager#COLOR_CONFIG} ({@link Bitmap.Config#RGB_565}), even if the transparency is lost
+     */
+    ECONOMY,
+
+    /**
+     * Always {@link Bitmap.Config#ARGB_8888}, i.e. for images shown big, where the banding of 565 is noticeable
+     */
+    QUALITY,
+
+    /**
+     * Only the alpha channel, {@link Bitmap.Config#ALPHA_8}, 1 byte per pixel. For masks and shapes tinted when drawn.
+     */
+    MASK
+}
@@ -0,0 +1,65 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Image content (the encoded bytes) shared by several {@link ImBitmap} (i.e. the same picture served by a CDN under
+ * different urls), found by its digest when content deduplication is enabled
+ * (see {@link ImBitmapManager#setContentDeduplication(boolean)}).
+ * <p>
+ * One of the instances, the owner, loads the {@link ImBitmapElement} of every size; the rest of them delegate to it.
+ * The instances linked are counted: when the owner leaves (i.e. its url changes) its elements are handed to another
+ * instance, and when the last one leaves the content is forgotten, along with its disk cache entry.
+ */
+class ImBitmapContent
+{
+    final static String CACHE_ID_PREFIX = "CNT_BIT_";
+
+    final String digest;
+
+    /**
+     * Instance that loads the elements. Changed by the {@link ImBitmapManager} only.
+     */
+    volatile ImBitmap owner;
+
+    /**
+     * Instances linked, guarded by the {@link ImBitmapManager}. Its size is the reference count of the content.
+     */
+    final List<ImBitmap> members;
+
+    /**
+     * Identifier of the disk cache entry with the encoded bytes, or {@code null} if they are not stored
+     */
+    volatile String cacheId;
+
+    ImBitmapContent(String digest, ImBitmap owner)
+    {
+        this.digest = digest;
+        this.owner = owner;
+
+        members = new ArrayList<>(2);
+    }
+
+    int getReferenceCount()
+    {
+        return members.size();
+    }
+}
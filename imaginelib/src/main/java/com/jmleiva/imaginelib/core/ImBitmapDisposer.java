@@ -0,0 +1,169 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Disposes {@link ImBitmapElement} in batches.
+ * <p>
+ * Elements bound to a {@link com.jmleiva.imaginelib.view.ImBitmapView} must be unset from their views in the UI thread
+ * before being recycled, so they are queued and the whole queue is drained once per frame (with a single
+ * {@link Choreographer} callback, or a single {@link Handler} message before API 16).
+ * Elements not bound to any view, disposed from a background thread, are recycled right away without touching the UI thread.
+ */
+final class ImBitmapDisposer
+{
+    private static class Disposal
+    {
+        final ImBitmapElement element;
+        final boolean reloadViews;
+
+        Disposal(ImBitmapElement element, boolean reloadViews)
+        {
+            this.element = element;
+            this.reloadViews = reloadViews;
+        }
+    }
+
+    private final static ConcurrentLinkedQueue<Disposal> pendingDisposals = new ConcurrentLinkedQueue<>();
+    private final static AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private static Handler mainHandler;
+
+    private ImBitmapDisposer()
+    {
+    }
+
+    /**
+     * @param element {@link ImBitmapElement} to dispose, already marked as disposing
+     * @param reloadViews true if the bound views should load the {@link ImBitmap} again, false to unset them
+     * @param unbound true if no view retained the element when it was marked. As it can't be retained once marked
+     * (see {@link ImBitmapElement#retain(com.jmleiva.imaginelib.view.ImBitmapView)}), no view can show it anymore.
+     */
+    static void dispose(ImBitmapElement element, boolean reloadViews, boolean unbound)
+    {
+        if(Looper.myLooper() != Looper.getMainLooper() && unbound)
+        {
+            element.recycleBitmap();
+            return;
+        }
+
+        pendingDisposals.add(new Disposal(element, reloadViews));
+        scheduleDrain();
+    }
+
+    /**
+     * @return number of {@link ImBitmapElement} waiting for the next drain
+     */
+    static int getPendingCount()
+    {
+        return pendingDisposals.size();
+    }
+
+    private static void scheduleDrain()
+    {
+        if(!drainScheduled.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+        {
+            getMainHandler().post(DRAIN_RUNNABLE);
+        }
+        else if(Looper.myLooper() == Looper.getMainLooper())
+        {
+            FrameDrainer.post();
+        }
+        else
+        {
+            // Choreographer must be used from the UI thread
+            getMainHandler().post(POST_FRAME_RUNNABLE);
+        }
+    }
+
+    private static synchronized Handler getMainHandler()
+    {
+        if(mainHandler == null)
+        {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+
+        return mainHandler;
+    }
+
+    /**
+     * Disposes every queued {@link ImBitmapElement}. Called in the UI thread.
+     */
+    private static void drain()
+    {
+        // Cleared first, so disposals queued while draining schedule a new drain
+        drainScheduled.set(false);
+
+        Disposal disposal;
+
+        while ((disposal = pendingDisposals.poll()) != null)
+        {
+            disposal.element.disposeOnUI(disposal.reloadViews);
+        }
+    }
+
+    private final static Runnable DRAIN_RUNNABLE = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            drain();
+        }
+    };
+
+    private final static Runnable POST_FRAME_RUNNABLE = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            FrameDrainer.post();
+        }
+    };
+
+    /**
+     * Kept apart so {@link Choreographer} is never loaded before API 16
+     */
+    private static class FrameDrainer implements Choreographer.FrameCallback
+    {
+        private final static FrameDrainer INSTANCE = new FrameDrainer();
+
+        static void post()
+        {
+            Choreographer.getInstance().postFrameCallback(INSTANCE);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos)
+        {
+            drain();
+        }
+    }
+}
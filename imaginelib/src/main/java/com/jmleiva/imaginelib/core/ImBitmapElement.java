@@ -18,13 +18,16 @@ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
 package com.jmleiva.imaginelib.core;
 
 import android.graphics.Bitmap;
-import android.os.Handler;
-import android.os.Looper;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.media.ExifInterface;
 
 import com.jmleiva.imaginelib.view.ImBitmapView;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * This class represents a single "version" (size) of a {@link Bitmap}
@@ -32,11 +35,56 @@ import java.util.List;
 public class ImBitmapElement
 {
 
-    private ImBitmap parent;
-    protected Bitmap bitmap;
+    /**
+     * Changed only when the content of its parent is handed to another {@link ImBitmap} (see {@link ImBitmapContent})
+     */
+    private volatile ImBitmap parent;
+    protected volatile Bitmap bitmap;
+    volatile boolean disposing;
+
+    /**
+     * Set when disposed by {@link ImBitmapManager#trimMemory()}, so the {@link Bitmap} is encoded
+     * (see {@link ImEncodedBitmapCache}) before being recycled
+     */
+    volatile boolean evicted;
+
+    /**
+     * Set when evicted while it's likely to be shown again soon, so its pixels are parked (see {@link ImBitmapParking})
+     * instead of encoded
+     */
+    volatile boolean parkable;
+    volatile boolean inGracePeriod;
+    long graceDeadline;
     protected long lastUsedTimestamp;
+
+    /**
+     * Time it took to load this element (fetch, decode and transformations), used to estimate the cost of loading it
+     * again if it's evicted. See {@link ImCostAwareEvictionPolicy}
+     */
+    long reloadCostNanos;
     public int sizeFactor;
-    List<ImBitmapView> boundedImBitmapViews;
+    boolean preview;
+    int orientation;
+
+    /**
+     * Key of the {@link ImBitmapTransformationChain} applied to the {@link Bitmap}, or {@code null} if it's not transformed
+     */
+    String transformationKey;
+
+    /**
+     * {@link Bitmap.Config} the element was requested with (see {@link ImBitmapConfig}), part of its key
+     */
+    Bitmap.Config config;
+
+    /**
+     * Open handles by view. Weak keys, so a collected view never keeps this element retained.
+     */
+    final Map<ImBitmapView, ImBitmapHandle> boundHandles;
+
+    /**
+     * Open handles not linked to any view (see {@link ImBitmapElement#retain()})
+     */
+    private int viewlessHandleCount;
     ImBitmapManager imBitmapManager;
 
     /**
@@ -51,12 +99,15 @@ public class ImBitmapElement
             throw new IllegalArgumentException();
         }
 
-        lastUsedTimestamp = 0;
+        // Counts as just used, so prefetched elements and the ones waiting to be bound are not the first ones trimmed
+        lastUsedTimestamp = System.nanoTime();
         this.sizeFactor = sizeFactor;
         this.bitmap = bitmap;
         this.parent = parent;
+        this.imBitmapManager = imBitmapManager;
+        this.orientation = ExifInterface.ORIENTATION_NORMAL;
 
-        boundedImBitmapViews = new ArrayList<>();
+        boundHandles = new WeakHashMap<>();
     }
 
     /**
@@ -67,31 +118,273 @@ public class ImBitmapElement
         return parent;
     }
 
-        /**
-     * Links this {@link ImBitmapElement} with a {@link ImBitmapView}
+    void setParent(ImBitmap parent)
+    {
+        this.parent = parent;
+    }
+
+    /**
+     * Links this {@link ImBitmapElement} with a {@link ImBitmapView}.
+     * <p>
+     * A view is linked only once: if it's already linked, its current handle is returned.
      * @see  {@link ImBitmap#retain(int, int, ImBitmapView)}
+     * @return the {@link ImBitmapHandle} to be closed once the view stops showing this element, or {@code null} if it's
+     * being disposed (its {@link Bitmap} may be recycled already), so the view must load the {@link ImBitmap} again
+     */
+    public synchronized ImBitmapHandle retain(ImBitmapView imBitmapView)
+    {
+        if(disposing)
+        {
+            return null;
+        }
+
+        lastUsedTimestamp = System.nanoTime();
+
+        ImBitmapHandle handle = boundHandles.get(imBitmapView);
+
+        if(handle == null)
+        {
+            handle = new ImBitmapHandle(this, imBitmapView);
+            boundHandles.put(imBitmapView, handle);
+        }
+
+        if(inGracePeriod && imBitmapManager != null)
+        {
+            imBitmapManager.getGracePeriod().remove(this);
+        }
+
+        return handle;
+    }
+
+    /**
+     * Like {@link ImBitmapElement#retain(ImBitmapView)}, for views that are not a {@link ImBitmapView}
+     * (i.e. {@link com.jmleiva.imaginelib.view.ImTiledBitmapView}). Every call opens a new handle, as it's not linked to any view.
+     * @return the {@link ImBitmapHandle} to be closed once the view stops showing this element, or {@code null} if it's
+     * being disposed
      */
-    public void retain(ImBitmapView ImBitmapView)
+    public synchronized ImBitmapHandle retain()
     {
+        if(disposing)
+        {
+            return null;
+        }
+
         lastUsedTimestamp = System.nanoTime();
-        boundedImBitmapViews.add(ImBitmapView);
+        viewlessHandleCount++;
+
+        if(inGracePeriod && imBitmapManager != null)
+        {
+            imBitmapManager.getGracePeriod().remove(this);
+        }
+
+        return new ImBitmapHandle(this, null);
     }
 
     /**
-     * Unlinks this {@link ImBitmapElement} from a {@link ImBitmapView}
+     * Unlinks this {@link ImBitmapElement} from a {@link ImBitmapView}. Same as closing its handle.
      * @see  {@link ImBitmap#release(int width, int height, ImBitmapView ImBitmapView)}
      */
-    public void release(ImBitmapView ImBitmapView)
+    public void release(ImBitmapView imBitmapView)
     {
-        boundedImBitmapViews.remove(ImBitmapView);
+        ImBitmapHandle handle;
+
+        synchronized (this)
+        {
+            handle = boundHandles.get(imBitmapView);
+        }
+
+        if(handle != null)
+        {
+            handle.close();
+        }
+    }
+
+    /**
+     * Called by {@link ImBitmapHandle#close()}
+     */
+    synchronized void onHandleClosed(ImBitmapHandle handle)
+    {
+        ImBitmapView imBitmapView = handle.getView();
+
+        if(handle.isViewless())
+        {
+            viewlessHandleCount--;
+        }
+        else if(imBitmapView != null && boundHandles.get(imBitmapView) == handle)
+        {
+            // If the view was collected, the entry is already gone
+            boundHandles.remove(imBitmapView);
+        }
+
+        if(boundHandles.isEmpty() && viewlessHandleCount == 0 && imBitmapManager != null)
+        {
+            imBitmapManager.getGracePeriod().onReleased(this);
+        }
+    }
+
+    /**
+     * Leaves this {@link ImBitmapElement}, if it's not retained by any {@link ImBitmapView}, first in line to be trimmed,
+     * ending its grace period. Used when the screen that showed it is closed (see {@link ImBitmapScope#close()}).
+     */
+    synchronized void deprioritize()
+    {
+        if(!boundHandles.isEmpty() || viewlessHandleCount > 0)
+        {
+            return;
+        }
+
+        lastUsedTimestamp = 0;
+
+        if(inGracePeriod && imBitmapManager != null)
+        {
+            imBitmapManager.getGracePeriod().remove(this);
+        }
     }
 
     /**
-     * @return true if this {@link ImBitmapElement} is not linked (retained) to any {@link ImBitmapView}, false otherwise
+     * @return true if this {@link ImBitmapElement} was released by its last {@link ImBitmapView} recently, so it's
+     * kept for a while in case it's shown again. See {@link ImBitmapManager#setGracePeriod(long, int)}
      */
-    public boolean isSafeToDispose()
+    public boolean isInGracePeriod()
     {
-        return boundedImBitmapViews.size() <= 0;
+        return inGracePeriod;
+    }
+
+    /**
+     * @return number of {@link ImBitmapView} linked to this {@link ImBitmapElement}, plus the open handles not linked to any view
+     */
+    public synchronized int getRetainCount()
+    {
+        return boundHandles.size() + viewlessHandleCount;
+    }
+
+    /**
+     * @return true if this {@link ImBitmapElement} is not linked (retained) to any {@link ImBitmapView}, nor retained
+     * by an open handle not linked to any view, false otherwise
+     */
+    public synchronized boolean isSafeToDispose()
+    {
+        return boundHandles.isEmpty() && viewlessHandleCount == 0;
+    }
+
+    /**
+     * @return true if this {@link ImBitmapElement} is a low resolution version of the image, loaded to be shown
+     * while the requested size is being loaded (see {@link ImBitmap#getPreviewAsync(int, int, ImBitmap.OnGetBitmapListener)}).
+     * Preview elements are the first ones to be disposed when memory is trimmed.
+     */
+    public boolean isPreview()
+    {
+        return preview;
+    }
+
+    /**
+     * @return the key of the {@link ImBitmapTransformationChain} applied to this element, or {@code null} if it's not transformed
+     */
+    public String getTransformationKey()
+    {
+        return transformationKey;
+    }
+
+    /**
+     * The {@link Bitmap} is stored as decoded. When the source has a different orientation (like a rotated camera photo),
+     * it must be applied when drawing (see {@link ImBitmapElement#getOrientationMatrix(Matrix)}).
+     * @return the orientation of the image, as one of the {@link ExifInterface} ORIENTATION_ constants
+     */
+    public int getOrientation()
+    {
+        return orientation;
+    }
+
+    /**
+     * @return true if the orientation of this instance swaps width and height (rotated 90 or 270 degrees, transposed or transversed)
+     */
+    public boolean isOrientationSwapped()
+    {
+        return orientation == ExifInterface.ORIENTATION_ROTATE_90 ||
+                orientation == ExifInterface.ORIENTATION_ROTATE_270 ||
+                orientation == ExifInterface.ORIENTATION_TRANSPOSE ||
+                orientation == ExifInterface.ORIENTATION_TRANSVERSE;
+    }
+
+    /**
+     * @return width of the image once the orientation is applied
+     */
+    public int getOrientedWidth()
+    {
+        return isOrientationSwapped() ? bitmap.getHeight() : bitmap.getWidth();
+    }
+
+    /**
+     * @return height of the image once the orientation is applied
+     */
+    public int getOrientedHeight()
+    {
+        return isOrientationSwapped() ? bitmap.getWidth() : bitmap.getHeight();
+    }
+
+    /**
+     * Sets the matrix that maps the {@link Bitmap} (as decoded) to the image with its orientation applied,
+     * with the top left corner in (0, 0)
+     * @param matrix {@link Matrix} to be updated
+     */
+    public void getOrientationMatrix(Matrix matrix)
+    {
+        getOrientationMatrix(orientation, bitmap.getWidth(), bitmap.getHeight(), matrix);
+    }
+
+    /**
+     * Like {@link ImBitmapElement#getOrientationMatrix(Matrix)}, for any orientation and size
+     * @param orientation one of the {@link ExifInterface} ORIENTATION_ constants
+     * @param width width of the {@link Bitmap}, as decoded
+     * @param height height of the {@link Bitmap}, as decoded
+     * @param matrix {@link Matrix} to be updated
+     */
+    static void getOrientationMatrix(int orientation, int width, int height, Matrix matrix)
+    {
+        matrix.reset();
+
+        switch (orientation)
+        {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postRotate(180);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(-90);
+                break;
+            default:
+                return;
+        }
+
+        // Move the result back to the origin
+        RectF bounds = new RectF(0, 0, width, height);
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+    }
+
+    /**
+     * @return time in nanos it took to load this element, i.e. the estimated cost of loading it again if it's evicted
+     */
+    public long getReloadCostNanos()
+    {
+        return reloadCostNanos;
     }
 
     /**
@@ -106,35 +399,189 @@ public class ImBitmapElement
      * Destroys the ImBitmapElement.
      * <p>
      * If bound to any {@link ImBitmapView}, it's unset and unbounded. Then the Bitmap is recycled.
+     * <p>
+     * Disposals are batched and performed once per frame in the UI thread (see {@link ImBitmapDisposer}), except for
+     * elements not bound to any view disposed from a background thread, that are recycled right away.
      */
     public void dispose()
     {
-        Handler mHandler = new Handler(Looper.getMainLooper());
+        dispose(false);
+    }
+
+    /**
+     * Like {@link ImBitmapElement#dispose()}, used by {@link ImBitmapManager#trimMemory()}: the {@link Bitmap} is kept encoded
+     * in memory (see {@link ImEncodedBitmapCache}), so the element can be decoded again cheaply.
+     * Previews are not kept, as the regular sizes are loaded instead.
+     * @param likelyToReturn true if the element is likely to be shown again soon (i.e. it's in grace period), so its pixels
+     * are parked (see {@link ImBitmapParking}) instead of encoded
+     */
+    void evict(boolean likelyToReturn)
+    {
+        evicted = isEncodable() && !preview;
+        parkable = likelyToReturn;
+        dispose(false);
+    }
+
+    /**
+     * @return true if this kind of element can be restored from the {@link ImEncodedBitmapCache}
+     */
+    boolean isEncodable()
+    {
+        return true;
+    }
+
+    /**
+     * Like {@link ImBitmapElement#dispose()}, but the bound {@link ImBitmapView} can load the {@link ImBitmap} again,
+     * instead of being unset. Used by {@link ImBitmap#invalidate()}.
+     * @param reloadViews true to reload the bound {@link ImBitmapView}, false to unset them
+     */
+    void dispose(boolean reloadViews)
+    {
+        boolean unbound;
+
+        // Checked and marked atomically with the bound handles, as retain fails once it's marked
+        synchronized (this)
+        {
+            if(disposing)
+            {
+                return;
+            }
+
+            disposing = true;
+            unbound = isSafeToDispose();
+        }
+
+        if(inGracePeriod && imBitmapManager != null)
+        {
+            imBitmapManager.getGracePeriod().remove(this);
+        }
+
+        ImBitmapDisposer.dispose(this, reloadViews, unbound);
+    }
+
+    /**
+     * Disposes this {@link ImBitmapElement} right away (skipping its grace period), unless a {@link ImBitmapView} still shows it.
+     * Used to drop elements too large for the views that showed them.
+     * @return true if it's being disposed, false if it's still retained by some {@link ImBitmapView}
+     */
+    public boolean disposeIfUnused()
+    {
+        // Checked and marked atomically with the bound handles
+        synchronized (this)
+        {
+            if(disposing || !isSafeToDispose())
+            {
+                return false;
+            }
+
+            disposing = true;
+        }
+
+        if(inGracePeriod && imBitmapManager != null)
+        {
+            imBitmapManager.getGracePeriod().remove(this);
+        }
+
+        ImBitmapDisposer.dispose(this, false, true);
+        return true;
+    }
+
+    /**
+     * Second step of {@link ImBitmapElement#dispose()}, called by {@link ImBitmapDisposer} in the UI thread:
+     * the bound {@link ImBitmapView} are unset (or reloaded), and then the Bitmap is recycled.
+     */
+    void disposeOnUI(boolean reloadViews)
+    {
+        List<ImBitmapView> tempBoundImBitmapViews;
+
+        synchronized (this)
+        {
+            tempBoundImBitmapViews = new ArrayList<ImBitmapView>(boundHandles.keySet());
+        }
 
-        mHandler.post(new Runnable()
+        for(ImBitmapView imBitmapView : tempBoundImBitmapViews)
         {
-            @Override
-            public void run()
+            if(reloadViews)
             {
-                List<ImBitmapView> tempBoundImBitmapViews = new ArrayList<ImBitmapView>(boundedImBitmapViews);
-                for(ImBitmapView imBitmapView : tempBoundImBitmapViews)
-                {
-                    imBitmapView.removeImBitmap();
-                }
-
-                if(bitmap != null && !bitmap.isRecycled())
-                {
-                    if(imBitmapManager != null)
-                    {
-                        imBitmapManager.onMemoryDecreased(bitmap.getRowBytes() * bitmap.getHeight());
-                    }
-
-                    bitmap.recycle();
-                }
-
-                bitmap = null;
+                imBitmapView.reloadImBitmap();
             }
-        });
+            else
+            {
+                imBitmapView.removeImBitmap();
+            }
+        }
+
+        recycleBitmap();
+    }
+
+    /**
+     * Recycles the Bitmap, only once, and notifies the {@link ImBitmapManager}. Can be called from any thread.
+     */
+    void recycleBitmap()
+    {
+        Bitmap recycledBitmap;
+
+        // The manager is notified outside the lock, as it locks this instance while trimming
+        synchronized (this)
+        {
+            recycledBitmap = bitmap;
+            bitmap = null;
+        }
+
+        if(recycledBitmap == null || recycledBitmap.isRecycled())
+        {
+            return;
+        }
+
+        if(evicted && imBitmapManager != null)
+        {
+            // Released once parked or encoded
+            if(parkable && imBitmapManager.getParking().isEnabled() && imBitmapManager.getParking().parkAndRelease(this, recycledBitmap))
+            {
+                return;
+            }
+
+            if(imBitmapManager.getEncodedCache().isEnabled() && imBitmapManager.getEncodedCache().encodeAndRecycle(this, recycledBitmap))
+            {
+                return;
+            }
+        }
+
+        recycle(recycledBitmap);
+    }
+
+    /**
+     * Notifies the {@link ImBitmapManager} and recycles the {@link Bitmap}, already detached from this instance
+     */
+    void recycle(Bitmap recycledBitmap)
+    {
+        recycle(recycledBitmap, null);
+    }
+
+    /**
+     * Like {@link ImBitmapElement#recycle(Bitmap)}, but the {@link Bitmap} is left in a pool to be reused if possible
+     * @param bitmapPool {@link ImBitmapPool} where the bitmap is left. Can be {@code null}
+     */
+    void recycle(Bitmap recycledBitmap, ImBitmapPool bitmapPool)
+    {
+        if(imBitmapManager != null)
+        {
+            imBitmapManager.onMemoryDecreased(recycledBitmap.getRowBytes() * recycledBitmap.getHeight());
+        }
+
+        if(bitmapPool == null || !bitmapPool.offer(recycledBitmap))
+        {
+            recycledBitmap.recycle();
+        }
+    }
+
+    /**
+     * @return size in bytes of the Bitmap, or 0 if this instance has been disposed
+     */
+    public long getByteCount()
+    {
+        Bitmap bitmap = this.bitmap;
+        return bitmap != null ? bitmap.getRowBytes() * bitmap.getHeight() : 0;
     }
 
     /**
@@ -150,6 +597,7 @@ public class ImBitmapElement
      */
     public boolean isDisposed()
     {
-        return bitmap == null;
+        // Pending disposals are not reused, although the Bitmap can still be drawn until they are performed
+        return disposing || bitmap == null;
     }
 }
\ No newline at end of file
@@ -0,0 +1,227 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the {@link ImBitmapElement} released by their last view "warm" for a while, so a view that shows them again soon
+ * (i.e. a pager, or a rotation) doesn't need to decode them again. While in grace period, an element is trimmed after
+ * the rest of the safe to dispose ones (see {@link ImBitmapManager#trimMemory()}).
+ * <p>
+ * The grace period ends after some time, or when there are too many elements in grace period (the oldest ones end first).
+ * Expirations are handled by a single hashed timer wheel, that ticks only while there are elements in grace period,
+ * instead of a timer per element.
+ */
+class ImBitmapGracePeriod
+{
+    /**
+     * Resolution of the wheel in millis
+     */
+    final static long TICK_MILLIS = 250;
+
+    private final static int WHEEL_SLOTS = 16;
+
+    private long graceMillis;
+    private int maxElements;
+
+    private final List<List<ImBitmapElement>> wheel;
+    private int currentSlot;
+
+    /**
+     * Elements in grace period, oldest first
+     */
+    private final Set<ImBitmapElement> gracedElements;
+
+    private final Handler handler;
+    private boolean ticking;
+
+    private final Runnable tickRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            tick();
+        }
+    };
+
+    /**
+     * @param graceMillis time in millis an element is kept in grace period. 0 to disable the time limit.
+     * @param maxElements max number of elements in grace period at the same time. 0 to disable the grace period.
+     */
+    ImBitmapGracePeriod(long graceMillis, int maxElements)
+    {
+        this.graceMillis = graceMillis;
+        this.maxElements = maxElements;
+
+        wheel = new ArrayList<>(WHEEL_SLOTS);
+
+        for(int i = 0; i < WHEEL_SLOTS; i++)
+        {
+            wheel.add(new ArrayList<ImBitmapElement>());
+        }
+
+        gracedElements = new LinkedHashSet<>();
+        handler = new Handler(Looper.getMainLooper());
+    }
+
+    synchronized void setGracePeriod(long graceMillis, int maxElements)
+    {
+        this.graceMillis = graceMillis;
+        this.maxElements = maxElements;
+
+        trimToMaxElements();
+    }
+
+    synchronized long getGraceMillis()
+    {
+        return graceMillis;
+    }
+
+    synchronized int getMaxElements()
+    {
+        return maxElements;
+    }
+
+    synchronized int getGracedCount()
+    {
+        return gracedElements.size();
+    }
+
+    /**
+     * Called when the last view of the element released it
+     */
+    synchronized void onReleased(ImBitmapElement element)
+    {
+        if(maxElements <= 0 || element.isDisposed())
+        {
+            return;
+        }
+
+        // Released again: moved to the end
+        gracedElements.remove(element);
+        gracedElements.add(element);
+        element.inGracePeriod = true;
+
+        if(graceMillis > 0)
+        {
+            element.graceDeadline = SystemClock.uptimeMillis() + graceMillis;
+            schedule(element, graceMillis);
+        }
+
+        trimToMaxElements();
+    }
+
+    /**
+     * Called when the element is retained again, or disposed. The wheel entry is ignored when reached.
+     */
+    synchronized void remove(ImBitmapElement element)
+    {
+        if(gracedElements.remove(element))
+        {
+            element.inGracePeriod = false;
+        }
+    }
+
+    private void expire(ImBitmapElement element)
+    {
+        element.inGracePeriod = false;
+    }
+
+    private void trimToMaxElements()
+    {
+        Iterator<ImBitmapElement> iterator = gracedElements.iterator();
+
+        while (gracedElements.size() > maxElements && iterator.hasNext())
+        {
+            expire(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    private void schedule(ImBitmapElement element, long delayMillis)
+    {
+        int ticks = (int) Math.min(WHEEL_SLOTS - 1, Math.max(1, (delayMillis + TICK_MILLIS - 1) / TICK_MILLIS));
+        wheel.get((currentSlot + ticks) % WHEEL_SLOTS).add(element);
+
+        if(!ticking)
+        {
+            ticking = true;
+            handler.postDelayed(tickRunnable, TICK_MILLIS);
+        }
+    }
+
+    private synchronized void tick()
+    {
+        currentSlot = (currentSlot + 1) % WHEEL_SLOTS;
+
+        List<ImBitmapElement> slot = wheel.get(currentSlot);
+        List<ImBitmapElement> dueElements = new ArrayList<>(slot);
+        slot.clear();
+
+        long now = SystemClock.uptimeMillis();
+
+        for(ImBitmapElement element : dueElements)
+        {
+            if(!element.inGracePeriod || !gracedElements.contains(element))
+            {
+                // Retained, disposed or already expired
+                continue;
+            }
+
+            if(element.graceDeadline <= now)
+            {
+                gracedElements.remove(element);
+                expire(element);
+            }
+            else
+            {
+                // Longer than a wheel turn, or released again
+                schedule(element, element.graceDeadline - now);
+            }
+        }
+
+        boolean pending = false;
+
+        for(List<ImBitmapElement> wheelSlot : wheel)
+        {
+            if(!wheelSlot.isEmpty())
+            {
+                pending = true;
+                break;
+            }
+        }
+
+        if(pending)
+        {
+            handler.postDelayed(tickRunnable, TICK_MILLIS);
+        }
+        else
+        {
+            ticking = false;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.util.Log;
+
+import com.jmleiva.imaginelib.view.ImBitmapView;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Link between a {@link ImBitmapElement} and the {@link ImBitmapView} showing it, returned by
+ * {@link ImBitmapElement#retain(ImBitmapView)}. While it's open, the {@link ImBitmapElement} is not safe to dispose.
+ * Once the view stops showing the element, the handle must be closed with {@link ImBitmapHandle#close()}.
+ * <p>
+ * The view is only weakly referenced, so a view that is collected without closing its handle doesn't keep
+ * the {@link ImBitmapElement} retained. When leak detection is enabled (debuggable apps, see
+ * {@link ImBitmapHandle#setLeakDetectionEnabled(boolean)}), those handles are reported in the log.
+ * <p>
+ * Views that are not a {@link ImBitmapView} (i.e. {@link com.jmleiva.imaginelib.view.ImTiledBitmapView}) retain the
+ * element with a handle not linked to any view (see {@link ImBitmapElement#retain()}), that they must close themselves.
+ */
+public class ImBitmapHandle
+{
+    final static String TAG = "ImBitmapHandle";
+
+    private static volatile boolean leakDetectionEnabled;
+
+    private final static ReferenceQueue<ImBitmapView> leakQueue = new ReferenceQueue<>();
+
+    /**
+     * Keeps the references reachable until they are enqueued (or the handle is closed)
+     */
+    private final static Set<ViewReference> trackedReferences = Collections.synchronizedSet(new HashSet<ViewReference>());
+
+    /**
+     * Weak reference to the view, that remembers its handle so leaks can be reported
+     */
+    private static class ViewReference extends WeakReference<ImBitmapView>
+    {
+        final ImBitmapHandle handle;
+
+        ViewReference(ImBitmapView view, ImBitmapHandle handle, ReferenceQueue<ImBitmapView> queue)
+        {
+            super(view, queue);
+            this.handle = handle;
+        }
+    }
+
+    private final ImBitmapElement element;
+
+    /**
+     * {@code null} for the handles not linked to any view
+     */
+    private final ViewReference viewReference;
+    private volatile boolean closed;
+
+    /**
+     * {@link ImBitmapScope} tracking this handle, if any
+     */
+    volatile ImBitmapScope scope;
+
+    ImBitmapHandle(ImBitmapElement element, ImBitmapView view)
+    {
+        this.element = element;
+
+        if(view == null)
+        {
+            viewReference = null;
+        }
+        else if(leakDetectionEnabled)
+        {
+            reportLeaks();
+
+            viewReference = new ViewReference(view, this, leakQueue);
+            trackedReferences.add(viewReference);
+        }
+        else
+        {
+            viewReference = new ViewReference(view, this, null);
+        }
+    }
+
+    /**
+     * Enables or disables the report of handles whose view was collected without closing them.
+     * Enabled by {@link ImBitmapManager} for debuggable apps.
+     */
+    public static void setLeakDetectionEnabled(boolean enabled)
+    {
+        leakDetectionEnabled = enabled;
+    }
+
+    public static boolean isLeakDetectionEnabled()
+    {
+        return leakDetectionEnabled;
+    }
+
+    /**
+     * Logs the handles whose view was collected without closing them, and closes them.
+     * Called each time a handle is created while leak detection is enabled.
+     */
+    static void reportLeaks()
+    {
+        Reference<? extends ImBitmapView> reference;
+
+        while ((reference = leakQueue.poll()) != null)
+        {
+            ImBitmapHandle handle = ((ViewReference) reference).handle;
+            trackedReferences.remove(reference);
+
+            if(!handle.isClosed())
+            {
+                ImBitmap parent = handle.element.getParent();
+
+                Log.w(TAG, String.format("Leaked handle: ImBitmapView collected without releasing %s zoom: %d",
+                        parent != null ? parent.getCacheBitmapId() : null, handle.element.sizeFactor));
+
+                handle.close();
+            }
+        }
+    }
+
+    /**
+     * @return the {@link ImBitmapElement} retained by this handle
+     */
+    public ImBitmapElement getElement()
+    {
+        return element;
+    }
+
+    /**
+     * @return the {@link ImBitmapView} that retained the element, or {@code null} if it was already collected
+     */
+    public ImBitmapView getView()
+    {
+        return viewReference != null ? viewReference.get() : null;
+    }
+
+    /**
+     * @return true if it's not linked to any {@link ImBitmapView} (see {@link ImBitmapElement#retain()})
+     */
+    boolean isViewless()
+    {
+        return viewReference == null;
+    }
+
+    /**
+     * Unlinks the {@link ImBitmapElement} from the {@link ImBitmapView}. Calling it more than once has no effect.
+     */
+    public void close()
+    {
+        if(closed)
+        {
+            return;
+        }
+
+        closed = true;
+
+        if(leakDetectionEnabled && viewReference != null)
+        {
+            trackedReferences.remove(viewReference);
+        }
+
+        element.onHandleClosed(this);
+
+        ImBitmapScope scope = this.scope;
+
+        if(scope != null)
+        {
+            scope.onHandleClosed(this);
+        }
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+/**
+ * Key of an {@link ImBitmap} in the registry of the {@link ImBitmapManager}: a 128 bits hash (MurmurHash3 x64) of the kind
+ * of source and its descriptor (url, path, resource id...) exactly as given, kept as two longs.
+ * <p>
+ * Distinct sources get distinct keys no matter which characters their descriptors have, and looking a key up doesn't hash
+ * nor compare long strings. The identifier of the {@link ImBitmap} (see {@link ImBitmap#getCacheBitmapId()}), also used by
+ * the disk cache, is built from the key (see {@link ImBitmapKey#toId(String)}), so it has a fixed length and is valid in
+ * a file name.
+ */
+final class ImBitmapKey
+{
+    private final static int HEX_DIGITS = 32;
+
+    private final static long C1 = 0x87c37b91114253d5L;
+    private final static long C2 = 0x4cf5ad432745937fL;
+
+    final long high;
+    final long low;
+
+    ImBitmapKey(long high, long low)
+    {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * @param prefix kind of source, i.e. remote or file
+     * @param descriptor url, path or any string that identifies the source
+     */
+    static ImBitmapKey of(String prefix, String descriptor)
+    {
+        // Hashed as prefix, a 0 char and descriptor, without copying them into a single string
+        int length = prefix.length() + 1 + descriptor.length();
+
+        long h1 = 0;
+        long h2 = 0;
+        int i = 0;
+
+        // Blocks of 16 bytes, 8 chars
+        for(; i + 8 <= length; i += 8)
+        {
+            h1 ^= mixK1(getChars(prefix, descriptor, i));
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(getChars(prefix, descriptor, i + 4));
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+
+        for(int j = 0; i + j < length; j++)
+        {
+            long c = getChar(prefix, descriptor, i + j);
+
+            if(j < 4)
+            {
+                k1 |= c << (16 * j);
+            }
+            else
+            {
+                k2 |= c << (16 * (j - 4));
+            }
+        }
+
+        h1 ^= mixK1(k1);
+        h2 ^= mixK2(k2);
+
+        h1 ^= length * 2L;
+        h2 ^= length * 2L;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        return new ImBitmapKey(h1, h2);
+    }
+
+    /**
+     * @return the key of an identifier built with {@link ImBitmapKey#toId(String)}, or {@code null} if it's not one
+     */
+    static ImBitmapKey fromId(String id)
+    {
+        if(id == null || id.length() < HEX_DIGITS)
+        {
+            return null;
+        }
+
+        int start = id.length() - HEX_DIGITS;
+        long high = 0;
+        long low = 0;
+
+        for(int i = 0; i < HEX_DIGITS; i++)
+        {
+            int digit = Character.digit(id.charAt(start + i), 16);
+
+            if(digit < 0)
+            {
+                return null;
+            }
+
+            if(i < HEX_DIGITS / 2)
+            {
+                high = (high << 4) | digit;
+            }
+            else
+            {
+                low = (low << 4) | digit;
+            }
+        }
+
+        return new ImBitmapKey(high, low);
+    }
+
+    /**
+     * @return the prefix followed by the key in hexadecimal
+     */
+    String toId(String prefix)
+    {
+        StringBuilder id = new StringBuilder(prefix.length() + HEX_DIGITS).append(prefix);
+        appendHex(id, high);
+        appendHex(id, low);
+
+        return id.toString();
+    }
+
+    private static void appendHex(StringBuilder builder, long value)
+    {
+        for(int shift = 60; shift >= 0; shift -= 4)
+        {
+            builder.append(Character.forDigit((int) (value >>> shift) & 0xf, 16));
+        }
+    }
+
+    private static long getChars(String prefix, String descriptor, int index)
+    {
+        return getChar(prefix, descriptor, index)
+                | getChar(prefix, descriptor, index + 1) << 16
+                | getChar(prefix, descriptor, index + 2) << 32
+                | getChar(prefix, descriptor, index + 3) << 48;
+    }
+
+    private static long getChar(String prefix, String descriptor, int index)
+    {
+        int prefixLength = prefix.length();
+
+        if(index < prefixLength)
+        {
+            return prefix.charAt(index);
+        }
+
+        return index == prefixLength ? 0 : descriptor.charAt(index - prefixLength - 1);
+    }
+
+    private static long mixK1(long k1)
+    {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2)
+    {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix64(long k)
+    {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+
+        return k;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o)
+        {
+            return true;
+        }
+
+        if(!(o instanceof ImBitmapKey))
+        {
+            return false;
+        }
+
+        ImBitmapKey other = (ImBitmapKey) o;
+
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        // Already well mixed
+        return (int) low;
+    }
+}
@@ -18,21 +18,32 @@ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
 package com.jmleiva.imaginelib.core;
 
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.graphics.Bitmap;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.jmleiva.imaginelib.core.cache.CacheImBitmapManager;
+import com.jmleiva.imaginelib.core.cache.FileCacheImBitmapSource;
+
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
 
 /**
  * <p>
  * This class is resposible of managing all the {@link ImBitmap} objects used within the application.
  * <p>
  * It also keeps track of the ammount of memory used only by {@link ImBitmap} instances, and makes sure
- * the MaxMemory (fixed to an eighth of max memory asigned to the app by the JVM) is never exceeded (except in some cases),
+ * the MaxMemory (its share of the budget of every manager, see {@link ImBudgetCoordinator}) is never exceeded (except in some cases),
  * reducing the memory to another fixed value (trimMemory, fixed to a half of the MaxMemory)
  */
 public class ImBitmapManager
@@ -53,6 +64,12 @@ public class ImBitmapManager
     private final static String FILE_BITMAP_ID_PREFIX = "FIL_BIT_";
     private final static String ALBUM_PHOTO_BITMAP_ID_PREFIX = "ALB_BIT";
     private final static String RAW_BITMAP_ID_PREFIX = "RAW_BIT";
+    private final static String TILED_BITMAP_ID_PREFIX = "TIL_BIT_";
+
+    private final static String DISK_CACHE_DIRECTORY = "imagine";
+
+    private final static long DEFAULT_GRACE_PERIOD_MILLIS = 3000;
+    private final static int DEFAULT_GRACE_PERIOD_MAX_ELEMENTS = 16;
 
 
     /**
@@ -65,19 +82,62 @@ public class ImBitmapManager
      */
     private long TRIM_MEMORY;
 
-    private  Map<String, ImBitmap> imBitmapMap;
+    private  Map<ImBitmapKey, ImBitmap> imBitmapMap;
+
+    /**
+     * Keys of the {@link ImRawBitmap}, by identity of their {@link Bitmap}. Built from a sequence, unique in this
+     * process, and a random session id, so they don't match the disk cache entries of a previous run.
+     */
+    private final Map<Bitmap, ImBitmapKey> rawBitmapKeys = new WeakHashMap<>();
+    private long rawBitmapSequence;
+    private final static String RAW_BITMAP_SESSION = Long.toHexString(new Random().nextLong());
 
     private long currentSize;
 
+    /**
+     * Half life of the recent demand, see {@link ImBitmapManager#getRecentDemand(long)}
+     */
+    private final static long DEMAND_HALF_LIFE_MILLIS = 10000;
+
+    private double recentDemand;
+    private long lastDemandUpdateTime;
+
+    private long trimCount;
+
+    /**
+     * Set when the app sizes the encoded tier, so it doesn't follow the budget anymore
+     */
+    private boolean encodedCacheSizeSet;
+
     private int maxImBitmapsAlive = 1;
 
     private Context context;
 
+    private ImBitmapPrefetcher prefetcher;
+
+    private ImBitmapGracePeriod gracePeriod;
+
+    private ImEvictionPolicy evictionPolicy;
+
+    private ImEncodedBitmapCache encodedCache;
+
+    private ImBitmapParking parking;
+
+    private final Map<String, ImFileWatcher> fileWatchers = new HashMap<>();
+
+    private final Map<String, ImBitmapScope> scopes = new HashMap<>();
+
+    /**
+     * Content shared by several {@link ImBitmap}, by digest. See {@link ImBitmapManager#setContentDeduplication(boolean)}
+     */
+    private final Map<String, ImBitmapContent> contents = new HashMap<>();
+    private boolean contentDeduplication;
+
     public ImBitmapManager(Context context)
     {
-        final int maxMemory = (int) (Runtime.getRuntime().maxMemory());
-        // Use 1/8th of the available memory for this memory cache.
-        MAX_MEMORY = maxMemory / 8;
+        // The whole budget until the ImBudgetCoordinator shares it with the rest of the managers
+        ImBudgetCoordinator.attach(context);
+        MAX_MEMORY = ImBudgetCoordinator.getGlobalBudget();
         TRIM_MEMORY = MAX_MEMORY / 2;
 
         // t_bitmap = new RemoteBitmap("t_bitmap",
@@ -88,8 +148,30 @@ public class ImBitmapManager
 
         this.context = context;
 
+        // Leave at least a core free for the visible images loads
+        int prefetchConcurrency = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 2));
+        prefetcher = new ImBitmapPrefetcher(prefetchConcurrency);
+
+        gracePeriod = new ImBitmapGracePeriod(DEFAULT_GRACE_PERIOD_MILLIS, DEFAULT_GRACE_PERIOD_MAX_ELEMENTS);
+
+        evictionPolicy = new ImCostAwareEvictionPolicy();
+
+        // Encoded images take about a tenth of their Bitmap, so a quarter of the Bitmaps budget holds many more images
+        encodedCache = new ImEncodedBitmapCache(MAX_MEMORY / 4);
+
+        // Disabled by default, as it takes heap memory outside the budget. The pool keeps only a few bitmaps to restore into.
+        parking = new ImBitmapParking(0, new ImBitmapPool(MAX_MEMORY / 16));
+
+        // Handles not closed by their views are reported only while developing
+        if((context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0)
+        {
+            ImBitmapHandle.setLeakDetectionEnabled(true);
+        }
+
         Log.i(TAG, String.format("Starting ImBitmapManager. MAX_MEMORY: %d kb, TRIM_MEMORY %d kb", MAX_MEMORY / 1024,
                 TRIM_MEMORY / 1024));
+
+        ImBudgetCoordinator.register(this);
     }
 
     /**
@@ -100,81 +182,92 @@ public class ImBitmapManager
      * There are two criteria to select which {@link ImBitmap} are removed first:
      * <ul>
      * <li> Disposable {@link ImBitmap}, i.e. {@link ImBitmap} that are no currently visible to the user, are removed FIRST.
-     * <li> Last used {@link ImBitmap}, i.e. {@link ImBitmap} showed most recently, are removed LAST.
+     * <li> Inside each list, the order is decided by the {@link ImEvictionPolicy} (see {@link ImBitmapManager#setEvictionPolicy(ImEvictionPolicy)}).
+     * By default, {@link ImBitmapElement} cheap to load again and big are removed FIRST, and the ones used recently are removed LAST.
+     * <li> Preview {@link ImBitmapElement} (see {@link ImBitmapElement#isPreview()}) are removed before the rest of their list.
+     * <li> Disposable {@link ImBitmapElement} in grace period (see {@link ImBitmapManager#setGracePeriod(long, int)}) are removed
+     * after the rest of the Disposable ones.
      * <li> Disposable {@link ImBitmap} are always removed before Non-Disposable {@link ImBitmap} not matter when they were
      * used last.
      * <li> maxImBitmapsAlive is respected only for Non-Disposable {@link ImBitmap}. Even if the MaxMemory limit was exceded.
      * This means that when this method is called, it's guaranteed that at least [maxImBitmapsAlive] number of Non-Disposable {@link ImBitmap}
      * will be left alive.
      */
-    void trimMemory()
+    synchronized void trimMemory()
     {
         Log.i(TAG, String.format("**** Starting TRIM due exceding MAX_MEMORY: %d kb ****", MAX_MEMORY / 1024));
 
+        trimCount++;
+
         // Two lists, first with Safe to dispose bitmaps, second with the others
         List<ImBitmapElement> disposableImBitmaps1 = new ArrayList<>();
         List<ImBitmapElement> disposableImBitmaps2 = new ArrayList<>();
 
-        Iterator<Map.Entry<String, ImBitmap>> it = imBitmapMap.entrySet().iterator();
+        // Scored once per trim, as the scores depend on the time
+        final Map<ImBitmapElement, Double> retentionScores = new IdentityHashMap<>();
+        long now = System.nanoTime();
+
+        Iterator<Map.Entry<ImBitmapKey, ImBitmap>> it = imBitmapMap.entrySet().iterator();
 
         while (it.hasNext())
         {
-            Map.Entry<String, ImBitmap> pairs = it.next();
+            Map.Entry<ImBitmapKey, ImBitmap> pairs = it.next();
 
             ImBitmap imBitmap = pairs.getValue();
 
-            for(ImBitmapElement imBitmapElement : imBitmap.imBitmapElements)
+            for(ImBitmapElement imBitmapElement : imBitmap.getElements())
             {
-                if (imBitmapElement.getBitmap() != null)
+                if (!imBitmapElement.isDisposed())
                 {
-                    boolean atEnd = true;
-
-                    List<ImBitmapElement> disposableImBitmaps;
-
                     if (imBitmapElement.isSafeToDispose())
                     {
-                        disposableImBitmaps = disposableImBitmaps1;
+                        disposableImBitmaps1.add(imBitmapElement);
                     }
                     else
                     {
-                        disposableImBitmaps = disposableImBitmaps2;
+                        disposableImBitmaps2.add(imBitmapElement);
                     }
 
-                    for (int i = 0; i < disposableImBitmaps.size(); i++)
-                    {
-                        if (disposableImBitmaps.get(i).lastUsedTimesatmp() > imBitmapElement.lastUsedTimesatmp())
-                        {
-                            atEnd = false;
-                            disposableImBitmaps.add(i, imBitmapElement);
-                            break;
-                        }
-                    }
-
-                    if (atEnd)
-                    {
-                        disposableImBitmaps.add(imBitmapElement);
-                    }
+                    retentionScores.put(imBitmapElement, evictionPolicy.getRetentionScore(imBitmapElement, now));
                 }
             }
         }
 
+        Comparator<ImBitmapElement> evictionOrder = new Comparator<ImBitmapElement>()
+        {
+            @Override
+            public int compare(ImBitmapElement lhs, ImBitmapElement rhs)
+            {
+                return compareEvictionOrder(lhs, rhs, retentionScores);
+            }
+        };
+
+        Collections.sort(disposableImBitmaps1, evictionOrder);
+        Collections.sort(disposableImBitmaps2, evictionOrder);
+
         int safeDisposed = 0;
         int notSafeDisposed = 0;
 
-        while (currentSize > TRIM_MEMORY && disposableImBitmaps1.size() > 0)
+        // Most disposals are performed later (see ImBitmapDisposer), so the freed memory is counted here
+        long projectedSize = currentSize;
+
+        while (projectedSize > TRIM_MEMORY && disposableImBitmaps1.size() > 0)
         {
             ImBitmapElement bitmapToDispose = disposableImBitmaps1.remove(0);
-            bitmapToDispose.dispose();
+            projectedSize -= bitmapToDispose.getByteCount();
+            bitmapToDispose.evict(bitmapToDispose.isInGracePeriod());
             safeDisposed++;
         }
 
         // If safe to dispose bitmaps where NOT enought...
         // This one uses MAX_MEMORY instead of TRIM_MEMORY, and leaves at least
         // maxImBitmapsAlive ImBitmap alive. (This is experimental)
-        while (currentSize > MAX_MEMORY && disposableImBitmaps2.size() > maxImBitmapsAlive)
+        while (projectedSize > MAX_MEMORY && disposableImBitmaps2.size() > maxImBitmapsAlive)
         {
             ImBitmapElement bitmapToDispose = disposableImBitmaps2.remove(0);
-            bitmapToDispose.dispose();
+            projectedSize -= bitmapToDispose.getByteCount();
+            // Still shown, so it's going to be needed again
+            bitmapToDispose.evict(true);
             notSafeDisposed++;
         }
 
@@ -184,6 +277,46 @@ public class ImBitmapManager
                 TRIM_MEMORY / 1024));
     }
 
+    /**
+     * Order used by {@link ImBitmapManager#trimMemory()}: elements in grace period go last, then preview elements go first,
+     * then the ones with the lowest retention score of the {@link ImEvictionPolicy}.
+     * @return a negative number if imBitmapElement should be disposed before other, a positive one if after
+     */
+    private static int compareEvictionOrder(ImBitmapElement imBitmapElement, ImBitmapElement other, Map<ImBitmapElement, Double> retentionScores)
+    {
+        if(imBitmapElement.isInGracePeriod() != other.isInGracePeriod())
+        {
+            return other.isInGracePeriod() ? -1 : 1;
+        }
+
+        if(imBitmapElement.isPreview() != other.isPreview())
+        {
+            return imBitmapElement.isPreview() ? -1 : 1;
+        }
+
+        return Double.compare(retentionScores.get(imBitmapElement), retentionScores.get(other));
+    }
+
+    /**
+     * Sets the {@link ImEvictionPolicy} used to decide which {@link ImBitmapElement} are disposed first by
+     * {@link ImBitmapManager#trimMemory()}. By default, a {@link ImCostAwareEvictionPolicy}.
+     * @param evictionPolicy policy to use, i.e. {@link ImLruEvictionPolicy} to dispose the least recently used first
+     */
+    public synchronized void setEvictionPolicy(ImEvictionPolicy evictionPolicy)
+    {
+        if(evictionPolicy == null)
+        {
+            throw new IllegalArgumentException("evictionPolicy can't be null");
+        }
+
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    public synchronized ImEvictionPolicy getEvictionPolicy()
+    {
+        return evictionPolicy;
+    }
+
     /**
      * maxImBitmapsAlive setter.
      * maxImBitmapsAlive is respected only for Non-Disposable {@link ImBitmap}.
@@ -208,44 +341,638 @@ public class ImBitmapManager
         return maxImBitmapsAlive;
     }
 
+    /**
+     * Configures the grace period of the {@link ImBitmapElement} released by their last {@link com.jmleiva.imaginelib.view.ImBitmapView}.
+     * <p>
+     * While in grace period, an element is disposed only if disposing the rest of the unused elements was not enough,
+     * so a view that shows it again soon (i.e. a pager, or a rotation) doesn't need to load it again.
+     * By default, elements are kept {@link ImBitmapManager#DEFAULT_GRACE_PERIOD_MILLIS} millis, and at most
+     * {@link ImBitmapManager#DEFAULT_GRACE_PERIOD_MAX_ELEMENTS} at the same time.
+     *
+     * @param millis time an element is kept in grace period. 0 to limit it only by count.
+     * @param maxElements max number of elements in grace period at the same time (oldest ones end first). 0 to disable the grace period.
+     */
+    public void setGracePeriod(long millis, int maxElements)
+    {
+        gracePeriod.setGracePeriod(millis, maxElements);
+    }
+
+    /**
+     * @return time in millis an element is kept in grace period
+     */
+    public long getGracePeriodMillis()
+    {
+        return gracePeriod.getGraceMillis();
+    }
+
+    /**
+     * @return max number of elements in grace period at the same time
+     */
+    public int getGracePeriodMaxElements()
+    {
+        return gracePeriod.getMaxElements();
+    }
+
+    ImBitmapGracePeriod getGracePeriod()
+    {
+        return gracePeriod;
+    }
+
+    /**
+     * Sets the budget of the in memory tier that keeps the encoded bytes of the evicted {@link ImBitmapElement}
+     * (see {@link ImEncodedBitmapCache}). By default, a quarter of the MaxMemory, following it when it's resized.
+     * @param maxBytes max amount of encoded bytes kept. 0 to disable the tier
+     */
+    public synchronized void setEncodedCacheSize(long maxBytes)
+    {
+        encodedCacheSizeSet = true;
+        encodedCache.setMaxSize(maxBytes);
+    }
+
+    /**
+     * @return max amount of encoded bytes kept by the encoded tier
+     */
+    public long getEncodedCacheMaxSize()
+    {
+        return encodedCache.getMaxSize();
+    }
+
+    /**
+     * @return amount of encoded bytes currently kept by the encoded tier
+     */
+    public long getEncodedCacheSize()
+    {
+        return encodedCache.getSize();
+    }
+
+    /**
+     * @return number of {@link ImBitmapElement} decoded from the encoded tier instead of their source
+     */
+    public long getEncodedCacheHitCount()
+    {
+        return encodedCache.getHitCount();
+    }
+
+    /**
+     * @return number of {@link ImBitmapElement} not found in the encoded tier, so they were loaded from their source
+     */
+    public long getEncodedCacheMissCount()
+    {
+        return encodedCache.getMissCount();
+    }
+
+    ImEncodedBitmapCache getEncodedCache()
+    {
+        return encodedCache;
+    }
+
+    /**
+     * Sets the budget of the parking tier, that keeps the pixels of the evicted {@link ImBitmapElement} likely to be shown
+     * again soon in direct buffers (see {@link ImBitmapParking}). Disabled by default.
+     * <p>
+     * On Android direct buffers take Java heap memory, not counted in the budget of this manager (see {@link ImBudgetCoordinator}),
+     * so the global budget should be lowered accordingly (see {@link ImBudgetCoordinator#setGlobalBudget(long)}).
+     * @param maxBytes max amount of bytes parked. 0 to disable the tier
+     */
+    public synchronized void setParkingSize(long maxBytes)
+    {
+        parking.setMaxSize(maxBytes);
+    }
+
+    /**
+     * @return max amount of bytes kept by the parking tier
+     */
+    public long getParkingMaxSize()
+    {
+        return parking.getMaxSize();
+    }
+
+    /**
+     * @return amount of bytes currently kept by the parking tier
+     */
+    public long getParkingSize()
+    {
+        return parking.getSize();
+    }
+
+    /**
+     * Enables the compression of the parked pixels. They take less memory, but parking and restoring them is slower.
+     * Disabled by default.
+     */
+    public void setParkingCompressed(boolean compressed)
+    {
+        parking.setCompressed(compressed);
+    }
+
+    public boolean isParkingCompressed()
+    {
+        return parking.isCompressed();
+    }
+
+    /**
+     * @return number of {@link ImBitmapElement} restored from the parking tier
+     */
+    public long getParkingHitCount()
+    {
+        return parking.getHitCount();
+    }
+
+    /**
+     * @return number of {@link ImBitmapElement} not found in the parking tier
+     */
+    public long getParkingMissCount()
+    {
+        return parking.getMissCount();
+    }
+
+    ImBitmapParking getParking()
+    {
+        return parking;
+    }
+
+    /**
+     * Forgets the evicted {@link ImBitmapElement} of an {@link ImBitmap} kept by the parking and encoded tiers,
+     * i.e. because its source changed
+     */
+    void removeEvicted(String cacheBitmapId)
+    {
+        parking.remove(cacheBitmapId);
+        encodedCache.remove(cacheBitmapId);
+    }
+
     /**
      * Called internally each time a {@link ImBitmap} allocates memory
      * @param bytes number of bytes allocated by the {@link ImBitmap}
      */
     void onMemoryIncreased(long bytes)
     {
-        currentSize += bytes;
-        Log.i(TAG, String.format("Memory increased by %d kb, current size is %d kb", bytes / 1024, currentSize / 1024));
-
-        if (currentSize > MAX_MEMORY)
+        synchronized (this)
         {
-            trimMemory();
+            currentSize += bytes;
+            Log.i(TAG, String.format("Memory increased by %d kb, current size is %d kb", bytes / 1024, currentSize / 1024));
+
+            updateRecentDemand(bytes);
+
+            if (currentSize > MAX_MEMORY)
+            {
+                trimMemory();
+            }
         }
+
+        // Outside the lock, as it may trim other managers
+        ImBudgetCoordinator.onMemoryIncreased(bytes);
     }
 
     /**
      * Called internally each time a {@link ImBitmap} deallocates memory
      * @param bytes number of bytes deallocated by the {@link ImBitmap}
      */
-    void onMemoryDecreased(long bytes)
+    synchronized void onMemoryDecreased(long bytes)
     {
         currentSize -= bytes;
         Log.i(TAG, String.format("Memory decreased by %d kb, current size is %d kb", bytes / 1024, currentSize / 1024));
+
+        ImBudgetCoordinator.onMemoryDecreased(bytes);
+    }
+
+    /**
+     * Adds the bytes loaded to the recent demand, decayed by the time passed since the last update
+     */
+    private void updateRecentDemand(long bytes)
+    {
+        long now = SystemClock.uptimeMillis();
+        recentDemand = getRecentDemand(now) + bytes;
+        lastDemandUpdateTime = now;
+    }
+
+    /**
+     * @return bytes loaded lately, halved each {@link ImBitmapManager#DEMAND_HALF_LIFE_MILLIS}. Used by {@link ImBudgetCoordinator}
+     * to share the global budget.
+     */
+    synchronized double getRecentDemand(long now)
+    {
+        return recentDemand * Math.pow(0.5, (double) (now - lastDemandUpdateTime) / DEMAND_HALF_LIFE_MILLIS);
+    }
+
+    /**
+     * Called by {@link ImBudgetCoordinator} with the share of the global budget of this manager. If it's already
+     * using more memory, it's trimmed right away.
+     * @param maxBytes amount of memory that, when exceeded, the {@link ImBitmapManager#trimMemory()} operation is performed
+     */
+    synchronized void setBudget(long maxBytes)
+    {
+        MAX_MEMORY = maxBytes;
+        TRIM_MEMORY = MAX_MEMORY / 2;
+
+        if(!encodedCacheSizeSet)
+        {
+            encodedCache.setMaxSize(MAX_MEMORY / 4);
+        }
+
+        if (currentSize > MAX_MEMORY)
+        {
+            trimMemory();
+        }
+    }
+
+    /**
+     * @return number of times this manager was trimmed, used by {@link ImBudgetCoordinator} to resize the global budget
+     */
+    synchronized long getTrimCount()
+    {
+        return trimCount;
+    }
+
+    /**
+     * @return current share of the global budget of this manager (see {@link ImBudgetCoordinator})
+     */
+    public synchronized long getMaxMemory()
+    {
+        return MAX_MEMORY;
+    }
+
+    /**
+     * @return amount of memory used by the {@link ImBitmapElement} of this manager
+     */
+    public synchronized long getCurrentSize()
+    {
+        return currentSize;
+    }
+
+    /**
+     * Prefetches a "window" of {@link ImBitmap}, i.e. the next items the user is going to see in the scroll direction.
+     * <p>
+     * The loads are performed in background, at a lower priority than regular loads, and never more than a few at a time.
+     * Calling this method again moves the window: the pending loads of {@link ImBitmap} that are not part of the new window
+     * are cancelled, while the ones already being loaded are kept. It's cheap enough to be called on each scroll event.
+     *
+     * @param imBitmaps ordered list of {@link ImBitmap} to be prefetched. First ones are loaded first.
+     * @param width desired width of the {@link ImBitmapElement} to be prefetched
+     * @param height desired height of the {@link ImBitmapElement} to be prefetched
+     */
+    public void prefetch(List<? extends ImBitmap> imBitmaps, int width, int height)
+    {
+        prefetcher.setWindow(imBitmaps, width, height);
+    }
+
+    /**
+     * Cancels all the pending loads requested by {@link ImBitmapManager#prefetch(List, int, int)}.
+     * Loads already in process are not interrupted.
+     */
+    public void cancelPrefetch()
+    {
+        prefetcher.cancelWindow();
     }
 
     /**
-     * Internal helper to avoid path errors when a path used to create {@link ImBitmap} contains invalid characters for a path.
-     * @param path the path used to create a new {@link ImBitmap}
-     * @return a safe version of the path parameter
+     * @return number of {@link ImBitmap} of the current prefetch window that are pending or being loaded
      */
-    private String safePath(String path)
+    public int getPendingPrefetchCount()
     {
-        String filtered = path.replace('\\', '-').
-                replace('/', '-').
-                replace('.', '-').
-                replace(':', '-');
+        return prefetcher.getPendingCount();
+    }
+
+    /**
+     * Enables the disk cache (see {@link CacheImBitmapManager}), storing the cached bitmaps in the app cache directory.
+     * Needed by {@link ImBitmapManager#indexDirectory(String, int, int, boolean, ImFileIndexer.OnIndexProgressListener)}
+     */
+    public void enableDiskCache()
+    {
+        CacheImBitmapManager cacheImBitmapManager = CacheImBitmapManager.sharedManager();
+
+        if(!cacheImBitmapManager.hasSource())
+        {
+            cacheImBitmapManager.setSource(new FileCacheImBitmapSource(new File(context.getCacheDir(), DISK_CACHE_DIRECTORY)));
+        }
+    }
+
+    /**
+     * Builds, in background and using all the cores, the thumbnails of every picture inside a directory,
+     * and stores them in the disk cache. Later loads of those pictures ({@link ImBitmapManager#getFileBitmap(String)}) in a size
+     * equal or smaller than the thumbnail size are served from the disk cache, without reading the picture files.
+     * <p>
+     * Enables the disk cache if it's not enabled yet (see {@link ImBitmapManager#enableDiskCache()})
+     *
+     * @param directoryPath path of the directory to index
+     * @param width thumbnails width (usually the size of a grid cell)
+     * @param height thumbnails height (usually the size of a grid cell)
+     * @param recursive true to index sub directories too
+     * @param listener {@link ImFileIndexer.OnIndexProgressListener} to follow the progress. Can be {@code null}
+     * @return the {@link ImFileIndexer} doing the work, that can be used to cancel it
+     */
+    public ImFileIndexer indexDirectory(String directoryPath, int width, int height, boolean recursive, ImFileIndexer.OnIndexProgressListener listener)
+    {
+        enableDiskCache();
+
+        ImFileIndexer indexer = new ImFileIndexer(this, directoryPath, width, height, recursive, listener);
+        indexer.start();
+
+        return indexer;
+    }
+
+    /**
+     * Invalidates the {@link ImFileBitmap} of a file (and its {@link ImTiledBitmap}, if any) that was modified, moved or deleted,
+     * and removes it from the disk cache. The rest of the cached pictures are kept.
+     * <p>
+     * Not needed in most cases, as the {@link ImFileBitmap} checks the file by itself (see {@link ImBitmap#isSourceChanged()}).
+     * Useful to invalidate a file as soon as the app writes it.
+     *
+     * @param path of the file, as used in {@link ImBitmapManager#getFileBitmap(String)}
+     */
+    public void invalidateFile(String path)
+    {
+        ImBitmapKey key = ImBitmapKey.of(FILE_BITMAP_ID_PREFIX, path);
+        String cacheBitmapId = key.toId(FILE_BITMAP_ID_PREFIX);
+
+        ImBitmap fileBitmap;
+        ImBitmap tiledBitmap;
+
+        synchronized (this)
+        {
+            fileBitmap = imBitmapMap.get(key);
+            tiledBitmap = imBitmapMap.get(ImBitmapKey.of(TILED_BITMAP_ID_PREFIX, cacheBitmapId));
+        }
+
+        if(fileBitmap != null)
+        {
+            fileBitmap.invalidate();
+        }
+
+        if(tiledBitmap != null)
+        {
+            tiledBitmap.invalidate();
+        }
+
+        // Even if it's not loaded, it can be in the disk cache
+        CacheImBitmapManager cacheImBitmapManager = CacheImBitmapManager.sharedManager();
+
+        if(cacheImBitmapManager.hasSource())
+        {
+            cacheImBitmapManager.deleteCachedImBitmap(cacheBitmapId);
+        }
+    }
+
+    /**
+     * Starts watching a directory, so the pictures inside it are invalidated as soon as they are modified, moved or deleted
+     * (see {@link ImBitmapManager#invalidateFile(String)}). Sub directories are not watched.
+     * <p>
+     * The paths used with {@link ImBitmapManager#getFileBitmap(String)} must be built from the same directoryPath
+     * for the files to be matched.
+     *
+     * @param directoryPath path of the directory to watch
+     */
+    public synchronized void watchDirectory(String directoryPath)
+    {
+        if(fileWatchers.containsKey(directoryPath))
+        {
+            return;
+        }
+
+        ImFileWatcher fileWatcher = new ImFileWatcher(this, directoryPath);
+        fileWatcher.startWatching();
+
+        fileWatchers.put(directoryPath, fileWatcher);
+    }
+
+    /**
+     * Stops watching a directory previously watched with {@link ImBitmapManager#watchDirectory(String)}
+     * @param directoryPath path of the directory
+     */
+    public synchronized void stopWatchingDirectory(String directoryPath)
+    {
+        ImFileWatcher fileWatcher = fileWatchers.remove(directoryPath);
+
+        if(fileWatcher != null)
+        {
+            fileWatcher.stopWatching();
+        }
+    }
+
+    /**
+     * Opens a named {@link ImBitmapScope}, to release every image of a screen at once when it's destroyed.
+     * @param name name of the scope, i.e. the name of the screen
+     * @return the open scope with that name, or a new one if there's none
+     */
+    public synchronized ImBitmapScope openScope(String name)
+    {
+        ImBitmapScope scope = scopes.get(name);
+
+        if(scope == null)
+        {
+            scope = new ImBitmapScope(name, this);
+            scopes.put(name, scope);
+        }
+
+        return scope;
+    }
+
+    /**
+     * @return the open {@link ImBitmapScope} with that name, or {@code null} if there's none
+     */
+    public synchronized ImBitmapScope getScope(String name)
+    {
+        return scopes.get(name);
+    }
+
+    /**
+     * Closes a {@link ImBitmapScope}, releasing every element retained through it (see {@link ImBitmapScope#close()})
+     * @param name name of the scope
+     */
+    public void closeScope(String name)
+    {
+        ImBitmapScope scope;
+
+        synchronized (this)
+        {
+            scope = scopes.get(name);
+        }
+
+        if(scope != null)
+        {
+            scope.close();
+        }
+    }
+
+    /**
+     * Called by {@link ImBitmapScope#close()}
+     */
+    synchronized void onScopeClosed(ImBitmapScope scope)
+    {
+        if(scopes.get(scope.getName()) == scope)
+        {
+            scopes.remove(scope.getName());
+        }
+    }
+
+    ImBitmapPrefetcher getPrefetcher()
+    {
+        return prefetcher;
+    }
+
+    /**
+     * Enables the deduplication of identical images under different keys (i.e. the same picture served by a CDN under
+     * several urls). Disabled by default.
+     * <p>
+     * When enabled, a digest of the content of each {@link ImRemoteBitmap} is computed while it's downloaded, and the
+     * instances with identical bytes share one {@link ImBitmapElement} per size, and one disk cache entry (if the disk cache is
+     * enabled, see {@link ImBitmapManager#enableDiskCache()}). Shared content is reference counted, so it stays loaded
+     * while any of its instances uses it.
+     * <p>
+     * Instances already linked stay linked if it's disabled later.
+     */
+    public synchronized void setContentDeduplication(boolean enabled)
+    {
+        contentDeduplication = enabled;
+    }
+
+    public synchronized boolean isContentDeduplicationEnabled()
+    {
+        return contentDeduplication;
+    }
+
+    /**
+     * @return number of distinct contents shared by the {@link ImBitmap} of this manager
+     */
+    public synchronized int getSharedContentCount()
+    {
+        return contents.size();
+    }
+
+    /**
+     * Links an {@link ImBitmap} to the content with a digest, called by the subclasses from {@link ImBitmap#linkContent()}.
+     * The first instance linked to a content becomes its owner, and its encoded bytes are stored in the disk cache.
+     * @param data encoded bytes of the content
+     * @return the owner of the content, that loads the elements of every instance linked
+     */
+    ImBitmap linkContent(ImBitmap imBitmap, String digest, byte[] data)
+    {
+        ImBitmapContent content;
+        boolean created;
+
+        synchronized (this)
+        {
+            if(imBitmap.content != null)
+            {
+                return imBitmap.content.owner;
+            }
+
+            content = contents.get(digest);
+            created = content == null;
+
+            if(created)
+            {
+                content = new ImBitmapContent(digest, imBitmap);
+                contents.put(digest, content);
+            }
+
+            content.members.add(imBitmap);
+            imBitmap.content = content;
+
+            Log.i(TAG, String.format("%s linked to content %s, %d references", imBitmap.getCacheBitmapId(), digest,
+                    content.getReferenceCount()));
+        }
+
+        // The disk cache has its own lock, so it's written outside this one
+        CacheImBitmapManager cacheImBitmapManager = CacheImBitmapManager.sharedManager();
+
+        if(created && cacheImBitmapManager.hasSource())
+        {
+            CacheImBitmapManager.CacheImBitmap cacheImBitmap = new CacheImBitmapManager.CacheImBitmap();
+            cacheImBitmap.id = ImBitmapContent.CACHE_ID_PREFIX + digest;
+            cacheImBitmap.sizeFactor = 1;
+            cacheImBitmap.originalWidth = imBitmap.originalWidth;
+            cacheImBitmap.originalHeight = imBitmap.originalHeight;
+
+            cacheImBitmapManager.insertCacheImBitmapData(cacheImBitmap, data);
+
+            synchronized (this)
+            {
+                content.cacheId = cacheImBitmap.id;
+            }
+        }
+
+        return content.owner;
+    }
+
+    /**
+     * Unlinks an {@link ImBitmap} from its shared content, i.e. because its source changed. If it was the owner, its
+     * elements are handed to another instance of the content; if it was the last one, the content is forgotten and
+     * its disk cache entry deleted.
+     */
+    void unlinkContent(ImBitmap imBitmap)
+    {
+        ImBitmapContent content;
+        ImBitmap newOwner = null;
+        boolean forgotten = false;
+
+        synchronized (this)
+        {
+            content = imBitmap.content;
+
+            if(content == null)
+            {
+                return;
+            }
+
+            imBitmap.content = null;
+            content.members.remove(imBitmap);
+
+            if(content.members.isEmpty())
+            {
+                contents.remove(content.digest);
+                forgotten = true;
+            }
+            else if(content.owner == imBitmap)
+            {
+                newOwner = content.members.get(0);
+                content.owner = newOwner;
+            }
+
+            Log.i(TAG, String.format("%s unlinked from content %s, %d references", imBitmap.getCacheBitmapId(),
+                    content.digest, content.getReferenceCount()));
+        }
+
+        // Element storage is lock free, so it's handed off outside the lock
+        if(newOwner != null)
+        {
+            imBitmap.handOffElements(newOwner);
+        }
+
+        if(forgotten)
+        {
+            encodedCache.removeSource(ImEncodedBitmapCache.sourceKeyFor(ImBitmapContent.CACHE_ID_PREFIX + content.digest));
+        }
+
+        CacheImBitmapManager cacheImBitmapManager = CacheImBitmapManager.sharedManager();
+
+        if(forgotten && content.cacheId != null && cacheImBitmapManager.hasSource())
+        {
+            cacheImBitmapManager.deleteCachedImBitmap(content.cacheId);
+        }
+    }
+
+    /**
+     * Used by {@link ImBitmap#preloadAsync(int, int)} to preload a single {@link ImBitmap} outside the prefetch window
+     */
+    void preloadAsync(ImBitmap imBitmap, int width, int height)
+    {
+        prefetcher.submit(imBitmap, width, height);
+    }
+
+    /**
+     * Makes room in the registry for the {@link ImBitmap} of a bulk registration, so it grows once instead of many times
+     */
+    private void ensureRegistryCapacity(int newEntries)
+    {
+        // Only worth it when the registration is big compared to the registry
+        if(newEntries <= imBitmapMap.size())
+        {
+            return;
+        }
 
-        return filtered;
+        Map<ImBitmapKey, ImBitmap> grownMap = new HashMap<>((int) ((imBitmapMap.size() + newEntries) / 0.75f) + 1);
+        grownMap.putAll(imBitmapMap);
+        imBitmapMap = grownMap;
     }
 
     /**
@@ -253,21 +980,56 @@ public class ImBitmapManager
      * @param urlPath of the picture to be assigned to the {@link ImRemoteBitmap}
      * @return a {@link ImRemoteBitmap} from the urlPath parameter
      */
-    public ImRemoteBitmap getRemoteBitmap(String urlPath)
+    public synchronized ImRemoteBitmap getRemoteBitmap(String urlPath)
     {
-        String key = REMOTE_BITMAP_ID_PREFIX + safePath(urlPath);
+        return registerRemoteBitmap(imBitmapMap, urlPath, this);
+        // return t_bitmap;
+    }
 
-        if (imBitmapMap.get(key) == null)
+    /**
+     * Registration of {@link ImBitmapManager#getRemoteBitmap(String)}, apart from the rest of the manager so its
+     * allocations can be measured without one
+     * @param registry where the {@link ImRemoteBitmap} are registered by key
+     */
+    static ImRemoteBitmap registerRemoteBitmap(Map<ImBitmapKey, ImBitmap> registry, String urlPath, ImBitmapManager imBitmapManager)
+    {
+        ImBitmapKey key = ImBitmapKey.of(REMOTE_BITMAP_ID_PREFIX, urlPath);
+
+        ImBitmap imBitmap = registry.get(key);
+
+        if (imBitmap == null)
         {
-            ImRemoteBitmap newRemoteBitmap = new ImRemoteBitmap(key, urlPath, this);
+            // The identifier is built only if it's used
+            ImRemoteBitmap newRemoteBitmap = new ImRemoteBitmap(key, REMOTE_BITMAP_ID_PREFIX, urlPath, imBitmapManager);
 
-            imBitmapMap.put(key, newRemoteBitmap);
+            registry.put(key, newRemoteBitmap);
 
             return newRemoteBitmap;
         }
 
-        return (ImRemoteBitmap) imBitmapMap.get(key);
-        // return t_bitmap;
+        return (ImRemoteBitmap) imBitmap;
+    }
+
+    /**
+     * Like {@link ImBitmapManager#getRemoteBitmap(String)}, for many urls at once (i.e. a whole catalog). The manager is
+     * locked once, and its registry grows once instead of once per url.
+     * <p>
+     * Registering is cheap: the {@link ImRemoteBitmap} take no memory for their images until they are shown.
+     * @param urlPaths urls of the pictures
+     * @return the {@link ImRemoteBitmap} of each url, in the same order
+     */
+    public synchronized List<ImRemoteBitmap> getRemoteBitmaps(List<String> urlPaths)
+    {
+        ensureRegistryCapacity(urlPaths.size());
+
+        List<ImRemoteBitmap> remoteBitmaps = new ArrayList<>(urlPaths.size());
+
+        for(String urlPath : urlPaths)
+        {
+            remoteBitmaps.add(getRemoteBitmap(urlPath));
+        }
+
+        return remoteBitmaps;
     }
 
     /**
@@ -275,13 +1037,13 @@ public class ImBitmapManager
      * @param resourceId of the picture to be assigned to the {@link ImResourceBitmap}
      * @return a {@link ImResourceBitmap} from the resourceId parameter
      */
-    public ImResourceBitmap getResourceBitmap(int resourceId)
+    public synchronized ImResourceBitmap getResourceBitmap(int resourceId)
     {
-        String key = RESOURCE_BITMAP_ID_PREFIX + safePath(Integer.toString(resourceId));
+        ImBitmapKey key = ImBitmapKey.of(RESOURCE_BITMAP_ID_PREFIX, Integer.toString(resourceId));
 
         if (imBitmapMap.get(key) == null)
         {
-            ImResourceBitmap newResourceBitmap = new ImResourceBitmap(key, resourceId, context, this);
+            ImResourceBitmap newResourceBitmap = new ImResourceBitmap(key.toId(RESOURCE_BITMAP_ID_PREFIX), resourceId, context, this);
 
             imBitmapMap.put(key, newResourceBitmap);
 
@@ -295,34 +1057,62 @@ public class ImBitmapManager
      * @param path of the picture to be assigned to the {@link ImFileBitmap}
      * @return a {@link ImFileBitmap} from the path parameter
      */
-    public ImFileBitmap getFileBitmap(String path)
+    public synchronized ImFileBitmap getFileBitmap(String path)
     {
-        String key = FILE_BITMAP_ID_PREFIX + safePath(path);
+        ImBitmapKey key = ImBitmapKey.of(FILE_BITMAP_ID_PREFIX, path);
 
-        if (imBitmapMap.get(key) == null)
+        ImBitmap imBitmap = imBitmapMap.get(key);
+
+        if (imBitmap == null)
         {
-            ImFileBitmap newFileBitmap = new ImFileBitmap(key, path, this);
+            ImFileBitmap newFileBitmap = new ImFileBitmap(key, FILE_BITMAP_ID_PREFIX, path, this);
 
             imBitmapMap.put(key, newFileBitmap);
 
             return newFileBitmap;
         }
 
-        return (ImFileBitmap) imBitmapMap.get(key);
+        return (ImFileBitmap) imBitmap;
+    }
+
+    /**
+     * Like {@link ImBitmapManager#getFileBitmap(String)}, for many files at once (i.e. a whole album). The manager is
+     * locked once, and its registry grows once instead of once per file.
+     * @param paths of the pictures
+     * @return the {@link ImFileBitmap} of each path, in the same order
+     */
+    public synchronized List<ImFileBitmap> getFileBitmaps(List<String> paths)
+    {
+        ensureRegistryCapacity(paths.size());
+
+        List<ImFileBitmap> fileBitmaps = new ArrayList<>(paths.size());
+
+        for(String path : paths)
+        {
+            fileBitmaps.add(getFileBitmap(path));
+        }
+
+        return fileBitmaps;
     }
 
     /**
-     * Searches for an existent {@link ImRawBitmap} with the bitmap (HashCode) specified, or creates a new one otherwise
+     * Searches for an existent {@link ImRawBitmap} with the bitmap (same instance) specified, or creates a new one otherwise
      * @param bitmap of the picture to be assigned to the {@link ImRawBitmap}
-     * @return a {@link ImRawBitmap} from the bitmap (HashCode) parameter
+     * @return a {@link ImRawBitmap} from the bitmap parameter
      */
-    public ImRawBitmap getRawBitmap(Bitmap bitmap)
+    public synchronized ImRawBitmap getRawBitmap(Bitmap bitmap)
     {
-        String key = RAW_BITMAP_ID_PREFIX + safePath(Integer.toString(bitmap.hashCode()));
+        ImBitmapKey key = rawBitmapKeys.get(bitmap);
+
+        if (key == null)
+        {
+            key = ImBitmapKey.of(RAW_BITMAP_ID_PREFIX, RAW_BITMAP_SESSION + '-' + (++rawBitmapSequence));
+            rawBitmapKeys.put(bitmap, key);
+        }
 
         if (imBitmapMap.get(key) == null)
         {
-            ImRawBitmap cacheRawBitmap = new ImRawBitmap(bitmap, key);
+            ImRawBitmap cacheRawBitmap = new ImRawBitmap(bitmap, key.toId(RAW_BITMAP_ID_PREFIX));
 
             imBitmapMap.put(key, cacheRawBitmap);
 
@@ -332,13 +1122,36 @@ public class ImBitmapManager
         return (ImRawBitmap) imBitmapMap.get(key);
     }
 
+    /**
+     * Searches for an existent {@link ImTiledBitmap} for the source specified, or creates a new one otherwise
+     * @param source {@link ImBitmap} to be decoded by tiles. It must support region decoding, like {@link ImFileBitmap} and {@link ImRemoteBitmap}
+     * @return a {@link ImTiledBitmap} from the source parameter
+     */
+    public synchronized ImTiledBitmap getTiledBitmap(ImBitmap source)
+    {
+        ImBitmapKey key = ImBitmapKey.of(TILED_BITMAP_ID_PREFIX, source.getCacheBitmapId());
+
+        if (imBitmapMap.get(key) == null)
+        {
+            ImTiledBitmap tiledBitmap = new ImTiledBitmap(key.toId(TILED_BITMAP_ID_PREFIX), source, this);
+
+            imBitmapMap.put(key, tiledBitmap);
+
+            return tiledBitmap;
+        }
+
+        return (ImTiledBitmap) imBitmapMap.get(key);
+    }
+
     /**
      * Searchs a {@link ImBitmap}
-     * @param key identifier of the {@link ImBitmap} to search
+     * @param key identifier of the {@link ImBitmap} to search (see {@link ImBitmap#getCacheBitmapId()})
      * @return {@link ImBitmap} with an identifiar matching the key parameter, or null otherwise
      */
-    public ImBitmap findImBitmapByKey(String key)
+    public synchronized ImBitmap findImBitmapByKey(String key)
     {
-        return imBitmapMap.get(key);
+        ImBitmapKey imBitmapKey = ImBitmapKey.fromId(key);
+
+        return imBitmapKey != null ? imBitmapMap.get(imBitmapKey) : null;
     }
 }
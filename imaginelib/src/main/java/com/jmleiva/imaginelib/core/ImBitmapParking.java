@@ -0,0 +1,385 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Parking tier for the evicted {@link ImBitmapElement} that are likely to be shown again soon (i.e. in grace period,
+ * or still bound to a view). Their pixels are copied as they are into direct {@link ByteBuffer}, so restoring them is
+ * a copy back into a pooled {@link Bitmap} (see {@link ImBitmapPool}) instead of a decode.
+ * <p>
+ * On Android direct buffers are backed by non-movable arrays in the Java heap, so the parked pixels take heap memory
+ * on top of the budget of the {@link ImBitmapManager}. That's why the tier is disabled until the app sizes it
+ * (see {@link ImBitmapManager#setParkingSize(long)}).
+ * <p>
+ * Pixels are parked in background (see {@link ImEvictionExecutor}), optionally compressed (with {@link Deflater#BEST_SPEED}),
+ * taking less memory but making parking and restoring slower. The tier has its own byte budget, and drops the least
+ * recently parked entries when it's exceeded. Direct buffers are freed when they are collected.
+ * <p>
+ * A restored element leaves the tier; it's parked again if it's evicted again.
+ */
+class ImBitmapParking
+{
+    final static String TAG = "ImBitmapParking";
+
+    private final static int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Pixels of a parked {@link ImBitmapElement}
+     */
+    static class ParkedBitmap
+    {
+        final ByteBuffer pixels;
+        final int pixelsLength;
+        final boolean compressed;
+        final int width;
+        final int height;
+        final Bitmap.Config config;
+        final boolean hasAlpha;
+        final int orientation;
+
+        ParkedBitmap(ByteBuffer pixels, int pixelsLength, boolean compressed, Bitmap bitmap, int orientation)
+        {
+            this.pixels = pixels;
+            this.pixelsLength = pixelsLength;
+            this.compressed = compressed;
+            this.width = bitmap.getWidth();
+            this.height = bitmap.getHeight();
+            this.config = bitmap.getConfig();
+            this.hasAlpha = bitmap.hasAlpha();
+            this.orientation = orientation;
+        }
+
+        /**
+         * @return bytes taken by this entry
+         */
+        int getSize()
+        {
+            return pixels.capacity();
+        }
+    }
+
+    private final LinkedHashMap<String, ParkedBitmap> parkedBitmaps;
+    private final ImBitmapPool bitmapPool;
+
+    private long maxSize;
+    private long currentSize;
+    private volatile boolean compressed;
+
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * @param maxSize max amount of bytes parked. 0 to disable the tier
+     * @param bitmapPool pool used to restore the parked pixels, and where the parked bitmaps are left
+     */
+    ImBitmapParking(long maxSize, ImBitmapPool bitmapPool)
+    {
+        this.maxSize = maxSize;
+        this.bitmapPool = bitmapPool;
+
+        parkedBitmaps = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    synchronized boolean isEnabled()
+    {
+        return maxSize > 0;
+    }
+
+    synchronized void setMaxSize(long maxSize)
+    {
+        this.maxSize = maxSize;
+        trimToSize();
+    }
+
+    synchronized long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    synchronized long getSize()
+    {
+        return currentSize;
+    }
+
+    synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    void setCompressed(boolean compressed)
+    {
+        this.compressed = compressed;
+    }
+
+    boolean isCompressed()
+    {
+        return compressed;
+    }
+
+    /**
+     * Parks the pixels of an evicted {@link ImBitmapElement}, and then releases its {@link Bitmap} to the pool.
+     * The bitmap must not be shown anymore.
+     * @return true if it's being parked, false if it doesn't fit in the tier, or there's a backlog (the caller keeps the bitmap)
+     */
+    boolean parkAndRelease(final ImBitmapElement element, final Bitmap bitmap)
+    {
+        long size = bitmap.getRowBytes() * bitmap.getHeight();
+
+        synchronized (this)
+        {
+            if(size > maxSize || bitmap.getConfig() == null || element.getParent() == null)
+            {
+                return false;
+            }
+        }
+
+        // Even a plain copy of a full frame is too slow for the UI thread, where elements are disposed
+        final boolean compress = compressed;
+
+        return ImEvictionExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                park(element, bitmap, compress);
+            }
+        });
+    }
+
+    private void park(ImBitmapElement element, Bitmap bitmap, boolean compress)
+    {
+        try
+        {
+            int pixelsLength = bitmap.getRowBytes() * bitmap.getHeight();
+            ByteBuffer pixels;
+
+            if(compress)
+            {
+                byte[] data = deflate(bitmap, pixelsLength);
+                pixels = ByteBuffer.allocateDirect(data.length);
+                pixels.put(data);
+            }
+            else
+            {
+                pixels = ByteBuffer.allocateDirect(pixelsLength);
+                bitmap.copyPixelsToBuffer(pixels);
+            }
+
+            pixels.rewind();
+
+            put(ImEncodedBitmapCache.keyFor(element),
+                    new ParkedBitmap(pixels, pixelsLength, compress, bitmap, element.orientation));
+        }
+        catch (OutOfMemoryError e)
+        {
+            Log.e(TAG, "Could not park evicted bitmap", e);
+        }
+        finally
+        {
+            element.recycle(bitmap, bitmapPool);
+        }
+    }
+
+    private static byte[] deflate(Bitmap bitmap, int pixelsLength)
+    {
+        byte[] rawPixels = new byte[pixelsLength];
+        bitmap.copyPixelsToBuffer(ByteBuffer.wrap(rawPixels));
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(rawPixels);
+        deflater.finish();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(pixelsLength / 4);
+        byte[] chunk = new byte[CHUNK_SIZE];
+
+        while (!deflater.finished())
+        {
+            int length = deflater.deflate(chunk);
+            outputStream.write(chunk, 0, length);
+        }
+
+        deflater.end();
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Takes a parked {@link ImBitmapElement} out of the tier. Its pixels are restored with {@link ImBitmapParking#restore(ParkedBitmap)}
+     * @return the parked element, or {@code null} if it's not parked
+     */
+    synchronized ParkedBitmap take(String key)
+    {
+        if(maxSize <= 0)
+        {
+            return null;
+        }
+
+        ParkedBitmap parkedBitmap = parkedBitmaps.remove(key);
+
+        if(parkedBitmap == null)
+        {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        currentSize -= parkedBitmap.getSize();
+
+        return parkedBitmap;
+    }
+
+    /**
+     * @return a {@link Bitmap} (from the pool if possible) with the pixels of the parked element, or {@code null} if they
+     * could not be restored
+     */
+    Bitmap restore(ParkedBitmap parkedBitmap)
+    {
+        Bitmap bitmap = bitmapPool.take(parkedBitmap.width, parkedBitmap.height, parkedBitmap.config);
+
+        if(bitmap == null)
+        {
+            bitmap = Bitmap.createBitmap(parkedBitmap.width, parkedBitmap.height, parkedBitmap.config);
+        }
+
+        if(parkedBitmap.compressed)
+        {
+            byte[] rawPixels = inflate(parkedBitmap);
+
+            if(rawPixels == null)
+            {
+                bitmap.recycle();
+                return null;
+            }
+
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(rawPixels));
+        }
+        else
+        {
+            ByteBuffer pixels = parkedBitmap.pixels.duplicate();
+            pixels.rewind();
+            bitmap.copyPixelsFromBuffer(pixels);
+        }
+
+        bitmap.setHasAlpha(parkedBitmap.hasAlpha);
+
+        return bitmap;
+    }
+
+    private static byte[] inflate(ParkedBitmap parkedBitmap)
+    {
+        ByteBuffer pixels = parkedBitmap.pixels.duplicate();
+        pixels.rewind();
+
+        byte[] data = new byte[pixels.remaining()];
+        pixels.get(data);
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+
+        byte[] rawPixels = new byte[parkedBitmap.pixelsLength];
+
+        try
+        {
+            int offset = 0;
+
+            while (offset < rawPixels.length && !inflater.finished())
+            {
+                int length = inflater.inflate(rawPixels, offset, rawPixels.length - offset);
+
+                if(length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+
+                offset += length;
+            }
+
+            return offset == rawPixels.length ? rawPixels : null;
+        }
+        catch (DataFormatException e)
+        {
+            Log.e(TAG, "Could not restore parked bitmap", e);
+            return null;
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    private synchronized void put(String key, ParkedBitmap parkedBitmap)
+    {
+        ParkedBitmap previousParkedBitmap = parkedBitmaps.put(key, parkedBitmap);
+
+        if(previousParkedBitmap != null)
+        {
+            currentSize -= previousParkedBitmap.getSize();
+        }
+
+        currentSize += parkedBitmap.getSize();
+        trimToSize();
+    }
+
+    /**
+     * Removes every parked element of an {@link ImBitmap}, i.e. because its source changed
+     */
+    synchronized void remove(String cacheBitmapId)
+    {
+        String prefix = cacheBitmapId + ImEncodedBitmapCache.KEY_SEPARATOR;
+        Iterator<Map.Entry<String, ParkedBitmap>> it = parkedBitmaps.entrySet().iterator();
+
+        while (it.hasNext())
+        {
+            Map.Entry<String, ParkedBitmap> pair = it.next();
+
+            if(pair.getKey().startsWith(prefix))
+            {
+                currentSize -= pair.getValue().getSize();
+                it.remove();
+            }
+        }
+    }
+
+    private void trimToSize()
+    {
+        Iterator<ParkedBitmap> it = parkedBitmaps.values().iterator();
+
+        while (currentSize > maxSize && it.hasNext())
+        {
+            currentSize -= it.next().getSize();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Small pool of mutable {@link Bitmap}, reused by {@link ImBitmapParking} to restore parked pixels without allocating.
+ * <p>
+ * Only exact matches (width, height and config) are reused. When the pool is full, the oldest bitmaps are recycled.
+ */
+class ImBitmapPool
+{
+    private final LinkedList<Bitmap> bitmaps;
+    private long maxSize;
+    private long currentSize;
+
+    /**
+     * @param maxSize max amount of bytes kept in the pool. 0 to disable it
+     */
+    ImBitmapPool(long maxSize)
+    {
+        this.maxSize = maxSize;
+        bitmaps = new LinkedList<>();
+    }
+
+    synchronized void setMaxSize(long maxSize)
+    {
+        this.maxSize = maxSize;
+        trimToSize();
+    }
+
+    /**
+     * @return a pooled {@link Bitmap} with the given size and config, or {@code null} if there's none
+     */
+    synchronized Bitmap take(int width, int height, Bitmap.Config config)
+    {
+        Iterator<Bitmap> it = bitmaps.iterator();
+
+        while (it.hasNext())
+        {
+            Bitmap bitmap = it.next();
+
+            if(bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config)
+            {
+                it.remove();
+                currentSize -= bitmap.getRowBytes() * bitmap.getHeight();
+                return bitmap;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Keeps a {@link Bitmap} no longer used, so it can be reused later. It must not be shown anymore.
+     * @return true if it was pooled, false if it was not (i.e. it's immutable), so the caller must recycle it
+     */
+    synchronized boolean offer(Bitmap bitmap)
+    {
+        long size = bitmap.getRowBytes() * bitmap.getHeight();
+
+        if(!bitmap.isMutable() || bitmap.isRecycled() || size > maxSize)
+        {
+            return false;
+        }
+
+        bitmaps.addLast(bitmap);
+        currentSize += size;
+        trimToSize();
+
+        return true;
+    }
+
+    private void trimToSize()
+    {
+        while (currentSize > maxSize && !bitmaps.isEmpty())
+        {
+            Bitmap bitmap = bitmaps.removeFirst();
+            currentSize -= bitmap.getRowBytes() * bitmap.getHeight();
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules {@link ImBitmap#preload(int, int)} calls at background priority, with a fixed number of concurrent loads.
+ * <p>
+ * It keeps a "window" of {@link ImBitmap} to prefetch, in the order they are going to be needed.
+ * Moving the window (i.e. the user scrolled) only cancels the pending loads that fall out of it, and keeps the ones
+ * already running or still wanted, so it can be called on every scroll event.
+ */
+class ImBitmapPrefetcher
+{
+    final static String TAG = "ImBitmapPrefetcher";
+
+    private final static int KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * A single pending preload. Tasks are ordered by window generation (newest window first) and then by their
+     * position inside the window.
+     */
+    class PrefetchTask implements Runnable, Comparable<PrefetchTask>
+    {
+        final ImBitmap imBitmap;
+        final int width;
+        final int height;
+        final long generation;
+        final int position;
+
+        /**
+         * Key in the window, see {@link ImBitmapPrefetcher#taskKey(ImBitmap, int, int)}. Kept, as computing it again
+         * once the image is decoded gives a different key. {@code null} for the tasks not bound to the window.
+         */
+        final String key;
+
+        volatile boolean cancelled;
+        volatile boolean started;
+
+        PrefetchTask(ImBitmap imBitmap, int width, int height, long generation, int position, String key)
+        {
+            this.imBitmap = imBitmap;
+            this.width = width;
+            this.height = height;
+            this.generation = generation;
+            this.position = position;
+            this.key = key;
+        }
+
+        @Override
+        public void run()
+        {
+            if(cancelled)
+            {
+                return;
+            }
+
+            started = true;
+
+            try
+            {
+                imBitmap.preload(width, height);
+            }
+            finally
+            {
+                onTaskFinished(this);
+            }
+        }
+
+        @Override
+        public int compareTo(PrefetchTask another)
+        {
+            if(generation != another.generation)
+            {
+                return generation > another.generation ? -1 : 1;
+            }
+
+            return position < another.position ? -1 : (position == another.position ? 0 : 1);
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong generationCounter;
+
+    /**
+     * Tasks belonging to the current window, by {@link ImBitmap} and size
+     */
+    private Map<String, PrefetchTask> windowTasks;
+
+    ImBitmapPrefetcher(int maxConcurrentLoads)
+    {
+        executor = new ThreadPoolExecutor(maxConcurrentLoads, maxConcurrentLoads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new PrefetchThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+
+        generationCounter = new AtomicLong();
+        windowTasks = new HashMap<>();
+    }
+
+    /**
+     * Replaces the current prefetch window.
+     * <p>
+     * {@link ImBitmap} already loaded, or already being loaded, are not scheduled again. Pending loads that are not
+     * part of the new window are cancelled.
+     *
+     * @param imBitmaps {@link ImBitmap} to prefetch, in the order they are expected to be shown
+     * @param width desired width of the {@link ImBitmapElement} to be prefetched
+     * @param height desired height of the {@link ImBitmapElement} to be prefetched
+     */
+    synchronized void setWindow(List<? extends ImBitmap> imBitmaps, int width, int height)
+    {
+        long generation = generationCounter.incrementAndGet();
+
+        Map<String, PrefetchTask> oldWindowTasks = windowTasks;
+        windowTasks = new HashMap<>(imBitmaps.size() * 2);
+
+        for(int i = 0; i < imBitmaps.size(); i++)
+        {
+            ImBitmap imBitmap = imBitmaps.get(i);
+
+            if(imBitmap == null || imBitmap.isMalformed() || imBitmap.isReady(width, height))
+            {
+                continue;
+            }
+
+            String taskKey = taskKey(imBitmap, width, height);
+            PrefetchTask oldTask = oldWindowTasks.remove(taskKey);
+
+            if(oldTask != null && oldTask.started)
+            {
+                // Already decoding, let it finish
+                windowTasks.put(taskKey, oldTask);
+                continue;
+            }
+
+            if(oldTask != null)
+            {
+                oldTask.cancelled = true;
+                executor.remove(oldTask);
+            }
+
+            PrefetchTask task = new PrefetchTask(imBitmap, width, height, generation, i, taskKey);
+            windowTasks.put(taskKey, task);
+            executor.execute(task);
+        }
+
+        // Whatever is left fell out of the window
+        for(PrefetchTask task : oldWindowTasks.values())
+        {
+            if(!task.started)
+            {
+                task.cancelled = true;
+                executor.remove(task);
+            }
+        }
+    }
+
+    /**
+     * Schedules a single preload, not bound to the prefetch window (so it's never cancelled by moving it)
+     */
+    PrefetchTask submit(ImBitmap imBitmap, int width, int height)
+    {
+        PrefetchTask task = new PrefetchTask(imBitmap, width, height, generationCounter.get(), Integer.MAX_VALUE, null);
+        executor.execute(task);
+
+        return task;
+    }
+
+    /**
+     * Cancels a task returned by {@link ImBitmapPrefetcher#submit(ImBitmap, int, int)}, if it has not started yet
+     */
+    void cancel(PrefetchTask task)
+    {
+        if(!task.started)
+        {
+            task.cancelled = true;
+            executor.remove(task);
+        }
+    }
+
+    /**
+     * Cancels every pending task of the current window
+     */
+    synchronized void cancelWindow()
+    {
+        setWindow(new ArrayList<ImBitmap>(0), 0, 0);
+    }
+
+    /**
+     * @return number of tasks of the current window that have not finished yet
+     */
+    synchronized int getPendingCount()
+    {
+        return windowTasks.size();
+    }
+
+    private synchronized void onTaskFinished(PrefetchTask task)
+    {
+        if(task.key != null && windowTasks.get(task.key) == task)
+        {
+            windowTasks.remove(task.key);
+        }
+    }
+
+    private static String taskKey(ImBitmap imBitmap, int width, int height)
+    {
+        return imBitmap.getCacheBitmapId() + "_" + imBitmap.getResizeFactor(imBitmap.originalWidth, imBitmap.originalHeight, width, height);
+    }
+
+    /**
+     * Creates the worker threads with a priority lower than the regular background work (like the visible images loads)
+     */
+    private static class PrefetchThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable)
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE);
+                    runnable.run();
+                }
+            }, TAG + " #" + threadCount.incrementAndGet());
+
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.jmleiva.imaginelib.view.ImBitmapView;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Named group of {@link ImBitmapElement} retained by the views of a screen (i.e. an activity or a fragment), opened with
+ * {@link ImBitmapManager#openScope(String)} and set on the views with {@link ImBitmapView#setScope(ImBitmapScope)}.
+ * <p>
+ * Closing the scope (i.e. when the screen is destroyed) releases every element retained through it in one operation,
+ * even the ones pinned by leaked views: the views are unset, their handles closed, and the elements are left first in line
+ * to be trimmed, skipping their grace period. The pending loads started through the scope are cancelled too.
+ */
+public class ImBitmapScope
+{
+    final static String TAG = "ImBitmapScope";
+
+    private final String name;
+    private final ImBitmapManager imBitmapManager;
+
+    private final Set<ImBitmapHandle> handles;
+    private final Set<AsyncTask> loads;
+    private final Set<ImBitmapPrefetcher.PrefetchTask> preloads;
+
+    private boolean closed;
+
+    ImBitmapScope(String name, ImBitmapManager imBitmapManager)
+    {
+        this.name = name;
+        this.imBitmapManager = imBitmapManager;
+
+        handles = new HashSet<>();
+        loads = new HashSet<>();
+        preloads = new HashSet<>();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public synchronized boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * @return number of {@link ImBitmapHandle} open through this scope
+     */
+    public synchronized int getHandleCount()
+    {
+        return handles.size();
+    }
+
+    /**
+     * Tracks a handle, so it's closed when the scope is closed. Called by {@link ImBitmapView} when it retains an element.
+     * Handles of a closed scope are not tracked.
+     */
+    public synchronized void track(ImBitmapHandle handle)
+    {
+        if(closed || handle.isClosed())
+        {
+            return;
+        }
+
+        handle.scope = this;
+        handles.add(handle);
+    }
+
+    /**
+     * Tracks a load, so it's cancelled if it's still pending when the scope is closed.
+     * Called by {@link ImBitmapView} when it starts loading.
+     */
+    public synchronized void trackLoad(AsyncTask load)
+    {
+        if(closed || load == null)
+        {
+            return;
+        }
+
+        // Finished loads are forgotten here, instead of being notified
+        Iterator<AsyncTask> it = loads.iterator();
+
+        while (it.hasNext())
+        {
+            if(it.next().getStatus() == AsyncTask.Status.FINISHED)
+            {
+                it.remove();
+            }
+        }
+
+        loads.add(load);
+    }
+
+    /**
+     * Like {@link ImBitmap#preloadAsync(int, int)}, but the preload is cancelled if it has not started when the scope is closed
+     */
+    public void preloadAsync(ImBitmap imBitmap, int width, int height)
+    {
+        ImBitmapPrefetcher.PrefetchTask task;
+
+        synchronized (this)
+        {
+            if(closed)
+            {
+                return;
+            }
+
+            // Started or cancelled preloads are forgotten here
+            Iterator<ImBitmapPrefetcher.PrefetchTask> it = preloads.iterator();
+
+            while (it.hasNext())
+            {
+                ImBitmapPrefetcher.PrefetchTask preload = it.next();
+
+                if(preload.started || preload.cancelled)
+                {
+                    it.remove();
+                }
+            }
+
+            task = imBitmapManager.getPrefetcher().submit(imBitmap, width, height);
+            preloads.add(task);
+        }
+    }
+
+    /**
+     * Called by {@link ImBitmapHandle#close()}
+     */
+    synchronized void onHandleClosed(ImBitmapHandle handle)
+    {
+        handles.remove(handle);
+    }
+
+    /**
+     * Releases every {@link ImBitmapElement} retained through this scope, and cancels its pending loads.
+     * Calling it more than once has no effect. Should be called from the UI thread, otherwise the views are unset
+     * in the next UI loop.
+     */
+    public void close()
+    {
+        final List<ImBitmapHandle> closedHandles;
+        List<AsyncTask> cancelledLoads;
+        List<ImBitmapPrefetcher.PrefetchTask> cancelledPreloads;
+
+        synchronized (this)
+        {
+            if(closed)
+            {
+                return;
+            }
+
+            closed = true;
+
+            closedHandles = new ArrayList<>(handles);
+            cancelledLoads = new ArrayList<>(loads);
+            cancelledPreloads = new ArrayList<>(preloads);
+
+            handles.clear();
+            loads.clear();
+            preloads.clear();
+        }
+
+        imBitmapManager.onScopeClosed(this);
+
+        for(AsyncTask load : cancelledLoads)
+        {
+            if(load.getStatus() != AsyncTask.Status.FINISHED)
+            {
+                load.cancel(true);
+            }
+        }
+
+        for(ImBitmapPrefetcher.PrefetchTask preload : cancelledPreloads)
+        {
+            imBitmapManager.getPrefetcher().cancel(preload);
+        }
+
+        if(Looper.myLooper() == Looper.getMainLooper())
+        {
+            releaseHandles(closedHandles);
+        }
+        else
+        {
+            new Handler(Looper.getMainLooper()).post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    releaseHandles(closedHandles);
+                }
+            });
+        }
+
+        Log.i(TAG, String.format("Scope %s closed. %d handles released, %d loads cancelled", name, closedHandles.size(),
+                cancelledLoads.size() + cancelledPreloads.size()));
+    }
+
+    private static void releaseHandles(List<ImBitmapHandle> closedHandles)
+    {
+        for(ImBitmapHandle handle : closedHandles)
+        {
+            ImBitmapView view = handle.getView();
+
+            // The view must stop drawing the element before it can be trimmed
+            if(view != null && !handle.isClosed())
+            {
+                view.removeImBitmap();
+            }
+
+            handle.close();
+            handle.getElement().deprioritize();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * {@link ImBitmapElement} Subclass, representing a single tile of a {@link ImTiledBitmap}
+ * <p>
+ * A tile is identified by its level (the image is sampled by 2^level) and its column and row inside that level.
+ * As tiles are not shown by a {@link com.jmleiva.imaginelib.view.ImBitmapView}, they have their own retain count.
+ */
+public class ImBitmapTile extends ImBitmapElement
+{
+    final int level;
+    final int column;
+    final int row;
+    final Rect region;
+
+    private int tileRetainCount;
+
+    ImBitmapTile(ImTiledBitmap parent, Bitmap bitmap, int level, int column, int row, Rect region, ImBitmapManager imBitmapManager)
+    {
+        super(parent, bitmap, 1 << level, imBitmapManager);
+
+        this.level = level;
+        this.column = column;
+        this.row = row;
+        this.region = region;
+    }
+
+    /**
+     * @return level of this tile. The image is sampled by 2^level in this level.
+     */
+    public int getLevel()
+    {
+        return level;
+    }
+
+    public int getColumn()
+    {
+        return column;
+    }
+
+    public int getRow()
+    {
+        return row;
+    }
+
+    /**
+     * @return the region of the original image covered by this tile, in original image pixels
+     */
+    public Rect getRegion()
+    {
+        return region;
+    }
+
+    /**
+     * Tiles are decoded again from the source region, they are not kept encoded
+     */
+    @Override
+    boolean isEncodable()
+    {
+        return false;
+    }
+
+    /**
+     * Marks this tile as visible, so it's not disposed before the off-screen ones
+     * @return false if it's being disposed (its {@link Bitmap} may be recycled already), so it must be decoded again
+     */
+    public synchronized boolean retainTile()
+    {
+        if(disposing)
+        {
+            return false;
+        }
+
+        lastUsedTimestamp = System.nanoTime();
+        tileRetainCount++;
+        return true;
+    }
+
+    /**
+     * Marks this tile as no longer visible
+     */
+    public synchronized void releaseTile()
+    {
+        if(tileRetainCount > 0)
+        {
+            tileRetainCount--;
+        }
+    }
+
+    @Override
+    public synchronized boolean isSafeToDispose()
+    {
+        return tileRetainCount <= 0 && super.isSafeToDispose();
+    }
+}
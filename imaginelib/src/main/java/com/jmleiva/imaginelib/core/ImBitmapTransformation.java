@@ -0,0 +1,40 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.jmleiva.imaginelib.core;
+
+import android.graphics.Bitmap;
+
+/**
+ * A transformation applied to a {@link Bitmap} once it's loaded (i.e. a crop, a blur or a tint).
+ * Used through a {@link ImBitmapTransformationChain}; the results are cached as their own {@link ImBitmapElement}.
+ */
+public interface ImBitmapTransformation
+{
+    /**
+     * Applies the transformation. Called in background.
+     * @param source {@link Bitmap} to transform, with the orientation of the image already applied. It must not be recycled.
+     * @return the transformed {@link Bitmap}, that can be the source itself if it's mutable and it was modified in place,
+     * or {@code null} if the transformation failed
+     */
+    Bitmap transform(Bitmap source);
+
+    /**
+     * @return a key that identifies this transformation and its parameters (i.e. "blur(radius=8)"). Results are cached by key,
+     * so two transformations with the same key must produce the same result.
+     */
+    String getKey();
+}
@@ -0,0 +1,130 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.jmleiva.imaginelib.core;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordered list of {@link ImBitmapTransformation} applied to an {@link ImBitmap} when it's loaded
+ * (see {@link ImBitmap#getBitmapAsync(int, int, ImBitmapTransformationChain, ImBitmap.OnGetBitmapListener)}).
+ * <p>
+ * The results are cached as {@link ImBitmapElement} variants, keyed by size factor and the key of the chain (see
+ * {@link ImBitmapTransformationChain#getKey()}), so they are transformed only once and count against the memory of the
+ * {@link ImBitmapManager} like any other element. Persistent chains are also stored in the disk cache.
+ * <p>
+ * Instances are immutable, so they can be shared.
+ */
+public final class ImBitmapTransformationChain
+{
+    private final List<ImBitmapTransformation> transformations;
+    private final String key;
+    private final boolean persistent;
+
+    /**
+     * @param transformations {@link ImBitmapTransformation} to be applied, in order
+     */
+    public ImBitmapTransformationChain(ImBitmapTransformation... transformations)
+    {
+        this(Arrays.asList(transformations), false);
+    }
+
+    private ImBitmapTransformationChain(List<ImBitmapTransformation> transformations, boolean persistent)
+    {
+        this.transformations = Collections.unmodifiableList(new ArrayList<>(transformations));
+        this.persistent = persistent;
+
+        StringBuilder keyBuilder = new StringBuilder();
+
+        for(ImBitmapTransformation transformation : this.transformations)
+        {
+            if(keyBuilder.length() > 0)
+            {
+                keyBuilder.append('|');
+            }
+
+            keyBuilder.append(transformation.getKey());
+        }
+
+        key = keyBuilder.toString();
+    }
+
+    /**
+     * @return a copy of this chain whose results are also stored in the disk cache (if it's enabled,
+     * see {@link ImBitmapManager#enableDiskCache()}), so they survive the app process
+     */
+    public ImBitmapTransformationChain persistent()
+    {
+        return new ImBitmapTransformationChain(transformations, true);
+    }
+
+    public boolean isPersistent()
+    {
+        return persistent;
+    }
+
+    public boolean isEmpty()
+    {
+        return transformations.isEmpty();
+    }
+
+    public List<ImBitmapTransformation> getTransformations()
+    {
+        return transformations;
+    }
+
+    /**
+     * @return the keys of the transformations, in order, separated by '|'
+     */
+    public String getKey()
+    {
+        return key;
+    }
+
+    /**
+     * Applies every transformation in order. The intermediate {@link Bitmap} (including the source, if it was replaced) are recycled.
+     * @param source {@link Bitmap} to transform. Owned by the chain from now on.
+     * @return the final {@link Bitmap}, or {@code null} if a transformation failed
+     */
+    Bitmap apply(Bitmap source)
+    {
+        Bitmap current = source;
+
+        for(ImBitmapTransformation transformation : transformations)
+        {
+            Bitmap transformed = transformation.transform(current);
+
+            if(transformed != current)
+            {
+                current.recycle();
+            }
+
+            if(transformed == null)
+            {
+                return null;
+            }
+
+            current = transformed;
+        }
+
+        return current;
+    }
+}
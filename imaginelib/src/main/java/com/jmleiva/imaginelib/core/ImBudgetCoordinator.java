@@ -0,0 +1,440 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.jmleiva.imaginelib.core.cache.CacheImBitmapManager;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares a single, process wide, memory budget among every live {@link ImBitmapManager}, so an app with several managers
+ * (i.e. one per activity) doesn't use more memory than an app with only one.
+ * <p>
+ * Each manager gets a share of the global budget proportional to its recent demand (the bytes it loaded lately), with a
+ * minimum so an idle manager keeps a few images. Shares are recalculated periodically while the managers load images,
+ * and right away when the global budget is exceeded; a manager whose share shrinks below its size trims itself
+ * (see {@link ImBitmapManager#trimMemory()}), so the memory of idle managers is given to the busy ones.
+ * <p>
+ * The global budget is sized, and resized while the app runs, by a {@link ImBudgetPolicy} (see
+ * {@link ImBudgetCoordinator#setBudgetPolicy(ImBudgetPolicy)}), that also sizes the disk cache.
+ * <p>
+ * Managers are only weakly referenced, they leave the coordinator when they are collected.
+ */
+public final class ImBudgetCoordinator
+{
+    final static String TAG = "ImBudgetCoordinator";
+
+    /**
+     * Min time between two recalculations of the shares, while the global budget is not exceeded
+     */
+    private final static long REBALANCE_INTERVAL_MILLIS = 500;
+
+    /**
+     * Every manager gets at least this fraction of an equal share
+     */
+    private final static double MIN_SHARE_FRACTION = 0.25;
+
+    /**
+     * Min time between two calls to {@link ImBudgetPolicy#adjustMemoryBudget(long, ImBudgetStats)}
+     */
+    private final static long ADJUST_INTERVAL_MILLIS = 30000;
+
+    /**
+     * Size the disk cache is reduced to when trimmed, relative to its max size
+     */
+    private final static double DISK_TRIM_FRACTION = 0.4;
+
+    private final static List<WeakReference<ImBitmapManager>> managers = new ArrayList<>();
+    private final static AtomicLong totalSize = new AtomicLong();
+    private final static AtomicLong loadCount = new AtomicLong();
+
+    // Use 1/8th of the available memory for all the managers, until the budget policy sizes it
+    private static long globalBudget = Runtime.getRuntime().maxMemory() / 8;
+    private static long lastRebalanceTime;
+
+    private static ImBudgetPolicy budgetPolicy = new ImAdaptiveBudgetPolicy();
+    private static Context applicationContext;
+
+    /**
+     * Set when the app sets the global budget, so the budget policy doesn't change it
+     */
+    private static boolean budgetFixed;
+
+    private static long lastAdjustTime;
+    private static long lastLoadCount;
+    private static long lastTrimCount;
+    private static long lastReloadCount;
+
+    private final static ComponentCallbacks2 componentCallbacks = new ComponentCallbacks2()
+    {
+        @Override
+        public void onTrimMemory(int level)
+        {
+            ImBudgetCoordinator.onTrimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory()
+        {
+            ImBudgetCoordinator.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig)
+        {
+        }
+    };
+
+    private ImBudgetCoordinator()
+    {
+    }
+
+    /**
+     * Sets the memory shared by every {@link ImBitmapManager}. By default, it's sized by the {@link ImBudgetPolicy}.
+     * <p>
+     * A budget set this way is not changed by the policy anymore, until a policy is set again.
+     * @param bytes global budget in bytes
+     */
+    public static void setGlobalBudget(long bytes)
+    {
+        synchronized (managers)
+        {
+            globalBudget = bytes;
+            budgetFixed = true;
+        }
+
+        rebalance();
+    }
+
+    /**
+     * Sets the {@link ImBudgetPolicy} that sizes the memory budget and the disk cache. By default, a {@link ImAdaptiveBudgetPolicy}.
+     * If a {@link ImBitmapManager} was already created, the memory budget is sized again right away.
+     * @throws IllegalArgumentException if the policy is {@code null}
+     */
+    public static void setBudgetPolicy(ImBudgetPolicy policy)
+    {
+        if(policy == null)
+        {
+            throw new IllegalArgumentException("ImBudgetPolicy can't be null");
+        }
+
+        Context context;
+
+        synchronized (managers)
+        {
+            budgetPolicy = policy;
+            budgetFixed = false;
+            context = applicationContext;
+        }
+
+        if(context != null)
+        {
+            setPolicyBudget(policy.getMemoryBudget(context));
+        }
+    }
+
+    public static ImBudgetPolicy getBudgetPolicy()
+    {
+        synchronized (managers)
+        {
+            return budgetPolicy;
+        }
+    }
+
+    public static long getGlobalBudget()
+    {
+        synchronized (managers)
+        {
+            return globalBudget;
+        }
+    }
+
+    /**
+     * @return bytes used by the {@link ImBitmapElement} of every {@link ImBitmapManager}
+     */
+    public static long getTotalSize()
+    {
+        return totalSize.get();
+    }
+
+    /**
+     * @return number of {@link ImBitmapManager} sharing the global budget
+     */
+    public static int getManagerCount()
+    {
+        return getLiveManagers().size();
+    }
+
+    /**
+     * Called by the {@link ImBitmapManager} constructor before reading the global budget. The first time, the budgets are
+     * sized by the {@link ImBudgetPolicy}, and the coordinator starts listening to the memory warnings of the system.
+     */
+    static void attach(Context context)
+    {
+        ImBudgetPolicy policy;
+        Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+
+        synchronized (managers)
+        {
+            if(applicationContext != null)
+            {
+                return;
+            }
+
+            applicationContext = appContext;
+            lastAdjustTime = SystemClock.uptimeMillis();
+            policy = budgetPolicy;
+        }
+
+        appContext.registerComponentCallbacks(componentCallbacks);
+
+        long diskBudget = policy.getDiskBudget(appContext);
+        CacheImBitmapManager.sharedManager().setDefaultMaxSize(diskBudget, (long) (diskBudget * DISK_TRIM_FRACTION));
+
+        long memoryBudget = policy.getMemoryBudget(appContext);
+
+        synchronized (managers)
+        {
+            if(!budgetFixed)
+            {
+                globalBudget = memoryBudget;
+            }
+        }
+
+        Log.i(TAG, String.format("Budgets sized. Memory: %d kb, disk: %d kb", getGlobalBudget() / 1024, diskBudget / 1024));
+    }
+
+    /**
+     * Called by the {@link ImBitmapManager} constructor, once it's fully built. The shares of the rest of the managers are reduced.
+     */
+    static void register(ImBitmapManager manager)
+    {
+        synchronized (managers)
+        {
+            managers.add(new WeakReference<>(manager));
+        }
+
+        rebalance();
+    }
+
+    /**
+     * Called by the {@link ImBitmapManager} each time it loads a {@link android.graphics.Bitmap}, without holding its lock
+     */
+    static void onMemoryIncreased(long bytes)
+    {
+        long total = totalSize.addAndGet(bytes);
+        loadCount.incrementAndGet();
+        long now = SystemClock.uptimeMillis();
+
+        boolean adjust;
+
+        synchronized (managers)
+        {
+            adjust = applicationContext != null && now - lastAdjustTime >= ADJUST_INTERVAL_MILLIS;
+
+            if(!adjust && total <= globalBudget && now - lastRebalanceTime < REBALANCE_INTERVAL_MILLIS)
+            {
+                return;
+            }
+        }
+
+        if(adjust)
+        {
+            adjustBudget(now);
+        }
+        else
+        {
+            rebalance();
+        }
+    }
+
+    /**
+     * Lets the {@link ImBudgetPolicy} resize the global budget, from what the managers did since the last adjustment
+     */
+    private static void adjustBudget(long now)
+    {
+        long trims = 0;
+        long reloads = 0;
+
+        for(ImBitmapManager manager : getLiveManagers())
+        {
+            trims += manager.getTrimCount();
+            reloads += manager.getEncodedCacheHitCount() + manager.getParkingHitCount();
+        }
+
+        ImBudgetPolicy policy;
+        ImBudgetStats stats;
+        long budget;
+
+        synchronized (managers)
+        {
+            if(now - lastAdjustTime < ADJUST_INTERVAL_MILLIS)
+            {
+                return;
+            }
+
+            long loads = loadCount.get();
+
+            // Collected managers take their counts with them, so the deltas can't be trusted to be positive
+            stats = new ImBudgetStats(now - lastAdjustTime, totalSize.get(), Math.max(0, trims - lastTrimCount),
+                    Math.max(0, loads - lastLoadCount), Math.max(0, reloads - lastReloadCount));
+
+            lastAdjustTime = now;
+            lastTrimCount = trims;
+            lastLoadCount = loads;
+            lastReloadCount = reloads;
+
+            policy = budgetPolicy;
+            budget = globalBudget;
+        }
+
+        setPolicyBudget(policy.adjustMemoryBudget(budget, stats));
+    }
+
+    /**
+     * Called when the system asks the app to release memory
+     */
+    static void onTrimMemory(int level)
+    {
+        ImBudgetPolicy policy;
+        long budget;
+
+        synchronized (managers)
+        {
+            policy = budgetPolicy;
+            budget = globalBudget;
+        }
+
+        Log.i(TAG, String.format("Trim memory requested by the system, level %d", level));
+
+        setPolicyBudget(policy.onTrimMemory(budget, level));
+    }
+
+    /**
+     * Sets a budget given by the {@link ImBudgetPolicy}, unless the app set its own, and shares it among the managers
+     */
+    private static void setPolicyBudget(long bytes)
+    {
+        synchronized (managers)
+        {
+            if(budgetFixed)
+            {
+                return;
+            }
+
+            globalBudget = Math.max(0, bytes);
+        }
+
+        rebalance();
+    }
+
+    static void onMemoryDecreased(long bytes)
+    {
+        totalSize.addAndGet(-bytes);
+    }
+
+    private static List<ImBitmapManager> getLiveManagers()
+    {
+        List<ImBitmapManager> liveManagers = new ArrayList<>();
+
+        synchronized (managers)
+        {
+            Iterator<WeakReference<ImBitmapManager>> it = managers.iterator();
+
+            while (it.hasNext())
+            {
+                ImBitmapManager manager = it.next().get();
+
+                if(manager == null)
+                {
+                    it.remove();
+                }
+                else
+                {
+                    liveManagers.add(manager);
+                }
+            }
+        }
+
+        return liveManagers;
+    }
+
+    /**
+     * Recalculates the share of every manager. The managers are updated outside the coordinator lock, one at a time,
+     * so a manager is never locked while holding another one.
+     */
+    static void rebalance()
+    {
+        List<ImBitmapManager> liveManagers = getLiveManagers();
+
+        if(liveManagers.isEmpty())
+        {
+            return;
+        }
+
+        long budget;
+        long now = SystemClock.uptimeMillis();
+
+        synchronized (managers)
+        {
+            budget = globalBudget;
+            lastRebalanceTime = now;
+        }
+
+        double[] demands = new double[liveManagers.size()];
+        double totalDemand = 0;
+
+        for(int i = 0; i < demands.length; i++)
+        {
+            demands[i] = liveManagers.get(i).getRecentDemand(now);
+            totalDemand += demands[i];
+        }
+
+        long minShare = (long) (budget * MIN_SHARE_FRACTION / liveManagers.size());
+        long sharedBudget = budget - minShare * liveManagers.size();
+
+        for(int i = 0; i < demands.length; i++)
+        {
+            long share;
+
+            if(totalDemand > 0)
+            {
+                share = minShare + (long) (sharedBudget * (demands[i] / totalDemand));
+            }
+            else
+            {
+                share = budget / liveManagers.size();
+            }
+
+            liveManagers.get(i).setBudget(share);
+        }
+
+        Log.i(TAG, String.format("Budget of %d kb shared among %d managers. Total size: %d kb", budget / 1024,
+                liveManagers.size(), totalSize.get() / 1024));
+    }
+}
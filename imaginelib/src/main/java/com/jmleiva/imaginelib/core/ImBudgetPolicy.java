@@ -0,0 +1,59 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+
+/**
+ * Sizes the memory budget shared by every {@link ImBitmapManager} (see {@link ImBudgetCoordinator}) and the disk cache
+ * (see {@link com.jmleiva.imaginelib.core.cache.CacheImBitmapManager}), and resizes the memory budget while the app runs.
+ * Set with {@link ImBudgetCoordinator#setBudgetPolicy(ImBudgetPolicy)}. By default, a {@link ImAdaptiveBudgetPolicy}.
+ * <p>
+ * The methods are called by {@link ImBudgetCoordinator} one at a time, from any thread.
+ */
+public interface ImBudgetPolicy
+{
+    /**
+     * Called when the first {@link ImBitmapManager} is created
+     * @return initial memory budget in bytes, shared by every {@link ImBitmapManager}
+     */
+    long getMemoryBudget(Context context);
+
+    /**
+     * Called when the first {@link ImBitmapManager} is created, unless the app already sized the disk cache
+     * @return max amount of bytes kept by the disk cache
+     */
+    long getDiskBudget(Context context);
+
+    /**
+     * Called periodically while the managers load images
+     * @param currentBudget current memory budget in bytes
+     * @param stats what happened since the last call
+     * @return new memory budget in bytes
+     */
+    long adjustMemoryBudget(long currentBudget, ImBudgetStats stats);
+
+    /**
+     * Called when the system asks the app to release memory (see {@link ComponentCallbacks2#onTrimMemory(int)})
+     * @param currentBudget current memory budget in bytes
+     * @param level one of the {@link ComponentCallbacks2} TRIM_MEMORY levels
+     * @return new memory budget in bytes
+     */
+    long onTrimMemory(long currentBudget, int level);
+}
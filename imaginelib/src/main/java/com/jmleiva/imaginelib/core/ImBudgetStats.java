@@ -0,0 +1,68 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+/**
+ * Data Class.
+ * <p>
+ * What the {@link ImBitmapManager} did since the last call to {@link ImBudgetPolicy#adjustMemoryBudget(long, ImBudgetStats)}
+ */
+public final class ImBudgetStats
+{
+    /**
+     * Time since the last adjustment
+     */
+    public final long intervalMillis;
+
+    /**
+     * Bytes used by the {@link ImBitmapElement} of every manager
+     */
+    public final long totalSize;
+
+    /**
+     * Number of times the managers were trimmed (see {@link ImBitmapManager#trimMemory()})
+     */
+    public final long trimCount;
+
+    /**
+     * Number of bitmaps loaded
+     */
+    public final long loadCount;
+
+    /**
+     * Number of loaded bitmaps that had been evicted before, restored from the encoded or the parking tier
+     */
+    public final long reloadCount;
+
+    ImBudgetStats(long intervalMillis, long totalSize, long trimCount, long loadCount, long reloadCount)
+    {
+        this.intervalMillis = intervalMillis;
+        this.totalSize = totalSize;
+        this.trimCount = trimCount;
+        this.loadCount = loadCount;
+        this.reloadCount = reloadCount;
+    }
+
+    /**
+     * @return fraction of the loads that were evicted elements shown again, a sign of a budget too small for the app
+     */
+    public double getReloadRate()
+    {
+        return loadCount > 0 ? Math.min(1, (double) reloadCount / loadCount) : 0;
+    }
+}
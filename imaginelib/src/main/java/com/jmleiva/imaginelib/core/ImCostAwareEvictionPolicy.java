@@ -0,0 +1,63 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.jmleiva.imaginelib.core;
+
+/**
+ * Default {@link ImEvictionPolicy}. Evicts first the {@link ImBitmapElement} that free the most memory for the least
+ * reload cost, i.e. a local resource decoded in a few millis goes before a picture downloaded from the network.
+ * <p>
+ * The cost of an element is the time it took to load it (see {@link ImBitmapElement#getReloadCostNanos()}), divided
+ * by the bytes it takes. It's weighted down as the element goes unused, so expensive elements are not kept forever.
+ */
+public class ImCostAwareEvictionPolicy implements ImEvictionPolicy
+{
+    /**
+     * Time unused after which the cost of an element counts half
+     */
+    private final static long DEFAULT_HALF_LIFE_NANOS = 30 * 1000000000L;
+
+    /**
+     * Loads faster than this are considered to cost this, so the measure noise doesn't decide the order
+     */
+    private final static long MIN_COST_NANOS = 1000000L;
+
+    private final long halfLifeNanos;
+
+    public ImCostAwareEvictionPolicy()
+    {
+        this(DEFAULT_HALF_LIFE_NANOS);
+    }
+
+    /**
+     * @param halfLifeNanos time unused after which the cost of an element counts half
+     */
+    public ImCostAwareEvictionPolicy(long halfLifeNanos)
+    {
+        this.halfLifeNanos = Math.max(1, halfLifeNanos);
+    }
+
+    @Override
+    public double getRetentionScore(ImBitmapElement element, long nowNanos)
+    {
+        double costPerByte = (double) Math.max(MIN_COST_NANOS, element.getReloadCostNanos()) / Math.max(1, element.getByteCount());
+
+        // Deprioritized elements have no timestamp, so they count as unused for a long time
+        long unusedNanos = Math.max(0, nowNanos - element.lastUsedTimesatmp());
+
+        return costPerByte / (1 + (double) unusedNanos / halfLifeNanos);
+    }
+}
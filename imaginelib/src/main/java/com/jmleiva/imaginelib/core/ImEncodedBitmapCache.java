@@ -0,0 +1,346 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In memory tier between the {@link ImBitmapElement} and the sources (disk, network...), that keeps the encoded
+ * (JPEG, or PNG if they have transparency) bytes of the elements evicted by {@link ImBitmapManager#trimMemory()}.
+ * <p>
+ * Decoding them again from memory is several times cheaper than reading the source, and an encoded image takes about
+ * a tenth of the memory of its {@link Bitmap}. The tier has its own byte budget, and drops the least recently used entries
+ * when it's exceeded.
+ * <p>
+ * Evicted elements are encoded before their {@link Bitmap} is recycled, outside the UI thread (see {@link ImEvictionExecutor}).
+ * Elements that can be decoded again from an entry kept already (their original source, or the entry they were restored
+ * from) are not encoded again, so they don't lose quality on each eviction.
+ * <p>
+ * The tier also keeps, within the same budget, the encoded sources fetched by some {@link ImBitmap} (i.e. the bytes downloaded
+ * by {@link ImRemoteBitmap}), so they can be decoded again (i.e. the final pass of a progressive load) without fetching them again.
+ */
+class ImEncodedBitmapCache
+{
+    final static String TAG = "ImEncodedBitmapCache";
+
+    private final static int JPEG_QUALITY = 85;
+    final static char KEY_SEPARATOR = '@';
+
+    /**
+     * Size factor of the source entries (see {@link ImEncodedBitmapCache#putSource(String, byte[])}), never used by an element
+     */
+    private final static int SOURCE_SIZE_FACTOR = 0;
+
+    /**
+     * An encoded {@link ImBitmapElement}
+     */
+    static class Entry
+    {
+        final byte[] data;
+        final Bitmap.Config config;
+        final int orientation;
+
+        Entry(byte[] data, Bitmap.Config config, int orientation)
+        {
+            this.data = data;
+            this.config = config;
+            this.orientation = orientation;
+        }
+
+        /**
+         * @return the decoded {@link Bitmap}, or {@code null} if it could not be decoded
+         */
+        Bitmap decode()
+        {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = config != null ? config : ImBitmapManager.COLOR_CONFIG;
+
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long maxSize;
+    private long currentSize;
+
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * @param maxSize max amount of encoded bytes kept. 0 to disable the tier
+     */
+    ImEncodedBitmapCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+
+        // Access ordered, so iteration starts by the least recently used
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * @return key of the {@link ImBitmapElement} of an {@link ImBitmap}, with a size factor, transformations and config
+     */
+    static String keyFor(String cacheBitmapId, int sizeFactor, String transformationKey, Bitmap.Config config)
+    {
+        StringBuilder key = new StringBuilder(cacheBitmapId).append(KEY_SEPARATOR).append(sizeFactor);
+
+        if(config != null)
+        {
+            key.append(KEY_SEPARATOR).append(config.ordinal());
+        }
+
+        if(transformationKey != null)
+        {
+            key.append(ImBitmap.TRANSFORMATION_ID_SEPARATOR).append(transformationKey);
+        }
+
+        return key.toString();
+    }
+
+    static String keyFor(ImBitmapElement element)
+    {
+        return keyFor(element.getParent().getCacheBitmapId(), element.sizeFactor, element.transformationKey, element.config);
+    }
+
+    /**
+     * @return key of the source of an {@link ImBitmap}, or of a content shared by several ones (see {@link ImBitmapContent})
+     */
+    static String sourceKeyFor(String id)
+    {
+        return id + KEY_SEPARATOR + SOURCE_SIZE_FACTOR;
+    }
+
+    /**
+     * Keeps the encoded source of an {@link ImBitmap}, unless it's already kept
+     */
+    synchronized void putSource(String sourceKey, byte[] data)
+    {
+        if(maxSize > 0 && !entries.containsKey(sourceKey))
+        {
+            put(sourceKey, new Entry(data, null, 0));
+        }
+    }
+
+    /**
+     * @return the encoded source kept, or {@code null}. Not counted as a hit or a miss, as they count reloads of evicted elements.
+     */
+    synchronized byte[] getSource(String sourceKey)
+    {
+        Entry entry = entries.get(sourceKey);
+
+        return entry != null ? entry.data : null;
+    }
+
+    synchronized void removeSource(String sourceKey)
+    {
+        Entry entry = entries.remove(sourceKey);
+
+        if(entry != null)
+        {
+            currentSize -= entry.data.length;
+        }
+    }
+
+    synchronized boolean isEnabled()
+    {
+        return maxSize > 0;
+    }
+
+    synchronized void setMaxSize(long maxSize)
+    {
+        this.maxSize = maxSize;
+        trimToSize();
+    }
+
+    synchronized long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    synchronized long getSize()
+    {
+        return currentSize;
+    }
+
+    synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Encodes the {@link Bitmap} of an evicted {@link ImBitmapElement}, and then recycles it
+     * (see {@link ImBitmapElement#recycle(Bitmap)}). The bitmap must not be shown anymore.
+     * @return true if it's being encoded, or it's recycled already as it's kept encoded. False if there's a backlog
+     * (the caller keeps the bitmap)
+     */
+    boolean encodeAndRecycle(final ImBitmapElement element, final Bitmap bitmap)
+    {
+        ImBitmap parent = element.getParent();
+
+        if(parent == null)
+        {
+            return false;
+        }
+
+        String sourceKey = parent.getEncodedSourceKey();
+
+        if((sourceKey != null && contains(sourceKey)) || contains(keyFor(element)))
+        {
+            element.recycle(bitmap);
+            return true;
+        }
+
+        return ImEvictionExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                encode(element, bitmap);
+            }
+        });
+    }
+
+    /**
+     * @return true if the entry is kept. It counts as used, as it's going to be decoded instead of a new one.
+     */
+    private synchronized boolean contains(String key)
+    {
+        return entries.get(key) != null;
+    }
+
+    private void encode(ImBitmapElement element, Bitmap bitmap)
+    {
+        try
+        {
+            ImBitmap parent = element.getParent();
+
+            if(parent == null || bitmap.isRecycled())
+            {
+                return;
+            }
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+            if(bitmap.hasAlpha())
+            {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+            }
+            else
+            {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, outputStream);
+            }
+
+            put(keyFor(element),
+                    new Entry(outputStream.toByteArray(), bitmap.getConfig(), element.orientation));
+        }
+        catch (Exception e)
+        {
+            Log.e(TAG, "Could not encode evicted bitmap", e);
+        }
+        finally
+        {
+            element.recycle(bitmap);
+        }
+    }
+
+    /**
+     * @return the encoded element, or {@code null} if it's not in this tier
+     */
+    synchronized Entry get(String key)
+    {
+        if(maxSize <= 0)
+        {
+            return null;
+        }
+
+        Entry entry = entries.get(key);
+
+        if(entry != null)
+        {
+            hitCount++;
+        }
+        else
+        {
+            missCount++;
+        }
+
+        return entry;
+    }
+
+    private synchronized void put(String key, Entry entry)
+    {
+        if(entry.data.length > maxSize)
+        {
+            return;
+        }
+
+        Entry previousEntry = entries.put(key, entry);
+
+        if(previousEntry != null)
+        {
+            currentSize -= previousEntry.data.length;
+        }
+
+        currentSize += entry.data.length;
+        trimToSize();
+    }
+
+    /**
+     * Removes every entry of an {@link ImBitmap}, i.e. because its source changed
+     */
+    synchronized void remove(String cacheBitmapId)
+    {
+        String prefix = cacheBitmapId + KEY_SEPARATOR;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+
+        while (it.hasNext())
+        {
+            Map.Entry<String, Entry> pair = it.next();
+
+            if(pair.getKey().startsWith(prefix))
+            {
+                currentSize -= pair.getValue().data.length;
+                it.remove();
+            }
+        }
+    }
+
+    private void trimToSize()
+    {
+        Iterator<Entry> it = entries.values().iterator();
+
+        while (currentSize > maxSize && it.hasNext())
+        {
+            currentSize -= it.next().data.length;
+            it.remove();
+        }
+    }
+}
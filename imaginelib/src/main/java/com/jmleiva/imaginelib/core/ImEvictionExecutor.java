@@ -0,0 +1,104 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.os.Process;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the work needed to keep an evicted {@link ImBitmapElement} (encoding it, see {@link ImEncodedBitmapCache}, or
+ * compressing its pixels, see {@link ImBitmapParking}) outside the UI thread.
+ * <p>
+ * The work is always queued to a single thread at background priority, even for the evictions performed in a background
+ * thread: those come from {@link ImBitmapManager#trimMemory()}, that holds the manager lock, and encoding every evicted
+ * {@link android.graphics.Bitmap} inline would block the UI thread calls to the manager (i.e. {@link ImBitmapManager#getFileBitmap(String)})
+ * meanwhile.
+ * <p>
+ * The evicted bitmaps stay alive until their work is done, although the manager already counts them as freed, so the
+ * backlog is bounded: once it's full, the work is refused and the bitmap is recycled without keeping it.
+ */
+final class ImEvictionExecutor
+{
+    final static String TAG = "ImEvictionExecutor";
+
+    private final static int KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Max amount of evicted bitmaps waiting to be kept
+     */
+    private final static int MAX_PENDING = 4;
+
+    private static ThreadPoolExecutor executor;
+
+    private ImEvictionExecutor()
+    {
+    }
+
+    /**
+     * @return false if the backlog is full, so the work was refused
+     */
+    static boolean execute(Runnable runnable)
+    {
+        try
+        {
+            getExecutor().execute(runnable);
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            return false;
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor()
+    {
+        if(executor == null)
+        {
+            executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(MAX_PENDING), new EvictionThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        return executor;
+    }
+
+    /**
+     * Works at background priority, so it doesn't compete with the visible images loads
+     */
+    private static class EvictionThreadFactory implements ThreadFactory
+    {
+        @Override
+        public Thread newThread(final Runnable runnable)
+        {
+            return new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, TAG);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.jmleiva.imaginelib.core;
+
+/**
+ * Decides which {@link ImBitmapElement} are evicted first when {@link ImBitmapManager#trimMemory()} is performed.
+ * Set with {@link ImBitmapManager#setEvictionPolicy(ImEvictionPolicy)}.
+ * <p>
+ * The policy only orders the elements inside each group: unused elements are always evicted before the ones shown by a view,
+ * previews before the rest, and elements in grace period after the rest of the unused ones.
+ */
+public interface ImEvictionPolicy
+{
+    /**
+     * Called once per element and trim, from any thread.
+     * @param element candidate to be evicted
+     * @param nowNanos current time, as {@link System#nanoTime()}, the same for every element of a trim
+     * @return how much the element is worth keeping. Elements with the lowest score are evicted first.
+     */
+    double getRetentionScore(ImBitmapElement element, long nowNanos);
+}
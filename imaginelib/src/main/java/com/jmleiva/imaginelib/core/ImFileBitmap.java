@@ -19,9 +19,15 @@ package com.jmleiva.imaginelib.core;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
+import android.graphics.BitmapRegionDecoder;
 import android.media.ExifInterface;
+import android.os.SystemClock;
+import android.util.Log;
 
+import com.jmleiva.imaginelib.core.cache.CacheImBitmapManager;
+
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 
 /**
@@ -29,7 +35,28 @@ import java.io.IOException;
  */
 public class ImFileBitmap extends ImBitmap
 {
+    final static String TAG = "ImFileBitmap";
+
+    /**
+     * Max difference between the aspect ratio of the picture and its EXIF thumbnail for the thumbnail to be used
+     */
+    final static float MAX_THUMBNAIL_ASPECT_RATIO_DIFFERENCE = 0.05f;
+
+    /**
+     * Min time in millis between two checks of the file (see {@link ImFileBitmap#isSourceChanged()})
+     */
+    final static long VALIDATION_INTERVAL = 2000;
+
     String localPath;
+    int exifOrientation = ExifInterface.ORIENTATION_NORMAL;
+
+    /**
+     * Last modified time and length of the file when it was read. Both 0 if it was not read yet.
+     */
+    volatile long fileLastModified;
+    volatile long fileLength;
+    volatile long lastValidationTime;
+    volatile boolean sourceChanged;
 
     /**
      * ImFileBitmap Constructor
@@ -47,6 +74,12 @@ public class ImFileBitmap extends ImBitmap
         this.localPath = localPath;
     }
 
+    ImFileBitmap(ImBitmapKey registryKey, String idPrefix, String localPath, ImBitmapManager imBitmapManager)
+    {
+        super(registryKey, idPrefix, imBitmapManager);
+        this.localPath = localPath;
+    }
+
     @Override
     public boolean isMalformed()
     {
@@ -65,63 +98,425 @@ public class ImFileBitmap extends ImBitmap
     }
 
     @Override
-    public Bitmap retrieveBitmap(int width, int height)
+    public BitmapRegionDecoder createRegionDecoder() throws IOException
     {
-        Bitmap mBitmap = null;
+        return BitmapRegionDecoder.newInstance(localPath, false);
+    }
 
-        int orientation = 0;
+    @Override
+    protected int getOrientation()
+    {
+        return exifOrientation;
+    }
 
+    /**
+     * Compares the last modified time and length of the file with the ones it had when it was read.
+     * The file is checked at most once each {@link ImFileBitmap#VALIDATION_INTERVAL}, and once a change is
+     * found, it's reported until {@link ImFileBitmap#invalidate()} is called.
+     */
+    @Override
+    protected boolean isSourceChanged()
+    {
+        if(sourceChanged)
+        {
+            return true;
+        }
+
+        if(localPath == null || (fileLastModified == 0 && fileLength == 0))
+        {
+            return false;
+        }
+
+        long now = SystemClock.uptimeMillis();
+
+        if(now - lastValidationTime < VALIDATION_INTERVAL)
+        {
+            return false;
+        }
+
+        lastValidationTime = now;
+
+        File file = new File(localPath);
+
+        if(file.lastModified() != fileLastModified || file.length() != fileLength)
+        {
+            Log.i(TAG, String.format("%s changed, invalidating", localPath));
+            sourceChanged = true;
+        }
+
+        return sourceChanged;
+    }
+
+    @Override
+    protected boolean isSourceCheckDue()
+    {
+        return sourceChanged || (localPath != null && (fileLastModified != 0 || fileLength != 0) &&
+                SystemClock.uptimeMillis() - lastValidationTime >= VALIDATION_INTERVAL);
+    }
+
+    /**
+     * Also removes the picture from the disk cache, as it belongs to the previous version of the file.
+     */
+    @Override
+    public synchronized void invalidate()
+    {
+        super.invalidate();
+
+        fileLastModified = 0;
+        fileLength = 0;
+        sourceChanged = false;
+        exifOrientation = ExifInterface.ORIENTATION_NORMAL;
+
+        CacheImBitmapManager cacheImBitmapManager = CacheImBitmapManager.sharedManager();
+
+        if(cacheImBitmapManager.hasSource())
+        {
+            cacheImBitmapManager.deleteCachedImBitmap(getCacheBitmapId());
+        }
+    }
+
+    /**
+     * Keeps the version of the file being read, so later changes can be detected
+     */
+    private void setFileVersion(long lastModified, long length)
+    {
+        fileLastModified = lastModified;
+        fileLength = length;
+        lastValidationTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * @return true if the cached bitmap was created from the current version of the file
+     */
+    @Override
+    protected boolean isCacheImBitmapValid(CacheImBitmapManager.CacheImBitmap cacheImBitmap)
+    {
+        File file = new File(localPath);
+        return cacheImBitmap.sourceLastModified == file.lastModified() && cacheImBitmap.sourceLength == file.length();
+    }
+
+    /**
+     * Stores the version of the file that was read last
+     */
+    @Override
+    protected void setCacheImBitmapVersion(CacheImBitmapManager.CacheImBitmap cacheImBitmap)
+    {
+        cacheImBitmap.sourceLastModified = fileLastModified;
+        cacheImBitmap.sourceLength = fileLength;
+    }
+
+    /**
+     * @return the {@link ExifInterface} of the file, or {@code null} if it doesn't have EXIF support
+     */
+    private ExifInterface openExif()
+    {
         try
         {
-            ExifInterface exif = new ExifInterface(localPath);
-            int exifOrientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, -1);
-            switch (exifOrientation)
-            {
-                case ExifInterface.ORIENTATION_NORMAL:
-                    orientation = 0;
-                    break;
-                case ExifInterface.ORIENTATION_ROTATE_90:
-                    orientation = 90;
-                    break;
-                case ExifInterface.ORIENTATION_ROTATE_180:
-                    orientation = 180;
-                    break;
-                case ExifInterface.ORIENTATION_ROTATE_270:
-                    orientation = -90;
-                    break;
-            }
+            return new ExifInterface(localPath);
         }
         catch (IOException e)
         {
             // DO nothing, it simply doesn't have EXIF support
+            return null;
+        }
+    }
+
+    /**
+     * Reads the EXIF orientation of the file. The decoded {@link Bitmap} is not rotated, the orientation is
+     * kept in the {@link ImBitmapElement} and applied when drawing.
+     */
+    private static int readExifOrientation(ExifInterface exif)
+    {
+        if(exif == null)
+        {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+
+        int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+
+        if(orientation < ExifInterface.ORIENTATION_NORMAL || orientation > ExifInterface.ORIENTATION_ROTATE_270)
+        {
+            return ExifInterface.ORIENTATION_NORMAL;
         }
 
+        return orientation;
+    }
 
+    /**
+     * Fast path for small sizes: most camera pictures have an embedded thumbnail (around 160px) in their EXIF data,
+     * that can be decoded without reading the whole file.
+     *
+     * @param exif {@link ExifInterface} of the file
+     * @param width desired width, with the orientation applied
+     * @param height desired height, with the orientation applied
+     * @param preview true if it's decoded as a preview (see {@link ImBitmap#retrievePreviewBitmap(int, int)}), tagged with
+     * the size factor of its real size, so it only needs to be as big as the desired size
+     * @return the thumbnail {@link Bitmap}, or {@code null} if there is no thumbnail, or it's not big enough for the desired size.
+     * Otherwise, as the {@link ImBitmapElement} (and the disk cache entry) is reused by every size with the same size factor,
+     * big enough means as big as the picture decoded with that size factor, not only as the desired size.
+     */
+    private Bitmap retrieveExifThumbnail(ExifInterface exif, int width, int height, boolean preview)
+    {
+        if(exif == null || !exif.hasThumbnail())
+        {
+            return null;
+        }
+
+        byte[] thumbnailData = exif.getThumbnail();
+
+        if(thumbnailData == null)
+        {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(thumbnailData, 0, thumbnailData.length, options);
+
+        int thumbnailWidth = options.outWidth;
+        int thumbnailHeight = options.outHeight;
+
+        if(isOrientationSwapped(exifOrientation))
+        {
+            thumbnailWidth = options.outHeight;
+            thumbnailHeight = options.outWidth;
+        }
+
+        int factor = getResizeFactor(originalWidth, originalHeight, width, height);
+        int factorWidth = preview ? width : originalWidth / factor;
+        int factorHeight = preview ? height : originalHeight / factor;
+
+        if(thumbnailWidth < factorWidth || thumbnailHeight < factorHeight)
+        {
+            return null;
+        }
+
+        // Some cameras letterbox the thumbnail (i.e. 4:3 thumbnails for 16:9 pictures)
+        float imageAspectRatio = ((float) originalWidth) / originalHeight;
+        float thumbnailAspectRatio = ((float) thumbnailWidth) / thumbnailHeight;
+
+        if(Math.abs(imageAspectRatio - thumbnailAspectRatio) > MAX_THUMBNAIL_ASPECT_RATIO_DIFFERENCE * imageAspectRatio)
+        {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = getDecodeConfig();
+        options.inSampleSize = Math.max(1, getResizeFactor(thumbnailWidth, thumbnailHeight, factorWidth, factorHeight));
+
+        return BitmapFactory.decodeByteArray(thumbnailData, 0, thumbnailData.length, options);
+    }
+
+    private static boolean isOrientationSwapped(int orientation)
+    {
+        return orientation == ExifInterface.ORIENTATION_ROTATE_90 ||
+                orientation == ExifInterface.ORIENTATION_ROTATE_270 ||
+                orientation == ExifInterface.ORIENTATION_TRANSPOSE ||
+                orientation == ExifInterface.ORIENTATION_TRANSVERSE;
+    }
+
+    /**
+     * Looks for a thumbnail previously stored in the disk cache (i.e. by {@link ImFileIndexer}).
+     * As the disk cache keeps the size and orientation of the picture, the picture file is not read at all.
+     *
+     * @return the cached {@link Bitmap}, or {@code null} if there is no disk cache, or the cached bitmap is smaller than the desired size
+     */
+    private Bitmap retrieveCachedThumbnail(int width, int height)
+    {
+        CacheImBitmapManager cacheImBitmapManager = CacheImBitmapManager.sharedManager();
+
+        if(!cacheImBitmapManager.hasSource())
+        {
+            return null;
+        }
+
+        CacheImBitmapManager.CacheImBitmap cacheImBitmap = cacheImBitmapManager.getCachedImBitmap(getCacheBitmapId());
+
+        if(cacheImBitmap == null || cacheImBitmap.originalWidth == 0 || cacheImBitmap.originalHeight == 0)
+        {
+            return null;
+        }
+
+        if(!isCacheImBitmapValid(cacheImBitmap))
+        {
+            Log.i(TAG, String.format("Cached thumbnail of %s is stale, deleting it", localPath));
+            cacheImBitmapManager.deleteCachedImBitmap(getCacheBitmapId());
+            return null;
+        }
+
+        int factor = getResizeFactor(cacheImBitmap.originalWidth, cacheImBitmap.originalHeight, width, height);
+
+        if(cacheImBitmap.sizeFactor > factor)
+        {
+            return null;
+        }
+
+        byte[] data = cacheImBitmapManager.getCachedImBitmapData(cacheImBitmap.dataId);
+
+        if(data == null)
+        {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = getDecodeConfig();
+        options.inSampleSize = factor / cacheImBitmap.sizeFactor;
+
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        if(bitmap != null)
+        {
+            setOriginalSize(cacheImBitmap.originalWidth, cacheImBitmap.originalHeight);
+            exifOrientation = cacheImBitmap.orientation;
+            setFileVersion(cacheImBitmap.sourceLastModified, cacheImBitmap.sourceLength);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Decodes the picture with the desired size, and stores it in the disk cache, so later loads of sizes equal or
+     * smaller don't need to read the picture file. The decoded {@link Bitmap} is not kept in memory.
+     * <p>
+     * Used by {@link ImFileIndexer}.
+     *
+     * @return true if the thumbnail is in the disk cache (it was created, or it already existed), false otherwise
+     */
+    synchronized boolean buildThumbnail(int width, int height)
+    {
+        CacheImBitmapManager cacheImBitmapManager = CacheImBitmapManager.sharedManager();
+
+        if(isMalformed() || !cacheImBitmapManager.hasSource())
+        {
+            return false;
+        }
+
+        CacheImBitmapManager.CacheImBitmap cacheImBitmap = cacheImBitmapManager.getCachedImBitmap(getCacheBitmapId());
+
+        if(cacheImBitmap != null)
+        {
+            if(!isCacheImBitmapValid(cacheImBitmap))
+            {
+                cacheImBitmapManager.deleteCachedImBitmap(getCacheBitmapId());
+            }
+            else if(cacheImBitmap.originalWidth != 0 &&
+                    cacheImBitmap.sizeFactor <= getResizeFactor(cacheImBitmap.originalWidth, cacheImBitmap.originalHeight, width, height))
+            {
+                return true;
+            }
+        }
+
+        Bitmap bitmap = retrieveBitmap(width, height);
+
+        if(bitmap == null)
+        {
+            return false;
+        }
+
+        cacheImBitmap = new CacheImBitmapManager.CacheImBitmap();
+        cacheImBitmap.id = getCacheBitmapId();
+        cacheImBitmap.sizeFactor = getResizeFactor(originalWidth, originalHeight, width, height);
+        cacheImBitmap.originalWidth = originalWidth;
+        cacheImBitmap.originalHeight = originalHeight;
+        cacheImBitmap.orientation = exifOrientation;
+        setCacheImBitmapVersion(cacheImBitmap);
+
+        cacheImBitmapManager.insertCacheImBitmap(bitmap, cacheImBitmap);
+        bitmap.recycle();
+
+        return true;
+    }
+
+    @Override
+    public Bitmap retrieveBitmap(int width, int height)
+    {
+        return decodeBitmap(width, height, false);
+    }
+
+    /**
+     * Decodes the EXIF thumbnail when it's as big as the preview, even if it's smaller than the picture decoded with the
+     * size factor of the preview, so the fast path works for the small sizes of grids
+     */
+    @Override
+    protected Bitmap retrievePreviewBitmap(int width, int height)
+    {
+        return decodeBitmap(width, height, true);
+    }
+
+    private Bitmap decodeBitmap(int width, int height, boolean preview)
+    {
+        Bitmap mBitmap = null;
+
+        if(localPath == null)
+        {
+            return null;
+        }
+
+        if(width != 0 && height != 0)
+        {
+            mBitmap = retrieveCachedThumbnail(width, height);
+
+            if(mBitmap != null)
+            {
+                return mBitmap;
+            }
+        }
+
+        // Read before decoding, so a change while decoding is detected later
+        File file = new File(localPath);
+        setFileVersion(file.lastModified(), file.length());
+
+        ExifInterface exif = openExif();
+        exifOrientation = readExifOrientation(exif);
 
         BitmapFactory.Options options = new BitmapFactory.Options();
 
-        options.inPreferredConfig = ImBitmapManager.COLOR_CONFIG;
         options.inJustDecodeBounds = true;
 
         BitmapFactory.decodeFile(localPath, options);
+        setMimeType(options.outMimeType);
+
+        if(isOpacityUnread())
+        {
+            readOpacity();
+        }
+
+        // Sizes are handled as shown, i.e. with the orientation already applied
+        if(isOrientationSwapped(exifOrientation))
+        {
+            setOriginalSize(options.outHeight, options.outWidth);
+        }
+        else
+        {
+            setOriginalSize(options.outWidth, options.outHeight);
+        }
 
         int factor = 1;
 
         if(width != 0 && height != 0)
         {
-            factor = this.getResizeFactor(options.outHeight, options.outWidth, width, height);
+            factor = this.getResizeFactor(originalWidth, originalHeight, width, height);
         }
 
-        setOriginalSize(options.outWidth, options.outHeight);
-
         if(factor < 1)
         {
             factor = 1;
         }
 
+        if(width != 0 && height != 0 && factor > 1)
+        {
+            mBitmap = retrieveExifThumbnail(exif, width, height, preview);
+
+            if(mBitmap != null)
+            {
+                return mBitmap;
+            }
+        }
+
         // Decode bitmap with inSampleSize update
         options.inJustDecodeBounds = false;
         options.inSampleSize = factor;
+        options.inPreferredConfig = getDecodeConfig();
 
         mBitmap = BitmapFactory.decodeFile(localPath, options);
 
@@ -129,16 +524,28 @@ public class ImFileBitmap extends ImBitmap
         {
             malformed = true;
         }
-        else if(orientation != 0)
-        {
-            Matrix matrix = new Matrix();
-            matrix.postRotate(orientation);
-            Bitmap rotatedBitmap = Bitmap.createBitmap(mBitmap, 0, 0, mBitmap.getWidth(), mBitmap.getHeight(), matrix, true);
-            mBitmap.recycle();
-            mBitmap = rotatedBitmap;
-        }
 
         return mBitmap;
     }
-}
 
+    private void readOpacity()
+    {
+        try
+        {
+            FileInputStream is = new FileInputStream(localPath);
+
+            try
+            {
+                readOpacity(is);
+            }
+            finally
+            {
+                is.close();
+            }
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Could not read the header of " + localPath, e);
+        }
+    }
+}
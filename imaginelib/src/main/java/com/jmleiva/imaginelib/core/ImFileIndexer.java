@@ -0,0 +1,367 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the thumbnails of every picture inside a directory, using all the cores, and stores them in the disk cache
+ * (see {@link com.jmleiva.imaginelib.core.cache.CacheImBitmapManager}). Once indexed, loading those pictures in a size equal
+ * or smaller than the thumbnail doesn't read the picture files anymore.
+ * <p>
+ * The work is split fork-join style: each task halves its range of files, hands one half to the pool and keeps
+ * splitting the other one, until the range is small enough to be processed. Tasks never wait for each other,
+ * so the pool can't deadlock.
+ * <p>
+ * Created by {@link ImBitmapManager#indexDirectory(String, int, int, boolean, OnIndexProgressListener)}
+ */
+public class ImFileIndexer
+{
+    final static String TAG = "ImFileIndexer";
+
+    /**
+     * Ranges with this amount of files or less are not split anymore
+     */
+    final static int SPLIT_THRESHOLD = 8;
+
+    private final static String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".webp", ".gif", ".bmp"};
+
+    /**
+     * Listener used to follow the indexing progress. All the methods are called in the UI thread.
+     * <p>
+     * {@link OnIndexProgressListener#onComplete(int, int)} is called once, also if the indexing is cancelled
+     * (see {@link ImFileIndexer#isCancelled()}).
+     */
+    public interface OnIndexProgressListener
+    {
+        /**
+         * @param indexed number of pictures already processed
+         * @param total number of pictures found
+         */
+        void onProgress(int indexed, int total);
+        void onComplete(int indexed, int failed);
+    }
+
+    private final ImBitmapManager imBitmapManager;
+    private final File directory;
+    private final int width;
+    private final int height;
+    private final boolean recursive;
+    private final OnIndexProgressListener listener;
+
+    private final Handler mainHandler;
+    private final AtomicInteger processedCount;
+    private final AtomicInteger failedCount;
+    private final AtomicInteger remainingCount;
+    private final AtomicBoolean progressPosted;
+    private final AtomicBoolean cancelled;
+    private final AtomicBoolean completed;
+
+    private ExecutorService executor;
+
+    /**
+     * Pictures to index, set once listed. Read from the UI thread (see {@link ImFileIndexer#getTotalCount()})
+     */
+    private volatile List<File> files;
+
+    ImFileIndexer(ImBitmapManager imBitmapManager, String directoryPath, int width, int height, boolean recursive, OnIndexProgressListener listener)
+    {
+        this.imBitmapManager = imBitmapManager;
+        this.directory = new File(directoryPath);
+        this.width = width;
+        this.height = height;
+        this.recursive = recursive;
+        this.listener = listener;
+
+        mainHandler = new Handler(Looper.getMainLooper());
+        processedCount = new AtomicInteger();
+        failedCount = new AtomicInteger();
+        remainingCount = new AtomicInteger();
+        progressPosted = new AtomicBoolean();
+        cancelled = new AtomicBoolean();
+        completed = new AtomicBoolean();
+    }
+
+    /**
+     * Lists the directory and starts building the thumbnails, in background
+     */
+    void start()
+    {
+        final int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable)
+            {
+                return new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, TAG + " #" + threadCount.incrementAndGet());
+            }
+        });
+
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                List<File> files = new ArrayList<>();
+                listImages(directory, files);
+                ImFileIndexer.this.files = files;
+
+                Log.i(TAG, String.format("Indexing %d pictures in %s with %d threads", files.size(), directory.getAbsolutePath(), threads));
+
+                if(files.isEmpty())
+                {
+                    finish();
+                    return;
+                }
+
+                remainingCount.set(files.size());
+                new IndexTask(0, files.size()).run();
+            }
+        });
+    }
+
+    /**
+     * Stops the indexing. Thumbnails being built at the moment are finished. The listener is notified with the pictures
+     * processed so far.
+     */
+    public void cancel()
+    {
+        if(cancelled.compareAndSet(false, true))
+        {
+            executor.shutdownNow();
+            finish();
+        }
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled.get();
+    }
+
+    /**
+     * @return number of pictures already processed
+     */
+    public int getIndexedCount()
+    {
+        return processedCount.get();
+    }
+
+    /**
+     * @return number of pictures found, or 0 if the directory was not listed yet
+     */
+    public int getTotalCount()
+    {
+        List<File> files = this.files;
+        return files != null ? files.size() : 0;
+    }
+
+    private void listImages(File directory, List<File> result)
+    {
+        File[] children = directory.listFiles(new FileFilter()
+        {
+            @Override
+            public boolean accept(File file)
+            {
+                return file.isDirectory() ? recursive : isImage(file);
+            }
+        });
+
+        if(children == null)
+        {
+            return;
+        }
+
+        for(File child : children)
+        {
+            if(child.isDirectory())
+            {
+                listImages(child, result);
+            }
+            else
+            {
+                result.add(child);
+            }
+        }
+    }
+
+    private static boolean isImage(File file)
+    {
+        String name = file.getName().toLowerCase(Locale.US);
+
+        for(String extension : IMAGE_EXTENSIONS)
+        {
+            if(name.endsWith(extension))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Indexes the files in [from, to)
+     */
+    private class IndexTask implements Runnable
+    {
+        final int from;
+        final int to;
+
+        IndexTask(int from, int to)
+        {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void run()
+        {
+            int end = to;
+
+            // Fork: give away the upper halves while the range is big
+            while(end - from > SPLIT_THRESHOLD && !cancelled.get())
+            {
+                int middle = (from + end) >>> 1;
+
+                try
+                {
+                    executor.execute(new IndexTask(middle, end));
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // Cancelled
+                    return;
+                }
+
+                end = middle;
+            }
+
+            for(int i = from; i < end && !cancelled.get(); i++)
+            {
+                indexFile(files.get(i));
+            }
+        }
+    }
+
+    private void indexFile(File file)
+    {
+        ImFileBitmap imFileBitmap = imBitmapManager.getFileBitmap(file.getAbsolutePath());
+
+        boolean indexed = false;
+
+        try
+        {
+            indexed = imFileBitmap.buildThumbnail(width, height);
+        }
+        catch (RuntimeException e)
+        {
+            Log.w(TAG, "Error indexing " + file.getAbsolutePath(), e);
+        }
+
+        if(!indexed)
+        {
+            failedCount.incrementAndGet();
+        }
+
+        processedCount.incrementAndGet();
+        postProgress();
+
+        if(remainingCount.decrementAndGet() == 0)
+        {
+            finish();
+        }
+    }
+
+    /**
+     * Posts the progress to the UI thread. If there's already a progress update pending, nothing is posted, so the
+     * UI thread is not flooded.
+     */
+    private void postProgress()
+    {
+        if(listener == null || !progressPosted.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        mainHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                progressPosted.set(false);
+                listener.onProgress(processedCount.get(), getTotalCount());
+            }
+        });
+    }
+
+    /**
+     * Ends the indexing, once every picture was processed or when it's cancelled, whichever comes first
+     */
+    private void finish()
+    {
+        if(!completed.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        executor.shutdown();
+
+        Log.i(TAG, String.format("Indexing of %s %s. %d indexed, %d failed", directory.getAbsolutePath(),
+                cancelled.get() ? "cancelled" : "ended", processedCount.get() - failedCount.get(), failedCount.get()));
+
+        if(listener == null)
+        {
+            return;
+        }
+
+        mainHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                listener.onComplete(processedCount.get() - failedCount.get(), failedCount.get());
+            }
+        });
+    }
+}
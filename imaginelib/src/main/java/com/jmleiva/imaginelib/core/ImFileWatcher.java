@@ -0,0 +1,58 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.os.FileObserver;
+
+import java.io.File;
+
+/**
+ * Watches a single directory (not its sub directories), and invalidates the {@link ImFileBitmap} of the files
+ * that are written, moved or deleted inside it, as soon as it happens.
+ * <p>
+ * Created by {@link ImBitmapManager#watchDirectory(String)}
+ */
+class ImFileWatcher extends FileObserver
+{
+    final static int EVENTS = CLOSE_WRITE | MOVED_FROM | MOVED_TO | DELETE;
+
+    private final ImBitmapManager imBitmapManager;
+    private final String directoryPath;
+
+    ImFileWatcher(ImBitmapManager imBitmapManager, String directoryPath)
+    {
+        super(directoryPath, EVENTS);
+
+        this.imBitmapManager = imBitmapManager;
+        this.directoryPath = directoryPath;
+    }
+
+    /**
+     * Called in the FileObserver thread
+     */
+    @Override
+    public void onEvent(int event, String path)
+    {
+        if(path == null)
+        {
+            return;
+        }
+
+        imBitmapManager.invalidateFile(new File(directoryPath, path).getPath());
+    }
+}
@@ -0,0 +1,191 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads whether an image may have transparency from the header of its source, so {@link ImBitmapConfig#AUTO} requests
+ * choose their {@link android.graphics.Bitmap.Config} before decoding (see {@link ImBitmap#readOpacity(InputStream)}).
+ * <p>
+ * Only PNG (the color type, and a transparency chunk before the image data) and WebP (the alpha flag of the lossless and
+ * extended formats) are read. JPEG is always opaque, and the rest of formats are considered to have transparency.
+ */
+final class ImImageHeader
+{
+    private final static String MIME_JPEG = "image/jpeg";
+    private final static String MIME_PNG = "image/png";
+    private final static String MIME_WEBP = "image/webp";
+
+    private final static int PNG_SIGNATURE_LENGTH = 8;
+    private final static int PNG_COLOR_TYPE_GRAY_ALPHA = 4;
+    private final static int PNG_COLOR_TYPE_RGB_ALPHA = 6;
+    private final static int PNG_CHUNK_CRC_LENGTH = 4;
+
+    /**
+     * Chunks read before giving up, so a broken file is not read whole
+     */
+    private final static int MAX_PNG_CHUNKS = 32;
+
+    private final static int WEBP_VP8X_ALPHA_FLAG = 0x10;
+    private final static int WEBP_VP8L_ALPHA_FLAG = 0x10;
+
+    private ImImageHeader()
+    {
+    }
+
+    /**
+     * @return true if the opacity of that mime type is known without reading its header (JPEG)
+     */
+    static boolean isAlwaysOpaque(String mimeType)
+    {
+        return MIME_JPEG.equals(mimeType);
+    }
+
+    /**
+     * @return true if the opacity of that mime type can be read from its header
+     */
+    static boolean isReadable(String mimeType)
+    {
+        return MIME_PNG.equals(mimeType) || MIME_WEBP.equals(mimeType);
+    }
+
+    /**
+     * @param source stream at the start of the image. It's not closed.
+     * @return true if the header tells the image has no transparency, false if it may have it
+     */
+    static boolean isOpaque(String mimeType, InputStream source) throws IOException
+    {
+        DataInputStream is = new DataInputStream(source);
+
+        if(MIME_PNG.equals(mimeType))
+        {
+            return isOpaquePng(is);
+        }
+
+        if(MIME_WEBP.equals(mimeType))
+        {
+            return isOpaqueWebp(is);
+        }
+
+        return isAlwaysOpaque(mimeType);
+    }
+
+    private static boolean isOpaquePng(DataInputStream is) throws IOException
+    {
+        skip(is, PNG_SIGNATURE_LENGTH);
+
+        for(int i = 0; i < MAX_PNG_CHUNKS; i++)
+        {
+            int length = is.readInt();
+            String type = readFourCC(is);
+
+            if("IHDR".equals(type))
+            {
+                // Width, height and bit depth come first
+                skip(is, 9);
+                int colorType = is.readUnsignedByte();
+
+                if(colorType == PNG_COLOR_TYPE_GRAY_ALPHA || colorType == PNG_COLOR_TYPE_RGB_ALPHA)
+                {
+                    return false;
+                }
+
+                skip(is, length - 10 + PNG_CHUNK_CRC_LENGTH);
+            }
+            else if("tRNS".equals(type))
+            {
+                return false;
+            }
+            else if("IDAT".equals(type))
+            {
+                // Transparency chunks must come before the image data
+                return true;
+            }
+            else
+            {
+                skip(is, length + PNG_CHUNK_CRC_LENGTH);
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isOpaqueWebp(DataInputStream is) throws IOException
+    {
+        // "RIFF", file size and "WEBP"
+        skip(is, 12);
+
+        String type = readFourCC(is);
+
+        // Chunk size
+        skip(is, 4);
+
+        if("VP8 ".equals(type))
+        {
+            // Lossy, without alpha
+            return true;
+        }
+
+        if("VP8L".equals(type))
+        {
+            // Signature byte, then 14 bits of width, 14 bits of height and the alpha flag, little endian
+            skip(is, 4);
+            return (is.readUnsignedByte() & WEBP_VP8L_ALPHA_FLAG) == 0;
+        }
+
+        if("VP8X".equals(type))
+        {
+            return (is.readUnsignedByte() & WEBP_VP8X_ALPHA_FLAG) == 0;
+        }
+
+        return false;
+    }
+
+    private static String readFourCC(DataInputStream is) throws IOException
+    {
+        byte[] fourCC = new byte[4];
+        is.readFully(fourCC);
+
+        return new String(fourCC, "US-ASCII");
+    }
+
+    private static void skip(DataInputStream is, int count) throws IOException
+    {
+        if(count < 0)
+        {
+            throw new IOException("Malformed header");
+        }
+
+        while (count > 0)
+        {
+            int skipped = is.skipBytes(count);
+
+            if(skipped <= 0)
+            {
+                // skipBytes may skip less than asked without reaching the end
+                is.readUnsignedByte();
+                skipped = 1;
+            }
+
+            count -= skipped;
+        }
+    }
+}
@@ -19,22 +19,46 @@ package com.jmleiva.imaginelib.core;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 
 import com.jmleiva.imaginelib.core.cache.CacheImBitmapManager;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.SoftReference;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * {@link ImBitmap} Subclass, representing the picture hosted in a remote server.
  */
 public class ImRemoteBitmap  extends ImBitmap
 {
+    /**
+     * Algorithm of the digest used to find identical content (see {@link ImBitmapManager#setContentDeduplication(boolean)})
+     */
+    private final static String CONTENT_DIGEST_ALGORITHM = "SHA-1";
+
     protected String urlPath;
     protected URL url;
 
+    /**
+     * Last downloaded data, only for the instances without {@link ImBitmapManager}. The rest keep it in the encoded tier
+     * of their manager, within its budget (see {@link ImEncodedBitmapCache#putSource(String, byte[])}), shared with the
+     * instances with the same content. Kept so a progressive load (preview first, then the desired size) downloads
+     * the picture only once.
+     */
+    private SoftReference<byte[]> lastDownloadedData;
+
+    /**
+     * Digest of the last downloaded data, computed while it was downloaded if content deduplication is enabled
+     */
+    private String contentDigest;
+
     /**
      * CacheRemoteBitmap Constructor
      * @param cacheBitmapId {@link String} identifier. Unique for each CacheBitmap, and used to find them if they are cached.
@@ -51,6 +75,12 @@ public class ImRemoteBitmap  extends ImBitmap
         this.urlPath = urlPath;
     }
 
+    ImRemoteBitmap(ImBitmapKey registryKey, String idPrefix, String urlPath, ImBitmapManager imBitmapManager)
+    {
+        super(registryKey, idPrefix, imBitmapManager);
+        this.urlPath = urlPath;
+    }
+
 
     @Override
     public boolean isMalformed()
@@ -74,11 +104,72 @@ public class ImRemoteBitmap  extends ImBitmap
 		return GetBitmap();
 	}*/
 
+    /**
+     * Downloads the picture, if it was not downloaded yet, and links this instance to the content of other instances
+     * with identical bytes (see {@link ImBitmapManager#setContentDeduplication(boolean)})
+     */
     @Override
-    public Bitmap retrieveBitmap(int width, int height)
+    protected ImBitmap linkContent()
     {
-        Bitmap mBitmap = null;
+        if(content != null || imBitmapManager == null || !imBitmapManager.isContentDeduplicationEnabled() || !createUrl())
+        {
+            return super.linkContent();
+        }
+
+        byte[] data;
+
+        try
+        {
+            data = getData();
+        }
+        catch (IOException e)
+        {
+            // Left to retrieveBitmap, that marks it as malformed
+            return this;
+        }
+
+        // Downloaded before the deduplication was enabled
+        if(contentDigest == null)
+        {
+            MessageDigest digest = createContentDigest();
+
+            if(digest == null)
+            {
+                return this;
+            }
+
+            digest.update(data);
+            contentDigest = toHex(digest.digest());
+        }
+
+        if(originalWidth == 0 && originalHeight == 0)
+        {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
 
+            setOriginalSize(options.outWidth, options.outHeight);
+            setMimeType(options.outMimeType);
+
+            if(isOpacityUnread())
+            {
+                readOpacity(new ByteArrayInputStream(data));
+            }
+        }
+
+        String sourceKey = getEncodedSourceKey();
+        ImBitmap contentOwner = imBitmapManager.linkContent(this, contentDigest, data);
+
+        // Kept once for every instance with the same content
+        imBitmapManager.getEncodedCache().removeSource(sourceKey);
+        keepData(data);
+
+        return contentOwner;
+    }
+
+    private boolean createUrl()
+    {
         if(url == null)
         {
             try
@@ -88,12 +179,19 @@ public class ImRemoteBitmap  extends ImBitmap
             catch (MalformedURLException e)
             {
                 malformed = true;
-                return null;
+                return false;
             }
         }
 
+        return true;
+    }
 
-        if(url == null)
+    @Override
+    public Bitmap retrieveBitmap(int width, int height)
+    {
+        Bitmap mBitmap = null;
+
+        if(!createUrl())
         {
             return null;
         }
@@ -101,23 +199,29 @@ public class ImRemoteBitmap  extends ImBitmap
         try
         {
             BitmapFactory.Options options = new BitmapFactory.Options();
-            InputStream is;
+
+            byte[] data = getData();
 
             if(originalWidth == 0 && originalHeight == 0)// && ConnectionManager.sharedManager().isInternetConnected())
             {
                 options.inJustDecodeBounds = true;
 
-                is = url.openConnection().getInputStream();
-                BitmapFactory.decodeStream(is, null, options);
+                BitmapFactory.decodeByteArray(data, 0, data.length, options);
 
                 setOriginalSize(options.outWidth, options.outHeight);
+                setMimeType(options.outMimeType);
+
+                if(isOpacityUnread())
+                {
+                    readOpacity(new ByteArrayInputStream(data));
+                }
             }
 
             int factor = 1;
 
             if(width != 0 && height != 0)
             {
-                factor = this.getResizeFactor(options.outHeight, options.outWidth, width, height);
+                factor = this.getResizeFactor(originalWidth, originalHeight, width, height);
             }
 
 
@@ -141,11 +245,9 @@ public class ImRemoteBitmap  extends ImBitmap
                 // Decode bitmap with inSampleSize update
                 options.inJustDecodeBounds = false;
                 options.inSampleSize = factor;
-                options.inPreferredConfig = ImBitmapManager.COLOR_CONFIG;
+                options.inPreferredConfig = getDecodeConfig();
 
-                //Re-Create inputStream again
-                is = url.openConnection().getInputStream();
-                mBitmap = BitmapFactory.decodeStream(is, null, options);
+                mBitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
 
 
 
@@ -166,6 +268,151 @@ public class ImRemoteBitmap  extends ImBitmap
         return mBitmap;
     }
 
+    @Override
+    public BitmapRegionDecoder createRegionDecoder() throws IOException
+    {
+        if(url == null)
+        {
+            url = new URL(urlPath);
+        }
+
+        byte[] data = getData();
+
+        return BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+    }
+
+    /**
+     * @return the last downloaded data if it's still in memory, or the content stored in the disk cache if this instance
+     * shares it (see {@link ImBitmapContent}), or the data downloaded again otherwise
+     */
+    private byte[] getData() throws IOException
+    {
+        byte[] data;
+
+        if(imBitmapManager != null)
+        {
+            data = imBitmapManager.getEncodedCache().getSource(getEncodedSourceKey());
+        }
+        else
+        {
+            data = lastDownloadedData != null ? lastDownloadedData.get() : null;
+        }
+
+        if(data == null)
+        {
+            data = readSharedContent();
+        }
+
+        if(data == null)
+        {
+            data = downloadData();
+        }
+
+        keepData(data);
+
+        return data;
+    }
+
+    private void keepData(byte[] data)
+    {
+        if(imBitmapManager != null)
+        {
+            imBitmapManager.getEncodedCache().putSource(getEncodedSourceKey(), data);
+        }
+        else
+        {
+            lastDownloadedData = new SoftReference<>(data);
+        }
+    }
+
+    /**
+     * @return key of the data in the encoded tier: the one of the shared content, if any, or the one of this instance
+     */
+    @Override
+    String getEncodedSourceKey()
+    {
+        ImBitmapContent sharedContent = content;
+
+        return ImEncodedBitmapCache.sourceKeyFor(sharedContent != null ?
+                ImBitmapContent.CACHE_ID_PREFIX + sharedContent.digest : getCacheBitmapId());
+    }
+
+    private byte[] readSharedContent()
+    {
+        ImBitmapContent sharedContent = content;
+        CacheImBitmapManager cacheImBitmapManager = CacheImBitmapManager.sharedManager();
+
+        if(sharedContent == null || sharedContent.cacheId == null || !cacheImBitmapManager.hasSource())
+        {
+            return null;
+        }
+
+        CacheImBitmapManager.CacheImBitmap cacheImBitmap = cacheImBitmapManager.getCachedImBitmap(sharedContent.cacheId);
+
+        return cacheImBitmap != null ? cacheImBitmapManager.getCachedImBitmapData(cacheImBitmap.dataId) : null;
+    }
+
+    /**
+     * Downloads the whole picture into memory, so it can be decoded more than once without hitting the network again.
+     * If content deduplication is enabled, its digest is computed while the bytes stream in.
+     */
+    private byte[] downloadData() throws IOException
+    {
+        MessageDigest digest = imBitmapManager != null && imBitmapManager.isContentDeduplicationEnabled() ?
+                createContentDigest() : null;
+
+        InputStream is = url.openConnection().getInputStream();
+
+        try
+        {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+
+            while((read = is.read(buffer)) != -1)
+            {
+                outputStream.write(buffer, 0, read);
+
+                if(digest != null)
+                {
+                    digest.update(buffer, 0, read);
+                }
+            }
+
+            contentDigest = digest != null ? toHex(digest.digest()) : null;
+
+            return outputStream.toByteArray();
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    private static MessageDigest createContentDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(CONTENT_DIGEST_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            return null;
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for(byte b : bytes)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return hex.toString();
+    }
+
     /**
      * @param urlPath to be update as the source of the CacheRemoteBitmap
      * <p>
@@ -184,13 +431,25 @@ public class ImRemoteBitmap  extends ImBitmap
         this.urlPath = urlPath;
         malformed = false;
         url = null;
+        lastDownloadedData = null;
+        contentDigest = null;
+        forgetSourceFormat();
 
-        for(ImBitmapElement cacheBitmapElement : imBitmapElements)
+        // Its elements are kept by the rest of the instances sharing its old content, if any
+        if(imBitmapManager != null)
+        {
+            imBitmapManager.unlinkContent(this);
+        }
+
+        for(ImBitmapElement cacheBitmapElement : removeElements())
         {
             cacheBitmapElement.dispose();
         }
 
-        imBitmapElements.clear();
+        if(imBitmapManager != null)
+        {
+            imBitmapManager.removeEvicted(getCacheBitmapId());
+        }
     }
 
     /**
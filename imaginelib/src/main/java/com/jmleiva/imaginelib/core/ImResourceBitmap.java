@@ -22,6 +22,9 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * {@link ImBitmap} Subclass, representing the resource picture, belonging in the Wifiesta Project
  */
@@ -90,6 +93,12 @@ public class ImResourceBitmap extends ImBitmap
         options.inJustDecodeBounds = true;
 
         BitmapFactory.decodeResource(res, resourceId, options);
+        setMimeType(options.outMimeType);
+
+        if(isOpacityUnread())
+        {
+            readOpacity(res);
+        }
 
         int factor = this.getResizeFactor(options.outHeight, options.outWidth, width, height);
 
@@ -103,6 +112,7 @@ public class ImResourceBitmap extends ImBitmap
         // Decode bitmap with inSampleSize update
         options.inJustDecodeBounds = false;
         options.inSampleSize = factor;
+        options.inPreferredConfig = getDecodeConfig();
 
         mBitmap = BitmapFactory.decodeResource(res, resourceId, options);
 
@@ -123,13 +133,32 @@ public class ImResourceBitmap extends ImBitmap
 
         this.resourceId = resourceId;
         malformed = false;
+        forgetSourceFormat();
 
-        for(ImBitmapElement cacheBitmapElement : imBitmapElements)
+        for(ImBitmapElement cacheBitmapElement : removeElements())
         {
             cacheBitmapElement.dispose();
         }
+    }
+
+    private void readOpacity(Resources res)
+    {
+        InputStream is = res.openRawResource(resourceId);
 
-        imBitmapElements.clear();
+        try
+        {
+            readOpacity(is);
+        }
+        finally
+        {
+            try
+            {
+                is.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
     }
 }
-
@@ -0,0 +1,437 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * {@link ImBitmap} Subclass, used to show very big pictures by decoding only the regions (tiles) needed.
+ * <p>
+ * It wraps another {@link ImBitmap} that supports region decoding (see {@link ImBitmap#createRegionDecoder()}).
+ * The regular {@link ImBitmapElement} of this instance are whole, sampled versions of the image (used as overview),
+ * while the tiles are {@link ImBitmapTile} instances, kept in a tile cache keyed by (level, column, row).
+ * <p>
+ * Tiles count against the memory of the {@link ImBitmapManager}, so they are trimmed like any other {@link ImBitmapElement}.
+ */
+public class ImTiledBitmap extends ImBitmap
+{
+    final static String TAG = "ImTiledBitmap";
+
+    /**
+     * Size in pixels (after sampling) of each tile side
+     */
+    public final static int TILE_SIZE = 256;
+
+    private final static int MAX_LEVEL = 8;
+
+    private static ExecutorService tileExecutor;
+
+    private final ImBitmap source;
+    private BitmapRegionDecoder regionDecoder;
+    private final ConcurrentHashMap<Long, ImBitmapTile> tiles;
+    /**
+     * Lock of each tile being decoded, so concurrent requests of the same tile wait for a single decode
+     */
+    private final ConcurrentHashMap<Long, Object> decodingTiles;
+    private Handler mainHandler;
+
+    /**
+     * ImTiledBitmap Constructor
+     * @param cacheBitmapId {@link String} identifier. Unique for each ImBitmap, and used to find them if they are cached.
+     * @param source {@link ImBitmap} used to decode the regions
+     */
+    public ImTiledBitmap(String cacheBitmapId, ImBitmap source)
+    {
+        this(cacheBitmapId, source, null);
+    }
+
+    ImTiledBitmap(String cacheBitmapId, ImBitmap source, ImBitmapManager imBitmapManager)
+    {
+        super(cacheBitmapId, imBitmapManager);
+        this.source = source;
+
+        tiles = new ConcurrentHashMap<>();
+        decodingTiles = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public boolean isMalformed()
+    {
+        if(source == null) return true;
+        return super.isMalformed();
+    }
+
+    @Override
+    public String getPath()
+    {
+        return source.getPath();
+    }
+
+    /**
+     * @return the {@link ImBitmap} used to decode the regions
+     */
+    public ImBitmap getSource()
+    {
+        return source;
+    }
+
+    /**
+     * The overview is decoded as a whole by the source {@link ImBitmap}
+     */
+    @Override
+    public Bitmap retrieveBitmap(int width, int height)
+    {
+        Bitmap bitmap = source.retrieveBitmap(width, height);
+
+        if(bitmap == null)
+        {
+            malformed = true;
+            return null;
+        }
+
+        setOriginalSize(source.originalWidth, source.originalHeight);
+
+        return bitmap;
+    }
+
+    /**
+     * @return width of the original image, or 0 if it's not known yet (neither the overview nor any tile was loaded)
+     */
+    public int getImageWidth()
+    {
+        return originalWidth;
+    }
+
+    /**
+     * @return height of the original image, or 0 if it's not known yet (neither the overview nor any tile was loaded)
+     */
+    public int getImageHeight()
+    {
+        return originalHeight;
+    }
+
+    /**
+     * @return the higher level that makes sense for this image, i.e. the one where the whole image fits in a single tile
+     */
+    public int getMaxLevel()
+    {
+        int level = 0;
+        int maxSide = Math.max(originalWidth, originalHeight);
+
+        while (level < MAX_LEVEL && (maxSide >> level) > TILE_SIZE)
+        {
+            level++;
+        }
+
+        return level;
+    }
+
+    /**
+     * @return size, in original image pixels, of the side of a tile in the specified level
+     */
+    public static int getTileSourceSize(int level)
+    {
+        return TILE_SIZE << level;
+    }
+
+    /**
+     * @return key identifying a tile, used by the tile cache and by {@link com.jmleiva.imaginelib.view.ImTiledBitmapView}
+     */
+    public static long tileKey(int level, int column, int row)
+    {
+        return ((long) level << 56) | ((long) column << 28) | row;
+    }
+
+    private synchronized BitmapRegionDecoder getRegionDecoder() throws IOException
+    {
+        if(regionDecoder == null || regionDecoder.isRecycled())
+        {
+            regionDecoder = source.createRegionDecoder();
+
+            if(regionDecoder != null)
+            {
+                setOriginalSize(regionDecoder.getWidth(), regionDecoder.getHeight());
+            }
+        }
+
+        return regionDecoder;
+    }
+
+    /**
+     * @return the loaded tile, or {@code null} if it was not loaded yet (or it was disposed)
+     */
+    public ImBitmapTile findTile(int level, int column, int row)
+    {
+        ImBitmapTile tile = tiles.get(tileKey(level, column, row));
+
+        if(tile != null && tile.isDisposed())
+        {
+            tiles.remove(tileKey(level, column, row));
+            return null;
+        }
+
+        return tile;
+    }
+
+    /**
+     * Decodes (if needed) a single tile.
+     * @param level sampling level of the tile (the image is sampled by 2^level)
+     * @param column column of the tile inside the level
+     * @param row row of the tile inside the level
+     * @return the {@link ImBitmapTile}, or {@code null} if it's out of the image bounds or it couldn't be decoded
+     */
+    public ImBitmapTile getTile(int level, int column, int row)
+    {
+        if(isSourceChanged())
+        {
+            invalidate();
+        }
+
+        ImBitmapTile tile = findTile(level, column, row);
+
+        if(tile != null)
+        {
+            return tile;
+        }
+
+        Long key = tileKey(level, column, row);
+        Object decodeLock = new Object();
+        Object currentLock = decodingTiles.putIfAbsent(key, decodeLock);
+
+        if(currentLock != null)
+        {
+            decodeLock = currentLock;
+        }
+
+        try
+        {
+            synchronized (decodeLock)
+            {
+                // Decoded meanwhile by another request
+                tile = findTile(level, column, row);
+
+                return tile != null ? tile : decodeTile(level, column, row);
+            }
+        }
+        finally
+        {
+            decodingTiles.remove(key, decodeLock);
+        }
+    }
+
+    private ImBitmapTile decodeTile(int level, int column, int row)
+    {
+        Bitmap bitmap;
+        Rect region;
+        long startTime = System.nanoTime();
+
+        try
+        {
+            BitmapRegionDecoder decoder = getRegionDecoder();
+
+            if(decoder == null)
+            {
+                malformed = true;
+                return null;
+            }
+
+            int tileSourceSize = getTileSourceSize(level);
+            int left = column * tileSourceSize;
+            int top = row * tileSourceSize;
+
+            if(left >= originalWidth || top >= originalHeight)
+            {
+                return null;
+            }
+
+            region = new Rect(left, top, Math.min(left + tileSourceSize, originalWidth), Math.min(top + tileSourceSize, originalHeight));
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = 1 << level;
+            options.inPreferredConfig = source.resolveConfig(ImBitmapConfig.AUTO);
+
+            bitmap = decoder.decodeRegion(region, options);
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Error opening region decoder for " + getCacheBitmapId(), e);
+            malformed = true;
+            return null;
+        }
+
+        if(bitmap == null)
+        {
+            return null;
+        }
+
+        if(imBitmapManager != null)
+        {
+            imBitmapManager.onMemoryIncreased(bitmap.getRowBytes() * bitmap.getHeight());
+        }
+
+        ImBitmapTile tile = new ImBitmapTile(this, bitmap, level, column, row, region, imBitmapManager);
+        tile.reloadCostNanos = System.nanoTime() - startTime;
+
+        Long key = tileKey(level, column, row);
+        ImBitmapTile currentTile = tiles.putIfAbsent(key, tile);
+
+        // Should not happen, as decodes are serialized per tile, but the overwritten tile would never be disposed
+        if(currentTile != null && !currentTile.isDisposed())
+        {
+            tile.dispose();
+            return currentTile;
+        }
+        else if(currentTile != null)
+        {
+            tiles.replace(key, currentTile, tile);
+        }
+
+        return tile;
+    }
+
+    /**
+     * Like {@link ImTiledBitmap#getTile(int, int, int)} but in background. The callback is called in the UI thread.
+     * @return a {@link Future} that can be cancelled if the tile is not needed anymore (i.e. it went off-screen)
+     */
+    public Future<?> getTileAsync(final int level, final int column, final int row, final OnGetBitmapListener callback)
+    {
+        final Handler handler = getMainHandler();
+
+        return getTileExecutor().submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final ImBitmapTile tile = getTile(level, column, row);
+
+                handler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if(tile == null)
+                        {
+                            callback.onError("Error Retrieving tile");
+                        }
+                        else
+                        {
+                            callback.onComplete(tile);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * The tiles are decoded from the source, so they are stale when the source changed
+     */
+    @Override
+    protected boolean isSourceChanged()
+    {
+        return source != null && source.isSourceChanged();
+    }
+
+    @Override
+    protected boolean isSourceCheckDue()
+    {
+        return source != null && source.isSourceCheckDue();
+    }
+
+    /**
+     * Also disposes every tile and drops the region decoder. If the source changed, it's invalidated too.
+     */
+    @Override
+    public synchronized void invalidate()
+    {
+        super.invalidate();
+
+        for(ImBitmapTile tile : new ArrayList<>(tiles.values()))
+        {
+            tile.dispose();
+        }
+
+        tiles.clear();
+
+        // Not recycled, as a tile could be being decoded with it. It's released once collected.
+        regionDecoder = null;
+
+        if(isSourceChanged())
+        {
+            source.invalidate();
+        }
+    }
+
+    /**
+     * Disposes every tile not currently retained. Useful when the zoom level changes drastically.
+     */
+    public void disposeUnusedTiles()
+    {
+        for(ImBitmapTile tile : new ArrayList<>(tiles.values()))
+        {
+            if(tile.isSafeToDispose())
+            {
+                tiles.remove(tileKey(tile.level, tile.column, tile.row));
+                tile.dispose();
+            }
+        }
+    }
+
+    @Override
+    Collection<ImBitmapElement> getElements()
+    {
+        List<ImBitmapElement> elements = new ArrayList<ImBitmapElement>(getElementList());
+        elements.addAll(tiles.values());
+        return elements;
+    }
+
+    private synchronized Handler getMainHandler()
+    {
+        if(mainHandler == null)
+        {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+
+        return mainHandler;
+    }
+
+    private static synchronized ExecutorService getTileExecutor()
+    {
+        if(tileExecutor == null)
+        {
+            tileExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 3)));
+        }
+
+        return tileExecutor;
+    }
+}
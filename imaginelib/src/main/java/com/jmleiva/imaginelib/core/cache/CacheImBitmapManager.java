@@ -23,21 +23,20 @@ import android.util.Log;
 import com.jmleiva.imaginelib.core.ImBitmap;
 
 import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Singleton Class.
  * <p>
- * This class is responsible of managing the locally cached bitmaps inside the SQLite Database
+ * This class is responsible of managing the locally cached bitmaps, stored by a {@link CacheImBitmapSource}
+ * (i.e. {@link FileCacheImBitmapSource})
  * <p>
  * It also keeps track of the amount of memory used only by {@link CacheImBitmap} instances, and makes sure
- * the MaxMemory (fixed 10 MB) is never exceeded (except in some cases),
- * reducing the memory to another fixed value (trimMemory, fixed to 4MB)
+ * the MaxMemory (10 MB, or the size given by the {@link com.jmleiva.imaginelib.core.ImBudgetPolicy}) is never exceeded
+ * (except in some cases), reducing the memory to another value (trimMemory, 4MB by default)
  */
 public class CacheImBitmapManager
 {
@@ -45,7 +44,7 @@ public class CacheImBitmapManager
 
     private static CacheImBitmapManager _instance;
 
-    public static CacheImBitmapManager sharedManager()
+    public static synchronized CacheImBitmapManager sharedManager()
     {
         if (_instance == null)
         {
@@ -68,41 +67,135 @@ public class CacheImBitmapManager
         public long dataId;
         public long lastTimeUsed;
         public int sizeFactor;
+        public long size;
+
+        /**
+         * Size and orientation of the picture this bitmap was created from, so it can be used
+         * without reading the original picture
+         */
+        public int originalWidth;
+        public int originalHeight;
+        public int orientation;
+
+        /**
+         * Version of the source this bitmap was created from (i.e. last modified time and length of a file),
+         * used to detect stale entries. 0 if unknown.
+         */
+        public long sourceLastModified;
+        public long sourceLength;
     }
 
 
-    final long MAX_MEMORY 	= 	1024 * 1024 * 10; 	// 10 	MB
+    long MAX_MEMORY 	= 	1024 * 1024 * 10; 	// 10 	MB
     long TRIM_MEMORY		=	1024 * 1024 * 4;	// 4 	MB
 
     Map<String, CacheImBitmap> diskBitmapMap;
 
+    /**
+     * Bitmaps stored by earlier runs and not read yet, by dataId. Only their size and last time used are known,
+     * enough to count them and trim them.
+     */
+    Map<Long, CacheImBitmap> unreadBitmapMap;
+
     long currentSize;
 
+    /**
+     * Set when the app sizes the cache, so the default size is not applied
+     */
+    boolean maxSizeSet;
+
     CacheImBitmapSource cacheImBitmapSource;
 
     private CacheImBitmapManager()
     {
         diskBitmapMap = new HashMap<>();
+        unreadBitmapMap = new HashMap<>();
         currentSize = 0;
 
         Log.i(TAG, String.format("Starting CacheImBitmapManager. MAX_MEMORY: %d kb, TRIM_MEMORY %d kb", MAX_MEMORY / 1024,
                 TRIM_MEMORY / 1024));
 
-        // Implement a dependency injection frp the discCacheBitmapSource?
-        cacheImBitmapSource = null;//new DiskCacheBitmapSourceImplementation();
-
-        throw new RuntimeException("Not Implemented");
+        // Set by the app using setSource (i.e. with a FileCacheImBitmapSource)
+        cacheImBitmapSource = null;
     }
 
-    public void setSource(CacheImBitmapSource cacheImBitmapSource)
+    /**
+     * Sets where the bitmaps are stored. The bitmaps already stored there are counted right away (without reading them),
+     * and trimmed if they exceed the max size.
+     */
+    public synchronized void setSource(CacheImBitmapSource cacheImBitmapSource)
     {
         this.cacheImBitmapSource = cacheImBitmapSource;
+
+        diskBitmapMap.clear();
+        unreadBitmapMap.clear();
+        currentSize = 0;
+
+        if(cacheImBitmapSource == null)
+        {
+            return;
+        }
+
+        for(CacheImBitmap cacheImBitmap : cacheImBitmapSource.getCacheImBitmaps())
+        {
+            unreadBitmapMap.put(cacheImBitmap.dataId, cacheImBitmap);
+            currentSize += cacheImBitmap.size;
+        }
+
+        Log.i(TAG, String.format("%d stored bitmaps found, current size is %d kb", unreadBitmapMap.size(), currentSize / 1024));
+
+        if (currentSize > MAX_MEMORY)
+        {
+            trimMemory();
+        }
+    }
+
+    /**
+     * @return true if a {@link CacheImBitmapSource} has been set, i.e. the disk cache can be used
+     */
+    public synchronized boolean hasSource()
+    {
+        return cacheImBitmapSource != null;
+    }
+
+    /**
+     * Updates the amount of memory (disk) used by the cache.
+     * @param maxBytes when exceeded, the cache is trimmed
+     * @param trimBytes size the cache is reduced to when trimmed
+     */
+    public synchronized void setMaxSize(long maxBytes, long trimBytes)
+    {
+        maxSizeSet = true;
+        applyMaxSize(maxBytes, trimBytes);
+    }
+
+    /**
+     * Like {@link CacheImBitmapManager#setMaxSize(long, long)}, but ignored if the app already sized the cache.
+     * Used by {@link com.jmleiva.imaginelib.core.ImBudgetCoordinator} to apply the size given by the budget policy.
+     */
+    public synchronized void setDefaultMaxSize(long maxBytes, long trimBytes)
+    {
+        if(!maxSizeSet)
+        {
+            applyMaxSize(maxBytes, trimBytes);
+        }
+    }
+
+    private void applyMaxSize(long maxBytes, long trimBytes)
+    {
+        MAX_MEMORY = maxBytes;
+        TRIM_MEMORY = trimBytes;
+
+        if (currentSize > MAX_MEMORY)
+        {
+            trimMemory();
+        }
     }
 
     /**
      * Called when upper memory limit is reached.
      */
-    void trimMemory()
+    synchronized void trimMemory()
     {
         if(cacheImBitmapSource == null)
         {
@@ -112,14 +205,12 @@ public class CacheImBitmapManager
         Log.i(TAG, String.format("**** Starting TRIM due exceding MAX_MEMORY: %d kb ****", MAX_MEMORY / 1024));
 
         List<CacheImBitmap> disposableCacheBitmaps = new ArrayList<CacheImBitmap>();
-        Iterator<Map.Entry<String, CacheImBitmap>> it = diskBitmapMap.entrySet().iterator();
+        List<CacheImBitmap> cacheImBitmaps = new ArrayList<>(diskBitmapMap.size() + unreadBitmapMap.size());
+        cacheImBitmaps.addAll(diskBitmapMap.values());
+        cacheImBitmaps.addAll(unreadBitmapMap.values());
 
-        while (it.hasNext())
+        for (CacheImBitmap cacheImBitmap : cacheImBitmaps)
         {
-            Map.Entry<String, CacheImBitmap> pairs = it.next();
-
-            CacheImBitmap cacheImBitmap = pairs.getValue();
-
 
 
             boolean atEnd = true;
@@ -147,12 +238,20 @@ public class CacheImBitmapManager
         {
             CacheImBitmap cacheImBitmapToDispose = disposableCacheBitmaps.remove(0);
 
+            // Unread bitmaps have no identifier
+            if(cacheImBitmapToDispose.id != null)
+            {
+                diskBitmapMap.remove(cacheImBitmapToDispose.id);
+            }
+            else
+            {
+                unreadBitmapMap.remove(cacheImBitmapToDispose.dataId);
+            }
+
             cacheImBitmapSource.deleteCacheImBitmap(cacheImBitmapToDispose.dataId);
             disposed++;
 
-            byte[] data = cacheImBitmapSource.getCacheImBitmapData(cacheImBitmapToDispose.dataId);
-
-            onMemoryDecreased(data.length);
+            onMemoryDecreased(cacheImBitmapToDispose.size);
         }
 
         Log.i(TAG, String.format("%d Disk Bitmaps disposed", disposed));
@@ -165,7 +264,7 @@ public class CacheImBitmapManager
      * Called internally each time a {@link CacheImBitmap} allocates memory
      * @param bytes number of bytes allocated by the {@link CacheImBitmap}
      */
-    void onMemoryIncreased(long bytes)
+    synchronized void onMemoryIncreased(long bytes)
     {
         currentSize += bytes;
         Log.i(TAG, String.format("Memory increased by %d kb, current size is %d kb", bytes / 1024, currentSize / 1024));
@@ -180,7 +279,7 @@ public class CacheImBitmapManager
      * Called internally each time a {@link CacheImBitmap} deallocates memory
      * @param bytes number of bytes deallocated by the {@link CacheImBitmap}
      */
-    void onMemoryDecreased(long bytes)
+    synchronized void onMemoryDecreased(long bytes)
     {
         currentSize -= bytes;
         Log.i(TAG, String.format("Memory decreased by %d kb, current size is %d kb", bytes / 1024, currentSize / 1024));
@@ -211,8 +310,8 @@ public class CacheImBitmapManager
      * <p>
      * If there's already a cached bitmap with the same identifier:
      * <ul>
-     * <li> If the size factor of the stored bitmap is equal or bigger than the new one, nothing happens
-     * <li> If the size factor of the stored bitmap is smaller than the new one, this is replaced.
+     * <li> If the stored bitmap is equal or bigger than the new one (its size factor is equal or smaller), nothing happens
+     * <li> If the stored bitmap is smaller than the new one (its size factor is bigger), this is replaced.
      * </ul>
      *
      * @param bitmap Bitmap to be cached locally in dick (in the SQLite Database)
@@ -221,7 +320,28 @@ public class CacheImBitmapManager
      */
     public void insertCacheImBitmap(Bitmap bitmap, String identifier, int sizeFactor)
     {
-        if(cacheImBitmapSource == null)
+        CacheImBitmap cacheImBitmap = new CacheImBitmap();
+        cacheImBitmap.id = identifier;
+        cacheImBitmap.sizeFactor = sizeFactor;
+
+        insertCacheImBitmap(bitmap, cacheImBitmap);
+    }
+
+    /**
+     * Like {@link CacheImBitmapManager#insertCacheImBitmap(Bitmap, String, int)}, but it also stores the rest of the
+     * {@link CacheImBitmap} fields (like the size and orientation of the original picture), so the cached bitmap can be used without reading it.
+     * <p>
+     * Can be called from several threads at once. The bitmap is compressed outside the lock.
+     *
+     * @param bitmap Bitmap to be cached locally
+     * @param cacheImBitmap {@link CacheImBitmap} with, at least, the identifier and size factor set
+     */
+    public void insertCacheImBitmap(Bitmap bitmap, CacheImBitmap cacheImBitmap)
+    {
+        String identifier = cacheImBitmap.id;
+        int sizeFactor = cacheImBitmap.sizeFactor;
+
+        if(!hasSource())
         {
             throw new IllegalStateException("CacheImBitmapSource not set");
         }
@@ -231,60 +351,101 @@ public class CacheImBitmapManager
             return;
         }
 
-        CacheImBitmap cacheImBitmap = getCachedImBitmap(identifier);
+        CacheImBitmap previousCacheImBitmap = getCachedImBitmap(identifier);
 
-        if(cacheImBitmap != null)
+        if(previousCacheImBitmap != null)
         {
             //Only override if new one is bigger
-            if(cacheImBitmap.sizeFactor >= sizeFactor)
+            if(previousCacheImBitmap.sizeFactor <= sizeFactor)
             {
                 return;
             }
         }
 
-        cacheImBitmap = new CacheImBitmap();
-        cacheImBitmap.id = identifier;
-        cacheImBitmap.sizeFactor = sizeFactor;
         cacheImBitmap.lastTimeUsed = System.currentTimeMillis();
 
-        FileOutputStream out = null;
-
         try
         {
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
+            // PNG keeps the transparency (i.e. of transformed bitmaps)
+            if(bitmap.hasAlpha())
+            {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+            }
+            else
+            {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
+            }
             byte[] data = outputStream.toByteArray();
+            cacheImBitmap.size = data.length;
 
-            onMemoryIncreased(data.length);
-            diskBitmapMap.put(identifier, cacheImBitmap);
+            synchronized (this)
+            {
+                if(previousCacheImBitmap != null && diskBitmapMap.get(identifier) == previousCacheImBitmap)
+                {
+                    currentSize -= previousCacheImBitmap.size;
+                }
 
-            cacheImBitmapSource.doAddDiskCacheBitmap(cacheImBitmap, data);
+                cacheImBitmapSource.doAddDiskCacheBitmap(cacheImBitmap, data);
+                diskBitmapMap.put(identifier, cacheImBitmap);
+                onMemoryIncreased(data.length);
+            }
 
         }
         catch (Exception e)
         {
             e.printStackTrace();
         }
-        finally
+    }
+
+    /**
+     * Like {@link CacheImBitmapManager#insertCacheImBitmap(Bitmap, CacheImBitmap)}, but for data already encoded (i.e. the
+     * bytes of a downloaded picture), stored as it is. If there's already a cached bitmap with the same identifier, nothing happens.
+     *
+     * @param cacheImBitmap {@link CacheImBitmap} with, at least, the identifier and size factor set
+     * @param data encoded bitmap
+     */
+    public void insertCacheImBitmapData(CacheImBitmap cacheImBitmap, byte[] data)
+    {
+        if(!hasSource())
+        {
+            throw new IllegalStateException("CacheImBitmapSource not set");
+        }
+
+        // Also counts an unread bitmap with the same identifier, stored by an earlier run
+        if(data == null || getCachedImBitmap(cacheImBitmap.id) != null)
         {
-            if(out != null)
+            return;
+        }
+
+        cacheImBitmap.lastTimeUsed = System.currentTimeMillis();
+        cacheImBitmap.size = data.length;
+
+        try
+        {
+            synchronized (this)
             {
-                try
-                {
-                    out.close();
-                }
-                catch (Throwable ignore)
+                if(diskBitmapMap.containsKey(cacheImBitmap.id))
                 {
+                    return;
                 }
+
+                cacheImBitmapSource.doAddDiskCacheBitmap(cacheImBitmap, data);
+                diskBitmapMap.put(cacheImBitmap.id, cacheImBitmap);
+                onMemoryIncreased(data.length);
             }
         }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
     }
 
     /**
      * @param id Identifier used to search for a stored Bitamp
      * @return a localy stored {@link CacheImBitmap} with a matchin identifier, or {@code null} is it doesn't exist.
      */
-    public CacheImBitmap getCachedImBitmap(String id)
+    public synchronized CacheImBitmap getCachedImBitmap(String id)
     {
         if(cacheImBitmapSource == null)
         {
@@ -300,10 +461,22 @@ public class CacheImBitmapManager
 
             if(cacheImBitmap != null)
             {
-                byte[] diskCacheBitmapData = cacheImBitmapSource.getCacheImBitmapData(cacheImBitmap.dataId);
+                if(cacheImBitmap.size == 0)
+                {
+                    byte[] diskCacheBitmapData = cacheImBitmapSource.getCacheImBitmapData(cacheImBitmap.dataId);
+                    cacheImBitmap.size = diskCacheBitmapData != null ? diskCacheBitmapData.length : 0;
+                }
 
                 diskBitmapMap.put(id, cacheImBitmap);
 
+                // Counted unread until now
+                CacheImBitmap unreadCacheImBitmap = unreadBitmapMap.remove(cacheImBitmap.dataId);
+
+                if(unreadCacheImBitmap != null)
+                {
+                    currentSize -= unreadCacheImBitmap.size;
+                }
+
                 //Add size to currentSize
 				/*
 				File file = new File(diskCacheBitmap.localPath);
@@ -313,13 +486,41 @@ public class CacheImBitmapManager
 					currentSize += file.length();
 				}
 				*/
-                currentSize += diskCacheBitmapData.length;
+                currentSize += cacheImBitmap.size;
             }
         }
+        else
+        {
+            cacheImBitmap.lastTimeUsed = System.currentTimeMillis();
+        }
 
         return cacheImBitmap;
     }
 
+    /**
+     * Removes a stored bitmap, i.e. because its source has changed
+     * @param id Identifier of the stored bitmap
+     */
+    public void deleteCachedImBitmap(String id)
+    {
+        CacheImBitmap cacheImBitmap = getCachedImBitmap(id);
+
+        if(cacheImBitmap == null)
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            if(diskBitmapMap.get(id) == cacheImBitmap)
+            {
+                diskBitmapMap.remove(id);
+                cacheImBitmapSource.deleteCacheImBitmap(cacheImBitmap.dataId);
+                onMemoryDecreased(cacheImBitmap.size);
+            }
+        }
+    }
+
     /**
      * {@link CacheImBitmap} must be lazy initialized, as decoding the real {@link Bitmap} at startup would be
      * a huge memory problem.
@@ -331,20 +532,20 @@ public class CacheImBitmapManager
      */
     public byte[] getCachedImBitmapData(long id)
     {
-        if(cacheImBitmapSource == null)
+        CacheImBitmapSource source;
+
+        synchronized (this)
         {
-            throw new IllegalStateException("CacheImBitmapSource not set");
+            source = cacheImBitmapSource;
         }
 
-        byte[] diskCacheBitmapData = cacheImBitmapSource.getCacheImBitmapData(id);
-
-        if(diskCacheBitmapData != null)
+        if(source == null)
         {
-            currentSize += diskCacheBitmapData.length;
+            throw new IllegalStateException("CacheImBitmapSource not set");
         }
 
-
-        return diskCacheBitmapData;
+        // Already accounted when the CacheImBitmap was loaded
+        return source.getCacheImBitmapData(id);
     }
 
 }
@@ -17,6 +17,7 @@ along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
 
 package com.jmleiva.imaginelib.core.cache;
 
+import java.util.List;
 
 public interface  CacheImBitmapSource
 {
@@ -24,5 +25,11 @@ public interface  CacheImBitmapSource
     byte[] getCacheImBitmapData(long cacheImBitmapId);
     CacheImBitmapManager.CacheImBitmap getCacheImBitmap(String imBitmapId);
     void doAddDiskCacheBitmap(CacheImBitmapManager.CacheImBitmap cacheImBitmap, byte[] data);
+
+    /**
+     * @return every stored bitmap (i.e. stored by earlier runs of the app), with only its dataId, size and lastTimeUsed set,
+     * so they can be counted and trimmed without reading them
+     */
+    List<CacheImBitmapManager.CacheImBitmap> getCacheImBitmaps();
 }
 
@@ -0,0 +1,388 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.core.cache;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link CacheImBitmapSource} implementation that stores each {@link CacheImBitmapManager.CacheImBitmap} as a single file
+ * inside a directory (usually inside the app cache directory).
+ * <p>
+ * Each file starts with a small header with the {@link CacheImBitmapManager.CacheImBitmap} fields, followed by the compressed bitmap.
+ * The file name is a 64 bits hash of the identifier, that is also used as dataId.
+ */
+public class FileCacheImBitmapSource implements CacheImBitmapSource
+{
+    final static String TAG = "FileCacheImBitmapSource";
+
+    private final static int HEADER_MAGIC = 0x494D4332; // "IMC2"
+
+    /**
+     * Created once the files stored with the identifiers used before {@code ImBitmapKey} are deleted
+     * (see {@link FileCacheImBitmapSource#deleteLegacyFiles(File[])})
+     */
+    private final static String LEGACY_FILES_DELETED_MARKER = ".ids-v2";
+
+    /**
+     * Identifiers are a prefix followed by a 128 bits key in hexadecimal, and optionally the key of a transformation
+     */
+    private final static int ID_KEY_HEX_DIGITS = 32;
+    private final static char ID_TRANSFORMATION_SEPARATOR = '#';
+
+    private final File directory;
+
+    /**
+     * FileCacheImBitmapSource Constructor
+     * @param directory where the files are stored. It's created if needed.
+     */
+    public FileCacheImBitmapSource(File directory)
+    {
+        this.directory = directory;
+
+        if(!directory.exists() && !directory.mkdirs())
+        {
+            Log.e(TAG, "Could not create cache directory " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return the dataId used for an identifier (64 bits FNV-1a hash)
+     */
+    static long dataIdFor(String imBitmapId)
+    {
+        long hash = 0xcbf29ce484222325L;
+
+        for(int i = 0; i < imBitmapId.length(); i++)
+        {
+            hash ^= imBitmapId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    @Override
+    public List<CacheImBitmapManager.CacheImBitmap> getCacheImBitmaps()
+    {
+        List<CacheImBitmapManager.CacheImBitmap> cacheImBitmaps = new ArrayList<>();
+        File[] files = directory.listFiles();
+
+        if(files == null)
+        {
+            return cacheImBitmaps;
+        }
+
+        File marker = new File(directory, LEGACY_FILES_DELETED_MARKER);
+
+        if(!marker.exists())
+        {
+            deleteLegacyFiles(files);
+            files = directory.listFiles();
+
+            try
+            {
+                if(files == null || !marker.createNewFile())
+                {
+                    Log.w(TAG, "Could not create " + marker.getAbsolutePath());
+                }
+            }
+            catch (IOException e)
+            {
+                Log.w(TAG, "Could not create " + marker.getAbsolutePath(), e);
+            }
+
+            if(files == null)
+            {
+                return cacheImBitmaps;
+            }
+        }
+
+        for(File file : files)
+        {
+            String name = file.getName();
+
+            // Temporary files, or files not written by this class
+            if(name.length() > 16 || !isHex(name))
+            {
+                continue;
+            }
+
+            CacheImBitmapManager.CacheImBitmap cacheImBitmap = new CacheImBitmapManager.CacheImBitmap();
+            // Parsed in two halves, as names are unsigned
+            cacheImBitmap.dataId = name.length() > 8 ?
+                    (Long.parseLong(name.substring(0, name.length() - 8), 16) << 32) | Long.parseLong(name.substring(name.length() - 8), 16) :
+                    Long.parseLong(name, 16);
+            cacheImBitmap.size = file.length();
+            cacheImBitmap.lastTimeUsed = file.lastModified();
+
+            cacheImBitmaps.add(cacheImBitmap);
+        }
+
+        return cacheImBitmaps;
+    }
+
+    /**
+     * Deletes the files stored with the identifiers used before {@code ImBitmapKey} (the source descriptor with some
+     * characters replaced), as they are never read again, and the files that can't be read. Done once per directory.
+     */
+    private static void deleteLegacyFiles(File[] files)
+    {
+        int deleted = 0;
+
+        for(File file : files)
+        {
+            String name = file.getName();
+
+            if(name.length() > 16 || !isHex(name))
+            {
+                continue;
+            }
+
+            DataInputStream in = null;
+            boolean legacy;
+
+            try
+            {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                legacy = !isCurrentId(readHeader(in).id);
+            }
+            catch (IOException e)
+            {
+                legacy = true;
+            }
+            finally
+            {
+                closeQuietly(in);
+            }
+
+            if(legacy && file.delete())
+            {
+                deleted++;
+            }
+        }
+
+        Log.i(TAG, String.format("%d legacy cache files deleted", deleted));
+    }
+
+    private static boolean isCurrentId(String id)
+    {
+        int separatorIndex = id.indexOf(ID_TRANSFORMATION_SEPARATOR);
+        String baseId = separatorIndex >= 0 ? id.substring(0, separatorIndex) : id;
+
+        return baseId.length() > ID_KEY_HEX_DIGITS && isHex(baseId.substring(baseId.length() - ID_KEY_HEX_DIGITS));
+    }
+
+    private static boolean isHex(String name)
+    {
+        if(name.isEmpty())
+        {
+            return false;
+        }
+
+        for(int i = 0; i < name.length(); i++)
+        {
+            if(Character.digit(name.charAt(i), 16) < 0)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private File fileFor(long dataId)
+    {
+        return new File(directory, Long.toHexString(dataId));
+    }
+
+    @Override
+    public void deleteCacheImBitmap(long cacheImBitmapId)
+    {
+        File file = fileFor(cacheImBitmapId);
+
+        if(file.exists() && !file.delete())
+        {
+            Log.w(TAG, "Could not delete " + file.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public byte[] getCacheImBitmapData(long cacheImBitmapId)
+    {
+        File file = fileFor(cacheImBitmapId);
+
+        if(!file.exists())
+        {
+            return null;
+        }
+
+        DataInputStream in = null;
+
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            readHeader(in);
+
+            int length = in.readInt();
+            byte[] data = new byte[length];
+            in.readFully(data);
+
+            return data;
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Could not read " + file.getAbsolutePath(), e);
+            return null;
+        }
+        finally
+        {
+            closeQuietly(in);
+        }
+    }
+
+    @Override
+    public CacheImBitmapManager.CacheImBitmap getCacheImBitmap(String imBitmapId)
+    {
+        long dataId = dataIdFor(imBitmapId);
+        File file = fileFor(dataId);
+
+        if(!file.exists())
+        {
+            return null;
+        }
+
+        DataInputStream in = null;
+
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            CacheImBitmapManager.CacheImBitmap cacheImBitmap = readHeader(in);
+
+            // Two identifiers with the same hash
+            if(!imBitmapId.equals(cacheImBitmap.id))
+            {
+                return null;
+            }
+
+            cacheImBitmap.dataId = dataId;
+            cacheImBitmap.size = in.readInt();
+            cacheImBitmap.lastTimeUsed = file.lastModified();
+
+            return cacheImBitmap;
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Could not read " + file.getAbsolutePath(), e);
+            return null;
+        }
+        finally
+        {
+            closeQuietly(in);
+        }
+    }
+
+    @Override
+    public void doAddDiskCacheBitmap(CacheImBitmapManager.CacheImBitmap cacheImBitmap, byte[] data)
+    {
+        cacheImBitmap.dataId = dataIdFor(cacheImBitmap.id);
+
+        File file = fileFor(cacheImBitmap.dataId);
+        File tempFile = new File(directory, file.getName() + ".tmp" + Thread.currentThread().getId());
+
+        DataOutputStream out = null;
+
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+            out.writeInt(HEADER_MAGIC);
+            out.writeUTF(cacheImBitmap.id);
+            out.writeInt(cacheImBitmap.sizeFactor);
+            out.writeInt(cacheImBitmap.originalWidth);
+            out.writeInt(cacheImBitmap.originalHeight);
+            out.writeInt(cacheImBitmap.orientation);
+            out.writeLong(cacheImBitmap.sourceLastModified);
+            out.writeLong(cacheImBitmap.sourceLength);
+            out.writeInt(data.length);
+            out.write(data);
+            out.close();
+            out = null;
+
+            // Rename, so a half written file is never read
+            if(!tempFile.renameTo(file))
+            {
+                Log.w(TAG, "Could not write " + file.getAbsolutePath());
+                tempFile.delete();
+            }
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "Could not write " + file.getAbsolutePath(), e);
+            tempFile.delete();
+        }
+        finally
+        {
+            closeQuietly(out);
+        }
+    }
+
+    private static CacheImBitmapManager.CacheImBitmap readHeader(DataInputStream in) throws IOException
+    {
+        if(in.readInt() != HEADER_MAGIC)
+        {
+            throw new IOException("Invalid cache file");
+        }
+
+        CacheImBitmapManager.CacheImBitmap cacheImBitmap = new CacheImBitmapManager.CacheImBitmap();
+        cacheImBitmap.id = in.readUTF();
+        cacheImBitmap.sizeFactor = in.readInt();
+        cacheImBitmap.originalWidth = in.readInt();
+        cacheImBitmap.originalHeight = in.readInt();
+        cacheImBitmap.orientation = in.readInt();
+        cacheImBitmap.sourceLastModified = in.readLong();
+        cacheImBitmap.sourceLength = in.readLong();
+
+        return cacheImBitmap;
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if(closeable != null)
+        {
+            try
+            {
+                closeable.close();
+            }
+            catch (Throwable ignore)
+            {
+            }
+        }
+    }
+}
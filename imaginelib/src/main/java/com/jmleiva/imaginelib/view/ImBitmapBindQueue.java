@@ -0,0 +1,92 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.view;
+
+import android.os.Build;
+import android.view.Choreographer;
+
+import com.jmleiva.imaginelib.core.ImBitmapElement;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies the loaded {@link ImBitmapElement} to their {@link ImBitmapView} once per frame, right before the frame is drawn,
+ * so many loads completed at the same time (i.e. while scrolling a grid) cause a single layout and draw pass.
+ * <p>
+ * Used only from the UI thread. Before API 16 the elements are applied right away.
+ */
+final class ImBitmapBindQueue {
+
+    /**
+     * Latest element by view. If a view gets two elements in the same frame (i.e. preview and final), only the last one is applied.
+     */
+    private final static Map<ImBitmapView, ImBitmapElement> pendingBindings = new LinkedHashMap<>();
+    private static boolean drainScheduled;
+
+    private ImBitmapBindQueue() {
+    }
+
+    static void enqueue(ImBitmapView view, ImBitmapElement element) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            view.applyBitmapElement(element);
+            return;
+        }
+
+        pendingBindings.put(view, element);
+
+        if (!drainScheduled) {
+            drainScheduled = true;
+            FrameDrainer.post();
+        }
+    }
+
+    static void cancel(ImBitmapView view) {
+        pendingBindings.remove(view);
+    }
+
+    private static void drain() {
+        drainScheduled = false;
+
+        List<ImBitmapView> views = new ArrayList<>(pendingBindings.keySet());
+        List<ImBitmapElement> elements = new ArrayList<>(pendingBindings.values());
+        pendingBindings.clear();
+
+        for (int i = 0; i < views.size(); i++) {
+            views.get(i).applyBitmapElement(elements.get(i));
+        }
+    }
+
+    /**
+     * Kept apart so {@link Choreographer} is never loaded before API 16
+     */
+    private static class FrameDrainer implements Choreographer.FrameCallback {
+        private final static FrameDrainer INSTANCE = new FrameDrainer();
+
+        static void post() {
+            Choreographer.getInstance().postFrameCallback(INSTANCE);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            drain();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.view;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader;
+import android.graphics.drawable.Drawable;
+import android.widget.ImageView.ScaleType;
+
+import com.jmleiva.imaginelib.core.ImBitmapElement;
+
+/**
+ * {@link Drawable} used by {@link ImBitmapView} to draw a {@link ImBitmapElement}.
+ * <p>
+ * The {@link Bitmap} is drawn as decoded, and the orientation of the {@link ImBitmapElement} (see
+ * {@link ImBitmapElement#getOrientation()}) is applied with a draw matrix, so rotated pictures don't need a rotated copy.
+ * <p>
+ * Rounded corners and circles are drawn with a {@link BitmapShader} over the same {@link Bitmap}, so they don't need a copy either.
+ * In that case the {@link ScaleType} is applied by this drawable (see {@link ImBitmapDrawable#setScaleType(ScaleType)}),
+ * so the corners are always drawn at the edges of the visible image.
+ */
+public class ImBitmapDrawable extends Drawable {
+
+    final ImBitmapElement bitmapElement;
+    final Bitmap bitmap;
+    final int orientedWidth;
+    final int orientedHeight;
+
+    final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG | Paint.ANTI_ALIAS_FLAG);
+    final Matrix orientationMatrix = new Matrix();
+    final Matrix drawMatrix = new Matrix();
+    final RectF imageRect = new RectF();
+
+    BitmapShader shader;
+    float cornerRadius;
+    boolean circular;
+    ScaleType scaleType = ScaleType.FIT_XY;
+
+    public ImBitmapDrawable(ImBitmapElement bitmapElement) {
+        this.bitmapElement = bitmapElement;
+        this.bitmap = bitmapElement.getBitmap();
+
+        orientedWidth = bitmapElement.getOrientedWidth();
+        orientedHeight = bitmapElement.getOrientedHeight();
+        bitmapElement.getOrientationMatrix(orientationMatrix);
+    }
+
+    /**
+     * @return the {@link ImBitmapElement} drawn by this instance
+     */
+    public ImBitmapElement getBitmapElement() {
+        return bitmapElement;
+    }
+
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    /**
+     * @param cornerRadius radius of the corners in pixels. 0 for square corners
+     */
+    public void setCornerRadius(float cornerRadius) {
+        this.cornerRadius = cornerRadius;
+        invalidateSelf();
+    }
+
+    public float getCornerRadius() {
+        return cornerRadius;
+    }
+
+    /**
+     * @param circular true to draw the image inside a circle (the biggest one that fits in the visible image)
+     */
+    public void setCircular(boolean circular) {
+        this.circular = circular;
+        invalidateSelf();
+    }
+
+    public boolean isCircular() {
+        return circular;
+    }
+
+    /**
+     * How the image is placed inside the bounds. Only {@link ScaleType#CENTER_CROP}, {@link ScaleType#FIT_XY} (default) and
+     * {@link ScaleType#FIT_CENTER} are supported; the rest are handled as {@link ScaleType#FIT_CENTER}.
+     */
+    public void setScaleType(ScaleType scaleType) {
+        this.scaleType = scaleType != null ? scaleType : ScaleType.FIT_XY;
+        updateDrawMatrix(getBounds());
+        invalidateSelf();
+    }
+
+    public ScaleType getScaleType() {
+        return scaleType;
+    }
+
+    private boolean isRounded() {
+        return circular || cornerRadius > 0;
+    }
+
+    @Override
+    protected void onBoundsChange(Rect bounds) {
+        super.onBoundsChange(bounds);
+
+        updateDrawMatrix(bounds);
+    }
+
+    private void updateDrawMatrix(Rect bounds) {
+        float scaleX = ((float) bounds.width()) / orientedWidth;
+        float scaleY = ((float) bounds.height()) / orientedHeight;
+
+        if (scaleType == ScaleType.CENTER_CROP) {
+            scaleX = scaleY = Math.max(scaleX, scaleY);
+        } else if (scaleType != ScaleType.FIT_XY) {
+            scaleX = scaleY = Math.min(scaleX, scaleY);
+        }
+
+        float left = bounds.left + (bounds.width() - orientedWidth * scaleX) / 2;
+        float top = bounds.top + (bounds.height() - orientedHeight * scaleY) / 2;
+
+        drawMatrix.set(orientationMatrix);
+        drawMatrix.postScale(scaleX, scaleY);
+        drawMatrix.postTranslate(left, top);
+
+        // Visible part of the image
+        imageRect.set(Math.max(bounds.left, left), Math.max(bounds.top, top),
+                Math.min(bounds.right, left + orientedWidth * scaleX), Math.min(bounds.bottom, top + orientedHeight * scaleY));
+
+        if (shader != null) {
+            shader.setLocalMatrix(drawMatrix);
+        }
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        if (!isRounded()) {
+            paint.setShader(null);
+
+            int saveCount = canvas.save();
+            canvas.clipRect(getBounds());
+            canvas.drawBitmap(bitmap, drawMatrix, paint);
+            canvas.restoreToCount(saveCount);
+            return;
+        }
+
+        if (shader == null) {
+            shader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            shader.setLocalMatrix(drawMatrix);
+        }
+
+        paint.setShader(shader);
+
+        if (circular) {
+            float radius = Math.min(imageRect.width(), imageRect.height()) / 2;
+            canvas.drawCircle(imageRect.centerX(), imageRect.centerY(), radius, paint);
+        } else {
+            canvas.drawRoundRect(imageRect, cornerRadius, cornerRadius, paint);
+        }
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return orientedWidth;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return orientedHeight;
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        paint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        paint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return bitmap.hasAlpha() || isRounded() || paint.getAlpha() < 255 ? PixelFormat.TRANSLUCENT : PixelFormat.OPAQUE;
+    }
+}
@@ -20,6 +20,7 @@ package com.jmleiva.imaginelib.view;
 
 
 import android.content.Context;
+import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
@@ -28,15 +29,21 @@ import android.graphics.PorterDuff.Mode;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.media.ExifInterface;
 import android.os.AsyncTask;
-import android.os.Build;
 import android.util.AttributeSet;
 import android.view.ViewGroup.LayoutParams;
 import android.view.ViewParent;
 import android.widget.ImageView;
 
+import com.jmleiva.imaginelib.R;
 import com.jmleiva.imaginelib.core.ImBitmap;
+import com.jmleiva.imaginelib.core.ImBitmapConfig;
 import com.jmleiva.imaginelib.core.ImBitmapElement;
+import com.jmleiva.imaginelib.core.ImBitmapHandle;
+import com.jmleiva.imaginelib.core.ImBitmapScope;
+import com.jmleiva.imaginelib.core.ImBitmapTransformationChain;
 
 /**
  *
@@ -54,9 +61,19 @@ public class ImBitmapView extends ImageView {
 
     ImBitmap cacheBitmap;
     ImBitmapElement cacheBitmapElement;
+    ImBitmapHandle cacheBitmapHandle;
     OnImBitmapViewRendered renderedListener;
-    int currentBitmapHash;
     AsyncTask currenLoadingAsyncTask;
+    boolean progressive;
+    ImBitmapTransformationChain transformations;
+    ImBitmapConfig bitmapConfig = ImBitmapConfig.AUTO;
+    float cornerRadius;
+    boolean circular;
+    ScaleType requestedScaleType;
+    ImBitmapScope scope;
+    Drawable placeholderDrawable;
+    int placeholderDrawableId;
+    int placeholderGeneration;
 
     public ImBitmapView(Context context) {
         super(context);
@@ -64,23 +81,25 @@ public class ImBitmapView extends ImageView {
 
     public ImBitmapView(Context context, AttributeSet attrs) {
         super(context, attrs);
-
-        // TODO ADD ROUNDED CORNERS SUPPORT
-		/*
-		TypedArray a = context.getTheme().obtainStyledAttributes(attrs,
-                R.styleable.RoundedCacheImageView, 0, 0);
-
-		try {
-			hasRoundedCorners = a.getBoolean(R.styleable.RoundedCacheImageView_rounded_corners, false);
-			cornerRadius = a.getInteger(R.styleable.RoundedCacheImageView_corners_radius, 0);
-		} finally {
-			a.recycle();
-		}
-		*/
+        readAttributes(context, attrs, 0);
     }
 
     public ImBitmapView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
+        readAttributes(context, attrs, defStyle);
+    }
+
+    private void readAttributes(Context context, AttributeSet attrs, int defStyle) {
+        TypedArray a = context.getTheme().obtainStyledAttributes(attrs, R.styleable.ImBitmapView, defStyle, 0);
+
+        try {
+            cornerRadius = a.getDimension(R.styleable.ImBitmapView_im_cornersRadius, 0);
+            circular = a.getBoolean(R.styleable.ImBitmapView_im_circular, false);
+        } finally {
+            a.recycle();
+        }
+
+        updateScaleType();
     }
 
     public void setOnRenderedListener(OnImBitmapViewRendered renderedListener) {
@@ -91,6 +110,158 @@ public class ImBitmapView extends ImageView {
         return cacheBitmap;
     }
 
+    /**
+     * Enables or disables the progressive load.
+     * <p>
+     * When enabled, a low resolution preview of the {@link ImBitmap} is shown as soon as possible
+     * (see {@link ImBitmap#getPreviewElement(int, int)}), and it's replaced by the full
+     * resolution version once it's loaded. Useful for big remote pictures on slow connections.
+     *
+     * @param progressive true to show a preview while loading, false to show the placeholder instead (default)
+     */
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    /**
+     * Sets the transformations applied to the {@link ImBitmap} shown (see {@link ImBitmapTransformationChain}).
+     * The transformed result is cached, so binding the same {@link ImBitmap} again doesn't transform it again.
+     * Previews of the progressive load are shown without transformations.
+     * <p>
+     * Must be set before {@link ImBitmapView#setImBitmap(ImBitmap)}.
+     * @param transformations {@link ImBitmapTransformationChain} to apply, or {@code null} to show the images as decoded
+     */
+    public void setTransformations(ImBitmapTransformationChain transformations) {
+        this.transformations = transformations;
+    }
+
+    public ImBitmapTransformationChain getTransformations() {
+        return transformations;
+    }
+
+    /**
+     * Sets the {@link ImBitmapConfig} the images shown are decoded with. {@link ImBitmapConfig#AUTO} by default.
+     * <p>
+     * Must be set before {@link ImBitmapView#setImBitmap(ImBitmap)}.
+     * @throws IllegalArgumentException if the config is {@code null}
+     */
+    public void setBitmapConfig(ImBitmapConfig bitmapConfig) {
+        if (bitmapConfig == null) {
+            throw new IllegalArgumentException("ImBitmapConfig can't be null");
+        }
+
+        this.bitmapConfig = bitmapConfig;
+    }
+
+    public ImBitmapConfig getBitmapConfig() {
+        return bitmapConfig;
+    }
+
+    /**
+     * Sets the {@link ImBitmapScope} of the screen this view belongs to. The elements this view retains, and the loads
+     * it starts, are released and cancelled when the scope is closed.
+     * @param scope {@link ImBitmapScope} of the screen, or {@code null} for none (default)
+     */
+    public void setScope(ImBitmapScope scope) {
+        this.scope = scope;
+
+        if (scope != null && cacheBitmapHandle != null) {
+            scope.track(cacheBitmapHandle);
+        }
+    }
+
+    public ImBitmapScope getScope() {
+        return scope;
+    }
+
+    /**
+     * @return false if the {@link ImBitmapElement} couldn't be retained, as it's being disposed
+     */
+    private boolean retainBitmapElement(ImBitmapElement bitmapElement) {
+        ImBitmapHandle handle = bitmapElement.retain(this);
+
+        if (handle == null) {
+            return false;
+        }
+
+        cacheBitmapHandle = handle;
+
+        if (scope != null) {
+            scope.track(cacheBitmapHandle);
+        }
+
+        return true;
+    }
+
+    /**
+     * Rounds the corners of the image, drawing it with a shader (no copy of the {@link Bitmap} is made).
+     * Same as the im_cornersRadius attribute.
+     * @param cornerRadius radius of the corners in pixels. 0 for square corners (default)
+     */
+    public void setCornerRadius(float cornerRadius) {
+        this.cornerRadius = cornerRadius;
+        onRoundingChanged();
+    }
+
+    public float getCornerRadius() {
+        return cornerRadius;
+    }
+
+    /**
+     * Draws the image inside a circle, like an avatar. Same as the im_circular attribute.
+     * @param circular true to draw the image inside a circle, false otherwise (default)
+     */
+    public void setCircular(boolean circular) {
+        this.circular = circular;
+        onRoundingChanged();
+    }
+
+    public boolean isCircular() {
+        return circular;
+    }
+
+    private boolean isRounded() {
+        return circular || cornerRadius > 0;
+    }
+
+    private void onRoundingChanged() {
+        updateScaleType();
+
+        if (cacheBitmapElement != null && !cacheBitmapElement.isDisposed()) {
+            setImageBitmapElement(cacheBitmapElement);
+        }
+    }
+
+    /**
+     * When rounded, the {@link ImBitmapDrawable} fills the view and applies the scale type itself, so the corners
+     * are drawn at the edges of the visible image
+     */
+    private void updateScaleType() {
+        ScaleType scaleType = requestedScaleType != null ? requestedScaleType : super.getScaleType();
+        super.setScaleType(isRounded() ? ScaleType.FIT_XY : scaleType);
+        requestedScaleType = scaleType;
+    }
+
+    @Override
+    public void setScaleType(ScaleType scaleType) {
+        // Called by the ImageView constructor too, before the fields are initialized
+        requestedScaleType = scaleType;
+        super.setScaleType(isRounded() ? ScaleType.FIT_XY : scaleType);
+
+        if (isRounded() && getDrawable() instanceof ImBitmapDrawable) {
+            ((ImBitmapDrawable) getDrawable()).setScaleType(scaleType);
+        }
+    }
+
+    @Override
+    public ScaleType getScaleType() {
+        return requestedScaleType != null ? requestedScaleType : super.getScaleType();
+    }
+
     public void setImBitmap(ImBitmap cacheBitmap) {
         setImBitmap(cacheBitmap, null);
     }
@@ -120,10 +291,7 @@ public class ImBitmapView extends ImageView {
             currenLoadingAsyncTask.cancel(true);
         }
 
-        if (this.cacheBitmapElement != null) {
-            this.cacheBitmapElement.release(this);
-            this.cacheBitmapElement = null;
-        }
+        releaseBitmapElement();
 
 
 
@@ -138,7 +306,7 @@ public class ImBitmapView extends ImageView {
         this.cacheBitmap = cacheBitmap;
 
         if (getWidth() != 0 && getHeight() != 0) {
-            if (defaultBitmap != null && !cacheBitmap.isReady(getWidth(), getHeight())) {
+            if (defaultBitmap != null && !cacheBitmap.isReady(getWidth(), getHeight(), transformations, bitmapConfig)) {
                 setImageBitmap(defaultBitmap);
             }
 
@@ -171,20 +339,10 @@ public class ImBitmapView extends ImageView {
             currenLoadingAsyncTask.cancel(true);
         }
 
-        if (this.cacheBitmapElement != null) {
-            this.cacheBitmapElement.release(this);
-            this.cacheBitmapElement = null;
-        }
+        releaseBitmapElement();
 
         if (cacheBitmap == null) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
-            {
-                setImageDrawable(getResources().getDrawable(defaultDrawableId, null));
-            }
-            else
-            {
-                setImageDrawable(getResources().getDrawable(defaultDrawableId));
-            }
+            setImageDrawable(getPlaceholderDrawable(defaultDrawableId));
 
             this.cacheBitmap = null;
             return;
@@ -193,21 +351,31 @@ public class ImBitmapView extends ImageView {
         this.cacheBitmap = cacheBitmap;
 
         if (getWidth() != 0 && getHeight() != 0) {
-            if (!cacheBitmap.isReady(getWidth(), getHeight())) {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
-                {
-                    setImageDrawable(getResources().getDrawable(defaultDrawableId, null));
-                }
-                else
-                {
-                    setImageDrawable(getResources().getDrawable(defaultDrawableId));
-                }
+            if (!cacheBitmap.isReady(getWidth(), getHeight(), transformations, bitmapConfig)) {
+                setImageDrawable(getPlaceholderDrawable(defaultDrawableId));
             }
 
             onSizeChanged(getWidth(), getHeight(), 0, 0);
         }
     }
 
+    /**
+     * @return the placeholder {@link Drawable} of this view for the resource id. The instance is kept by the view, and
+     * its state is shared with the rest of the views (see {@link ImPlaceholderCache}), so binding the same placeholder
+     * again allocates nothing.
+     */
+    private Drawable getPlaceholderDrawable(int drawableId) {
+        int generation = ImPlaceholderCache.validate(getResources());
+
+        if (placeholderDrawable == null || placeholderDrawableId != drawableId || placeholderGeneration != generation) {
+            placeholderDrawable = ImPlaceholderCache.newDrawable(getResources(), drawableId);
+            placeholderDrawableId = drawableId;
+            placeholderGeneration = generation;
+        }
+
+        return placeholderDrawable;
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         ViewParent parent = this.getParent();
@@ -236,85 +404,253 @@ public class ImBitmapView extends ImageView {
         if (w == 0 || h == 0) {
             return;
         } else {
-            if (cacheBitmapElement != null && !cacheBitmapElement.isDisposed()) {
-                // Here it should check that the sizes of the alreaddy loaded
-                // ImBitmapElement an the "view size" are coherent
-                setImageBitmap(cacheBitmapElement.getBitmap());
+            if (cacheBitmapElement != null && !cacheBitmapElement.isDisposed() && !cacheBitmapElement.isPreview()) {
+                setImageBitmapElement(cacheBitmapElement);
+
+                if (isSizeCoherent(cacheBitmapElement, w, h)) {
+                    return;
+                }
+
+                // The current element keeps being shown until the right size is loaded, and then they are swapped
+                // (see bindBitmapElement)
+                loadBitmapElement();
                 return;
             }
 
-            currenLoadingAsyncTask = cacheBitmap.getBitmapAsync(getWidth(), getHeight(), new ImBitmap.OnGetBitmapListener()
+            if (progressive && cacheBitmapElement == null && !cacheBitmap.isReady(getWidth(), getHeight(), transformations, bitmapConfig)) {
+                loadPreview();
+            } else {
+                loadBitmapElement();
+            }
+        }
+    }
+
+    /**
+     * @return true if the {@link ImBitmapElement} is the one that would be loaded for a view of the given size,
+     * false if it's too small (shown blurry) or too large (wasting memory)
+     */
+    private boolean isSizeCoherent(ImBitmapElement bitmapElement, int w, int h) {
+        int sizeFactor = cacheBitmap.getSizeFactor(w, h);
+        return sizeFactor == 0 || sizeFactor == bitmapElement.sizeFactor;
+    }
+
+    /**
+     * First step of the progressive load. Shows a preview, and then loads the full version.
+     */
+    private void loadPreview() {
+        currenLoadingAsyncTask = cacheBitmap.getPreviewAsync(getWidth(), getHeight(), new ImBitmap.OnGetBitmapListener()
+        {
+            @Override
+            public void onComplete(ImBitmapElement bitmapElement)
             {
-                @Override
-                public void onComplete(ImBitmapElement bitmapElement)
+                if(cacheBitmap == null || !cacheBitmap.hasElement(bitmapElement))
                 {
-                    if(bitmapElement.getParent() != cacheBitmap)
-                    {
-                        return;
-                    }
+                    return;
+                }
 
-                    cacheBitmapElement = bitmapElement;
+                ImBitmapBindQueue.enqueue(ImBitmapView.this, bitmapElement);
+                loadBitmapElement();
+            }
 
-                    setImageBitmap(bitmapElement.getBitmap());
-                    bitmapElement.retain(ImBitmapView.this);
+            @Override
+            public void onError(String message)
+            {
+                loadBitmapElement();
+            }
+        });
 
-                    if(renderedListener != null)
-                    {
-                        renderedListener.onRendered();
-                    }
-                }
+        trackLoad();
+    }
 
-                @Override
-                public void onError(String message)
+    private void loadBitmapElement() {
+        currenLoadingAsyncTask = cacheBitmap.getBitmapAsync(getWidth(), getHeight(), transformations, bitmapConfig, new ImBitmap.OnGetBitmapListener()
+        {
+            @Override
+            public void onComplete(ImBitmapElement bitmapElement)
+            {
+                if(cacheBitmap == null || !cacheBitmap.hasElement(bitmapElement))
                 {
-
+                    return;
                 }
-            });
+
+                ImBitmapBindQueue.enqueue(ImBitmapView.this, bitmapElement);
+            }
+
+            @Override
+            public void onError(String message)
+            {
+
+            }
+        });
+
+        trackLoad();
+    }
+
+    private void trackLoad() {
+        if (scope != null) {
+            scope.trackLoad(currenLoadingAsyncTask);
         }
     }
 
-    @Override
-    public void setImageBitmap(Bitmap bitmap) {
-        if (bitmap == null) {
-            currentBitmapHash = 0;
-        } else {
-            currentBitmapHash = bitmap.hashCode();
+    /**
+     * Called by {@link ImBitmapBindQueue} right before the next frame is drawn, with the last {@link ImBitmapElement}
+     * loaded for this view
+     */
+    void applyBitmapElement(ImBitmapElement bitmapElement) {
+        if (cacheBitmap == null || !cacheBitmap.hasElement(bitmapElement)) {
+            return;
+        }
+
+        // Trimmed while it waited for the frame, so it's loaded again. A preview is followed by the final load anyway.
+        if (bitmapElement.isDisposed()) {
+            if (!bitmapElement.isPreview() && getWidth() != 0 && getHeight() != 0) {
+                loadBitmapElement();
+            }
+            return;
+        }
+
+        // A preview that arrives once the final version is shown is ignored
+        if (bitmapElement.isPreview() && cacheBitmapElement != null && cacheBitmapElement != bitmapElement
+                && !cacheBitmapElement.isPreview() && !cacheBitmapElement.isDisposed()) {
+            return;
+        }
+
+        // Trimmed right before it was retained
+        if (!bindBitmapElement(bitmapElement)) {
+            if (!bitmapElement.isPreview() && getWidth() != 0 && getHeight() != 0) {
+                loadBitmapElement();
+            }
+            return;
+        }
+
+        if (!bitmapElement.isPreview() && renderedListener != null) {
+            renderedListener.onRendered();
+        }
+    }
+
+    /**
+     * Shows the {@link ImBitmapElement}, releasing the previous one if any (i.e. a preview, or another size).
+     * <p>
+     * The new element is retained before the previous one is released, so the view always shows a live element.
+     * A previous element larger than the new one (the view shrank) is disposed right away, unless other views show it.
+     * @return false if the new element couldn't be retained, as it's being disposed, so the previous one is kept
+     */
+    private boolean bindBitmapElement(ImBitmapElement bitmapElement) {
+        ImBitmapElement previousElement = cacheBitmapElement;
+
+        if (previousElement == bitmapElement) {
+            setImageBitmapElement(bitmapElement);
+            return true;
+        }
+
+        ImBitmapHandle previousHandle = cacheBitmapHandle;
+
+        // Retained before it's shown, so it's never shown once it can be recycled
+        if (!retainBitmapElement(bitmapElement)) {
+            return false;
+        }
+
+        cacheBitmapElement = bitmapElement;
+
+        setImageBitmapElement(bitmapElement);
+
+        if (previousHandle != null) {
+            previousHandle.close();
+        }
+
+        if (previousElement != null && isDowngrade(previousElement, bitmapElement)) {
+            previousElement.disposeIfUnused();
+        }
+
+        return true;
+    }
+
+    /**
+     * @return true if the new {@link ImBitmapElement} is a smaller version of the same image than the previous one
+     */
+    private static boolean isDowngrade(ImBitmapElement previousElement, ImBitmapElement bitmapElement) {
+        if (previousElement.getParent() != bitmapElement.getParent() || previousElement.isPreview()) {
+            return false;
+        }
+
+        String previousKey = previousElement.getTransformationKey();
+        String key = bitmapElement.getTransformationKey();
+
+        return (previousKey == null ? key == null : previousKey.equals(key))
+                && previousElement.sizeFactor < bitmapElement.sizeFactor;
+    }
+
+    /**
+     * Closes the handle of the current {@link ImBitmapElement}, if any, and forgets it
+     */
+    private void releaseBitmapElement() {
+        ImBitmapBindQueue.cancel(this);
+
+        if (cacheBitmapHandle != null) {
+            cacheBitmapHandle.close();
+            cacheBitmapHandle = null;
         }
 
-        super.setImageBitmap(bitmap);
+        cacheBitmapElement = null;
+    }
+
+    /**
+     * Shows the {@link Bitmap} of the {@link ImBitmapElement}. If the element has an orientation
+     * (see {@link ImBitmapElement#getOrientation()}) or the view is rounded, it's drawn by a {@link ImBitmapDrawable}.
+     */
+    private void setImageBitmapElement(ImBitmapElement bitmapElement) {
+        if (bitmapElement.getOrientation() == ExifInterface.ORIENTATION_NORMAL && !isRounded()) {
+            setImageBitmap(bitmapElement.getBitmap());
+            return;
+        }
+
+        ImBitmapDrawable drawable = new ImBitmapDrawable(bitmapElement);
+
+        if (isRounded()) {
+            drawable.setCornerRadius(cornerRadius);
+            drawable.setCircular(circular);
+            drawable.setScaleType(getScaleType());
+        }
+
+        setImageDrawable(drawable);
     }
 
     @Override
-    public void onDraw(Canvas canvas) {
-        if (cacheBitmapElement != null) {
-            if (cacheBitmapElement.getBitmap() != null) {
-                if (cacheBitmapElement.getBitmap().hashCode() != currentBitmapHash) {
-                    setImageBitmap(cacheBitmapElement.getBitmap());
-
-                    if (renderedListener != null) {
-                        renderedListener.onRendered();
-                    }
-                }
-            }
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        // Trimmed while detached: its Bitmap may be recycled already, so it's not shown anymore, and loaded again
+        if (cacheBitmapElement != null && cacheBitmapElement.isDisposed()) {
+            releaseBitmapElement();
+            setImageDrawable(null);
+        }
+
+        // Retained again if it was released when detached, unless it was trimmed right before
+        if (cacheBitmapElement != null && cacheBitmapHandle == null && !retainBitmapElement(cacheBitmapElement)) {
+            releaseBitmapElement();
+            setImageDrawable(null);
         }
 
-        super.onDraw(canvas);
+        if (cacheBitmap != null && cacheBitmapElement == null && getWidth() != 0 && getHeight() != 0) {
+            // The load completed while detached, or the element was trimmed
+            onSizeChanged(getWidth(), getHeight(), 0, 0);
+        }
     }
 
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
 
-        if (cacheBitmapElement != null) {
-            cacheBitmapElement.release(this);
+        ImBitmapBindQueue.cancel(this);
+
+        if (cacheBitmapHandle != null) {
+            cacheBitmapHandle.close();
+            cacheBitmapHandle = null;
         }
     }
 
     public void removeImBitmap() {
-        if (cacheBitmapElement != null) {
-            cacheBitmapElement.release(this);
-            cacheBitmapElement = null;
-        }
+        releaseBitmapElement();
 
         setImageBitmap(null);
 
@@ -323,6 +659,29 @@ public class ImBitmapView extends ImageView {
         }
     }
 
+    /**
+     * Called when the {@link ImBitmap} shown changed (i.e. the picture file was edited, see {@link ImBitmap#invalidate()}).
+     * The current {@link ImBitmapElement} is released, as it's going to be recycled, and the {@link ImBitmap} is loaded again.
+     */
+    public void reloadImBitmap() {
+        releaseBitmapElement();
+
+        if (currenLoadingAsyncTask != null && currenLoadingAsyncTask.getStatus() != AsyncTask.Status.FINISHED) {
+            currenLoadingAsyncTask.cancel(true);
+        }
+
+        setImageBitmap(null);
+
+        if (cacheBitmap != null && getWidth() != 0 && getHeight() != 0) {
+            onSizeChanged(getWidth(), getHeight(), 0, 0);
+        }
+    }
+
+    /**
+     * @deprecated allocates a new {@link Bitmap} on each call. Use {@link ImBitmapView#setCornerRadius(float)} or the
+     * im_cornersRadius attribute instead, that draw the cached {@link Bitmap} with a shader.
+     */
+    @Deprecated
     public static Bitmap getRoundedCornerBitmap(Bitmap bitmap, int pixels) {
         Bitmap output = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Config.ARGB_8888);
         Canvas canvas = new Canvas(output);
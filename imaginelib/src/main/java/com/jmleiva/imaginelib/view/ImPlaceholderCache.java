@@ -0,0 +1,93 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.view;
+
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.util.SparseArray;
+
+/**
+ * Placeholder drawables of {@link ImBitmapView}, resolved once per resource id and shared across views through
+ * their {@link Drawable.ConstantState} (so the underlying {@link android.graphics.Bitmap} is decoded only once).
+ * <p>
+ * The placeholders are not part of the {@link com.jmleiva.imaginelib.core.ImBitmapManager} memory budget, so they are never
+ * trimmed. The cache is cleared when the configuration changes (i.e. density or night mode), as the resolved resources may differ.
+ * <p>
+ * Used only from the UI thread.
+ */
+final class ImPlaceholderCache {
+
+    private final static SparseArray<Drawable.ConstantState> constantStates = new SparseArray<>();
+    private final static Configuration configuration = new Configuration();
+    private static boolean configurationSet;
+
+    /**
+     * Incremented each time the cache is cleared, so the views know their placeholder instances are stale
+     */
+    private static int generation;
+
+    private ImPlaceholderCache() {
+    }
+
+    /**
+     * Clears the cache if the configuration changed since the last call
+     * @return current generation of the cache
+     */
+    static int validate(Resources resources) {
+        Configuration currentConfiguration = resources.getConfiguration();
+
+        if (!configurationSet || configuration.diff(currentConfiguration) != 0) {
+            configuration.setTo(currentConfiguration);
+            configurationSet = true;
+
+            constantStates.clear();
+            generation++;
+        }
+
+        return generation;
+    }
+
+    /**
+     * @return a new {@link Drawable} for the resource id, sharing its state with the rest of the placeholders of the same id
+     */
+    static Drawable newDrawable(Resources resources, int drawableId) {
+        validate(resources);
+
+        Drawable.ConstantState constantState = constantStates.get(drawableId);
+
+        if (constantState != null) {
+            return constantState.newDrawable(resources);
+        }
+
+        Drawable drawable;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            drawable = resources.getDrawable(drawableId, null);
+        } else {
+            drawable = resources.getDrawable(drawableId);
+        }
+
+        if (drawable != null && drawable.getConstantState() != null) {
+            constantStates.put(drawableId, drawable.getConstantState());
+        }
+
+        return drawable;
+    }
+}
@@ -0,0 +1,433 @@
+/*
+This file is part of Imagine by Juan Martin Leiva
+
+PagedRecyclerView is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Foobar is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.jmleiva.imaginelib.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.AsyncTask;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import com.jmleiva.imaginelib.core.ImBitmap;
+import com.jmleiva.imaginelib.core.ImBitmapElement;
+import com.jmleiva.imaginelib.core.ImBitmapHandle;
+import com.jmleiva.imaginelib.core.ImBitmapTile;
+import com.jmleiva.imaginelib.core.ImTiledBitmap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Used to display a {@link ImTiledBitmap}, with pan and pinch to zoom.
+ * <p>
+ * A sampled overview of the whole image is drawn first, and only the tiles visible at the current zoom level
+ * are decoded on top of it. Tiles that go off-screen are released (so they are the first ones to be trimmed),
+ * and their pending loads are cancelled.
+ */
+public class ImTiledBitmapView extends View {
+
+    /**
+     * Max zoom, in screen pixels per image pixel
+     */
+    final static float MAX_SCALE = 2f;
+
+    ImTiledBitmap tiledBitmap;
+    ImBitmapElement overviewElement;
+    ImBitmapHandle overviewHandle;
+    AsyncTask overviewAsyncTask;
+
+    float scale;
+    float minScale;
+    float offsetX;
+    float offsetY;
+
+    final Map<Long, ImBitmapTile> retainedTiles = new HashMap<>();
+    final Map<Long, Future<?>> pendingTiles = new HashMap<>();
+    final Set<Long> visibleTileKeys = new HashSet<>();
+
+    final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    final RectF destRect = new RectF();
+
+    GestureDetector gestureDetector;
+    ScaleGestureDetector scaleGestureDetector;
+
+    public ImTiledBitmapView(Context context) {
+        super(context);
+        init(context);
+    }
+
+    public ImTiledBitmapView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init(context);
+    }
+
+    public ImTiledBitmapView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        init(context);
+    }
+
+    private void init(Context context) {
+        gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                offsetX += distanceX / scale;
+                offsetY += distanceY / scale;
+                clampOffsets();
+                invalidate();
+                return true;
+            }
+        });
+
+        scaleGestureDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                setScale(scale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+    }
+
+    public ImTiledBitmap getImTiledBitmap() {
+        return tiledBitmap;
+    }
+
+    /**
+     * Used to update the {@link ImTiledBitmap} shown. The view starts showing the whole image.
+     */
+    public void setImTiledBitmap(ImTiledBitmap tiledBitmap) {
+        if (this.tiledBitmap == tiledBitmap) {
+            return;
+        }
+
+        releaseAll();
+
+        this.tiledBitmap = tiledBitmap;
+        scale = 0;
+
+        invalidate();
+    }
+
+    /**
+     * Zooms keeping the focus point (in view coordinates) still.
+     * @param newScale screen pixels per image pixel. It's clamped between the "fit" scale and {@link ImTiledBitmapView#MAX_SCALE}
+     */
+    public void setScale(float newScale, float focusX, float focusY) {
+        if (scale <= 0) {
+            return;
+        }
+
+        newScale = Math.max(minScale, Math.min(MAX_SCALE, newScale));
+
+        float imageFocusX = offsetX + focusX / scale;
+        float imageFocusY = offsetY + focusY / scale;
+
+        scale = newScale;
+        offsetX = imageFocusX - focusX / scale;
+        offsetY = imageFocusY - focusY / scale;
+
+        clampOffsets();
+        invalidate();
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        boolean handled = scaleGestureDetector.onTouchEvent(event);
+        handled = gestureDetector.onTouchEvent(event) || handled;
+        return handled || super.onTouchEvent(event);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        // Fit the image again once it's known
+        scale = 0;
+        invalidate();
+    }
+
+    /**
+     * Fits the whole image in the view, if the size of both are known
+     */
+    private boolean ensureScale() {
+        if (scale > 0) {
+            return true;
+        }
+
+        int imageWidth = tiledBitmap.getImageWidth();
+        int imageHeight = tiledBitmap.getImageHeight();
+
+        if (imageWidth == 0 || imageHeight == 0 || getWidth() == 0 || getHeight() == 0) {
+            return false;
+        }
+
+        minScale = Math.min(((float) getWidth()) / imageWidth, ((float) getHeight()) / imageHeight);
+        minScale = Math.min(minScale, MAX_SCALE);
+        scale = minScale;
+        offsetX = 0;
+        offsetY = 0;
+        clampOffsets();
+
+        return true;
+    }
+
+    /**
+     * Keeps the image inside the view, centering it when it's smaller than the view
+     */
+    private void clampOffsets() {
+        if (tiledBitmap == null || scale <= 0) {
+            return;
+        }
+
+        offsetX = clampOffset(offsetX, tiledBitmap.getImageWidth(), getWidth() / scale);
+        offsetY = clampOffset(offsetY, tiledBitmap.getImageHeight(), getHeight() / scale);
+    }
+
+    private static float clampOffset(float offset, int imageSize, float visibleSize) {
+        if (visibleSize >= imageSize) {
+            return -(visibleSize - imageSize) / 2;
+        }
+
+        return Math.max(0, Math.min(imageSize - visibleSize, offset));
+    }
+
+    /**
+     * @return the tiles level that matches the current scale, i.e. the one that doesn't need to be upscaled
+     */
+    private int getLevel() {
+        int level = 0;
+        float sample = 1 / scale;
+
+        while (level < tiledBitmap.getMaxLevel() && (1 << (level + 1)) <= sample) {
+            level++;
+        }
+
+        return level;
+    }
+
+    private void loadOverview() {
+        if (overviewAsyncTask != null && overviewAsyncTask.getStatus() != AsyncTask.Status.FINISHED) {
+            return;
+        }
+
+        overviewAsyncTask = tiledBitmap.getBitmapAsync(getWidth(), getHeight(), new ImBitmap.OnGetBitmapListener() {
+            @Override
+            public void onComplete(ImBitmapElement bitmapElement) {
+                if (bitmapElement.getParent() != tiledBitmap) {
+                    return;
+                }
+
+                // Retained so it's not trimmed while it's shown. If it was trimmed meanwhile, it's loaded again when drawn.
+                ImBitmapHandle handle = bitmapElement.retain();
+
+                releaseOverview();
+
+                if (handle != null) {
+                    overviewElement = bitmapElement;
+                    overviewHandle = handle;
+                }
+
+                invalidate();
+            }
+
+            @Override
+            public void onError(String message) {
+
+            }
+        });
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        if (tiledBitmap == null || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+
+        if (overviewElement == null || overviewElement.isDisposed()) {
+            releaseOverview();
+            loadOverview();
+        }
+
+        if (!ensureScale()) {
+            return;
+        }
+
+        int imageWidth = tiledBitmap.getImageWidth();
+        int imageHeight = tiledBitmap.getImageHeight();
+
+        Bitmap overviewBitmap = overviewElement != null ? overviewElement.getBitmap() : null;
+
+        if (overviewBitmap != null && !overviewBitmap.isRecycled()) {
+            destRect.set(-offsetX * scale, -offsetY * scale, (imageWidth - offsetX) * scale, (imageHeight - offsetY) * scale);
+            canvas.drawBitmap(overviewBitmap, null, destRect, paint);
+        }
+
+        int level = getLevel();
+        int tileSourceSize = ImTiledBitmap.getTileSourceSize(level);
+
+        float visibleLeft = Math.max(0, offsetX);
+        float visibleTop = Math.max(0, offsetY);
+        float visibleRight = Math.min(imageWidth, offsetX + getWidth() / scale);
+        float visibleBottom = Math.min(imageHeight, offsetY + getHeight() / scale);
+
+        visibleTileKeys.clear();
+
+        for (int row = (int) (visibleTop / tileSourceSize); row * tileSourceSize < visibleBottom; row++) {
+            for (int column = (int) (visibleLeft / tileSourceSize); column * tileSourceSize < visibleRight; column++) {
+                long key = ImTiledBitmap.tileKey(level, column, row);
+                visibleTileKeys.add(key);
+
+                ImBitmapTile tile = tiledBitmap.findTile(level, column, row);
+
+                if (tile == null) {
+                    requestTile(key, level, column, row);
+                    continue;
+                }
+
+                if (!retainedTiles.containsKey(key)) {
+                    // Trimmed right after it was found
+                    if (!tile.retainTile()) {
+                        requestTile(key, level, column, row);
+                        continue;
+                    }
+
+                    retainedTiles.put(key, tile);
+                }
+
+                Bitmap bitmap = tile.getBitmap();
+                Rect region = tile.getRegion();
+
+                // Trimmed after it was found, so it's decoded again
+                if (bitmap == null || bitmap.isRecycled()) {
+                    requestTile(key, level, column, row);
+                    continue;
+                }
+
+                destRect.set((region.left - offsetX) * scale, (region.top - offsetY) * scale,
+                        (region.right - offsetX) * scale, (region.bottom - offsetY) * scale);
+                canvas.drawBitmap(bitmap, null, destRect, paint);
+            }
+        }
+
+        releaseOffscreenTiles();
+    }
+
+    private void requestTile(final long key, int level, int column, int row) {
+        if (pendingTiles.containsKey(key)) {
+            return;
+        }
+
+        final ImTiledBitmap requestedBitmap = tiledBitmap;
+
+        Future<?> future = tiledBitmap.getTileAsync(level, column, row, new ImBitmap.OnGetBitmapListener() {
+            @Override
+            public void onComplete(ImBitmapElement bitmapElement) {
+                pendingTiles.remove(key);
+
+                if (requestedBitmap == tiledBitmap) {
+                    invalidate();
+                }
+            }
+
+            @Override
+            public void onError(String message) {
+                pendingTiles.remove(key);
+            }
+        });
+
+        pendingTiles.put(key, future);
+    }
+
+    /**
+     * Releases the retained tiles that are not visible anymore (or were disposed), and cancels the loads of the
+     * pending ones.
+     */
+    private void releaseOffscreenTiles() {
+        Iterator<Map.Entry<Long, ImBitmapTile>> retainedIterator = retainedTiles.entrySet().iterator();
+
+        while (retainedIterator.hasNext()) {
+            Map.Entry<Long, ImBitmapTile> entry = retainedIterator.next();
+
+            if (!visibleTileKeys.contains(entry.getKey()) || entry.getValue().isDisposed()) {
+                entry.getValue().releaseTile();
+                retainedIterator.remove();
+            }
+        }
+
+        Iterator<Map.Entry<Long, Future<?>>> pendingIterator = pendingTiles.entrySet().iterator();
+
+        while (pendingIterator.hasNext()) {
+            Map.Entry<Long, Future<?>> entry = pendingIterator.next();
+
+            if (!visibleTileKeys.contains(entry.getKey())) {
+                entry.getValue().cancel(false);
+                pendingIterator.remove();
+            }
+        }
+    }
+
+    private void releaseAll() {
+        visibleTileKeys.clear();
+        releaseOffscreenTiles();
+
+        if (overviewAsyncTask != null && overviewAsyncTask.getStatus() != AsyncTask.Status.FINISHED) {
+            overviewAsyncTask.cancel(true);
+        }
+
+        overviewAsyncTask = null;
+
+        releaseOverview();
+    }
+
+    private void releaseOverview() {
+        if (overviewHandle != null) {
+            overviewHandle.close();
+            overviewHandle = null;
+        }
+
+        overviewElement = null;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        releaseAll();
+    }
+}
@@ -0,0 +1,128 @@
+package com.jmleiva.imaginelib.core;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Allocation benchmarks of registering a big catalog of {@link ImBitmap}. Measured with the allocation counters of the
+ * JVM running the unit tests, so they are skipped if it doesn't have them.
+ */
+public class ImBitmapFootprintBenchmark {
+    private final static int CATALOG_SIZE = 100000;
+    private final static int WARM_UP_ROUNDS = 3;
+
+    /**
+     * Bytes per image allocated by {@link ImBitmapManager#getRemoteBitmap(String)} before the registry was keyed by
+     * {@link ImBitmapKey}: an identifier built with chained replaces, a registry grown one url at a time, and an eager
+     * list of elements per instance. Measured with this catalog on a 64 bits HotSpot JVM with compressed oops.
+     */
+    private final static long BASELINE_REGISTRATION_BYTES_PER_IMAGE = 558;
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private List<String> urls;
+
+    @Before
+    public void setUp() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+
+        threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        urls = new ArrayList<>(CATALOG_SIZE);
+
+        for (int i = 0; i < CATALOG_SIZE; i++) {
+            urls.add("http://cdn.example.com/catalog/items/" + i + "/picture.v2.jpg");
+        }
+    }
+
+    @Test
+    public void keys_allocateLessThanChainedReplace() throws Exception {
+        long chainedBytes = 0;
+        long hashedBytes = 0;
+
+        for (int round = 0; round <= WARM_UP_ROUNDS; round++) {
+            long start = allocatedBytes();
+            String[] chainedKeys = new String[CATALOG_SIZE];
+
+            for (int i = 0; i < CATALOG_SIZE; i++) {
+                chainedKeys[i] = chainedReplaceKey("REM_BIT_", urls.get(i));
+            }
+
+            chainedBytes = allocatedBytes() - start;
+
+            start = allocatedBytes();
+            ImBitmapKey[] hashedKeys = new ImBitmapKey[CATALOG_SIZE];
+
+            for (int i = 0; i < CATALOG_SIZE; i++) {
+                hashedKeys[i] = ImBitmapKey.of("REM_BIT_", urls.get(i));
+            }
+
+            hashedBytes = allocatedBytes() - start;
+        }
+
+        assertTrue(String.format("Keys: %d bytes/key chained replace, %d bytes/key hashed",
+                chainedBytes / CATALOG_SIZE, hashedBytes / CATALOG_SIZE), hashedBytes < chainedBytes);
+    }
+
+    @Test
+    public void registration_allocatesLessThanBaseline() throws Exception {
+        assumeTrue(isCompressedOops());
+
+        long registrationBytes = 0;
+
+        for (int round = 0; round <= WARM_UP_ROUNDS; round++) {
+            long start = allocatedBytes();
+
+            // As ImBitmapManager#getRemoteBitmaps: the registry grows once, then every url is registered
+            Map<ImBitmapKey, ImBitmap> registry = new HashMap<>((int) (CATALOG_SIZE / 0.75f) + 1);
+            List<ImRemoteBitmap> remoteBitmaps = new ArrayList<>(CATALOG_SIZE);
+
+            for (String url : urls) {
+                remoteBitmaps.add(ImBitmapManager.registerRemoteBitmap(registry, url, null));
+            }
+
+            registrationBytes = allocatedBytes() - start;
+
+            assertTrue(remoteBitmaps.get(0).getElementList().isEmpty());
+        }
+
+        long bytesPerImage = registrationBytes / CATALOG_SIZE;
+
+        assertTrue(String.format("Registration: %d bytes/image, baseline %d bytes/image", bytesPerImage,
+                BASELINE_REGISTRATION_BYTES_PER_IMAGE), bytesPerImage < BASELINE_REGISTRATION_BYTES_PER_IMAGE);
+    }
+
+    private static boolean isCompressedOops() {
+        HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+
+        return bean != null && "true".equals(bean.getVMOption("UseCompressedOops").getValue());
+    }
+
+    private long allocatedBytes() {
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * How the keys were built before {@link ImBitmapKey}
+     */
+    private static String chainedReplaceKey(String prefix, String path) {
+        return prefix + path.replace('\\', '-').
+                replace('/', '-').
+                replace('.', '-').
+                replace(':', '-');
+    }
+}
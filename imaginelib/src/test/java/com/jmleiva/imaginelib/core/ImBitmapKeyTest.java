@@ -0,0 +1,46 @@
+package com.jmleiva.imaginelib.core;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Correctness of the {@link ImBitmapKey} of the registry, and of the identifiers built from them
+ */
+public class ImBitmapKeyTest {
+    @Test
+    public void keys_distinctForSimilarDescriptors() throws Exception {
+        // These used to share the key REM_BIT_a-b-jpg
+        assertNotEquals(ImBitmapKey.of("REM_BIT_", "a/b.jpg"), ImBitmapKey.of("REM_BIT_", "a-b-jpg"));
+        assertNotEquals(ImBitmapKey.of("REM_BIT_", "1"), ImBitmapKey.of("RES_BIT_", "1"));
+        assertEquals(ImBitmapKey.of("REM_BIT_", "a/b.jpg"), ImBitmapKey.of("REM_BIT_", "a/b.jpg"));
+    }
+
+    @Test
+    public void keys_readBackFromId() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            ImBitmapKey key = ImBitmapKey.of("REM_BIT_", "http://cdn.example.com/catalog/items/" + i + "/picture.v2.jpg");
+            String id = key.toId("REM_BIT_");
+
+            assertEquals(40, id.length());
+            assertEquals(key, ImBitmapKey.fromId(id));
+        }
+
+        assertNull(ImBitmapKey.fromId("REM_BIT_not-an-id"));
+    }
+
+    @Test
+    public void registration_buildsIdFromKeyOnFirstUse() throws Exception {
+        Map<ImBitmapKey, ImBitmap> registry = new HashMap<>();
+        String url = "http://cdn.example.com/catalog/items/1/picture.v2.jpg";
+
+        ImRemoteBitmap remoteBitmap = ImBitmapManager.registerRemoteBitmap(registry, url, null);
+
+        assertNull(remoteBitmap.cacheBitmapId);
+        assertEquals(ImBitmapKey.of("REM_BIT_", url).toId("REM_BIT_"), remoteBitmap.getCacheBitmapId());
+        assertSame(remoteBitmap, ImBitmapManager.registerRemoteBitmap(registry, url, null));
+    }
+}